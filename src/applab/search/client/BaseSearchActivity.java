@@ -104,6 +104,13 @@ public abstract class BaseSearchActivity extends ApplabActivity {
     @Override
     protected void onDestroy() {
         super.onDestroy();
+
+        // backing out of the activity abandons a synchronization the user was waiting on (a configuration change
+        // destroys the activity too, but doesn't finish it)
+        if (isFinishing() && SynchronizationManager.isSynchronizingInForeground()) {
+            SynchronizationManager.cancelSynchronization();
+        }
+
         // release synchronization lock
         SynchronizationManager.completeSynchronization();
     }
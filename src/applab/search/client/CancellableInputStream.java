@@ -0,0 +1,128 @@
+/**
+ * Copyright (C) 2010 Grameen Foundation
+Licensed under the Apache License, Version 2.0 (the "License"); you may not
+use this file except in compliance with the License. You may obtain a copy of
+the License at http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations under
+the License.
+ */
+
+package applab.search.client;
+
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+import org.apache.http.conn.ConnectionReleaseTrigger;
+
+/**
+ * Input stream that fails with an InterruptedIOException once the synchronization episode reading it has been
+ * cancelled or stopped by the watchdog, so whatever is consuming a download unwinds through its normal I/O error
+ * handling. The bytes read are reported to the episode as progress.
+ *
+ * The stream registers itself as the episode's active stream until it is closed, so a read that is already blocked on
+ * the network when the episode is stopped is broken off by aborting the connection underneath it.
+ */
+public class CancellableInputStream extends FilterInputStream {
+    private final SyncEngine engine;
+    private final Closeable abortHandle;
+
+    public CancellableInputStream(InputStream inputStream, SyncEngine engine) {
+        super(inputStream);
+        this.engine = engine;
+        this.abortHandle = new Closeable() {
+            public void close() throws IOException {
+                abort();
+            }
+        };
+        engine.setActiveStream(this.abortHandle);
+    }
+
+    @Override
+    public int read() throws IOException {
+        checkCancelled();
+        int value;
+        try {
+            value = super.read();
+        }
+        catch (IOException e) {
+            throw checkCancelled(e);
+        }
+        if (value >= 0) {
+            this.engine.reportProgress(1);
+        }
+        return value;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        checkCancelled();
+        int read;
+        try {
+            read = super.read(buffer, offset, length);
+        }
+        catch (IOException e) {
+            throw checkCancelled(e);
+        }
+        if (read > 0) {
+            this.engine.reportProgress(read);
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(long length) throws IOException {
+        checkCancelled();
+        long skipped;
+        try {
+            skipped = super.skip(length);
+        }
+        catch (IOException e) {
+            throw checkCancelled(e);
+        }
+        this.engine.reportProgress(skipped);
+        return skipped;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.engine.clearActiveStream(this.abortHandle);
+        super.close();
+    }
+
+    /**
+     * Breaks the connection the stream reads from. An HttpClient response is aborted rather than closed, since
+     * closing it would first read the rest of the body.
+     */
+    private void abort() throws IOException {
+        if (this.in instanceof ConnectionReleaseTrigger) {
+            ((ConnectionReleaseTrigger)this.in).abortConnection();
+        }
+        else {
+            this.in.close();
+        }
+    }
+
+    private void checkCancelled() throws InterruptedIOException {
+        if (this.engine.isStopRequested()) {
+            throw createStopException();
+        }
+    }
+
+    /**
+     * A read that failed because the episode was stopped, most likely by abort(), is reported like any other stop
+     */
+    private IOException checkCancelled(IOException e) {
+        return this.engine.isStopRequested() ? createStopException() : e;
+    }
+
+    private InterruptedIOException createStopException() {
+        return new InterruptedIOException("Synchronization "
+                + SyncEngine.getStopReasonName(this.engine.getStopReason()));
+    }
+}
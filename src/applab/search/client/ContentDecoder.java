@@ -0,0 +1,83 @@
+/**
+ * Copyright (C) 2010 Grameen Foundation
+Licensed under the Apache License, Version 2.0 (the "License"); you may not
+use this file except in compliance with the License. You may obtain a copy of
+the License at http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations under
+the License.
+ */
+
+package applab.search.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Recognizes gzip and deflate (zlib) compressed response bodies and decompresses them as they are read.
+ *
+ * HttpHelpers doesn't give us the response headers, so the encoding is detected from the leading bytes of the body
+ * instead of Content-Encoding. A JSON body starts with '{' or whitespace, which can't be mistaken for either header.
+ */
+public class ContentDecoder {
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
+
+    private static final int GZIP_MAGIC_FIRST_BYTE = 0x1f;
+    private static final int GZIP_MAGIC_SECOND_BYTE = 0x8b;
+    private static final int ZLIB_DEFLATE_METHOD = 8;
+    private static final int INFLATE_BUFFER_SIZE = 8 * 1024;
+
+    /**
+     * Looks at the first two bytes of the stream, without consuming them, and returns GZIP, DEFLATE or null for an
+     * uncompressed body. The stream must support mark().
+     */
+    public static String detectEncoding(InputStream inputStream) throws IOException {
+        inputStream.mark(2);
+        int firstByte = inputStream.read();
+        int secondByte = inputStream.read();
+        inputStream.reset();
+        if (firstByte < 0 || secondByte < 0) {
+            return null;
+        }
+
+        if (firstByte == GZIP_MAGIC_FIRST_BYTE && secondByte == GZIP_MAGIC_SECOND_BYTE) {
+            return GZIP;
+        }
+
+        // zlib header: deflate method in the low nibble, and the two bytes taken together are a multiple of 31
+        if ((firstByte & 0x0f) == ZLIB_DEFLATE_METHOD && ((firstByte << 8) | secondByte) % 31 == 0) {
+            return DEFLATE;
+        }
+        return null;
+    }
+
+    /**
+     * Wraps the stream in a decompressor for the given encoding, or returns it as it is if encoding is null
+     */
+    public static InputStream decode(InputStream inputStream, String encoding) throws IOException {
+        if (GZIP.equals(encoding)) {
+            return new GZIPInputStream(inputStream, INFLATE_BUFFER_SIZE);
+        }
+        if (DEFLATE.equals(encoding)) {
+            return new InflaterInputStream(inputStream, new Inflater(), INFLATE_BUFFER_SIZE) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    }
+                    finally {
+                        // we supplied the inflater, so we have to release its native memory
+                        this.inf.end();
+                    }
+                }
+            };
+        }
+        return inputStream;
+    }
+}
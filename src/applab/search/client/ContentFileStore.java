@@ -0,0 +1,150 @@
+/**
+ * Copyright (C) 2010 Grameen Foundation
+Licensed under the Apache License, Version 2.0 (the "License"); you may not
+use this file except in compliance with the License. You may obtain a copy of
+the License at http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations under
+the License.
+ */
+
+package applab.search.client;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.util.Set;
+
+import android.content.Context;
+
+/**
+ * Keeps menu item content that is too large to hold in memory during a sync in files under the application's private
+ * files directory. The content column then holds a reference of the form content-file:name, which selectContent()
+ * resolves when the item is displayed.
+ *
+ * File names are unique per store, so files written for a staged or interrupted update never replace ones the live
+ * table still points at. Files nobody refers to are removed by Storage.deleteUnreferencedContentFiles().
+ */
+public class ContentFileStore implements LargeValueStore {
+    private static final String LOG_TAG = "ContentFileStore";
+    private static final String DIRECTORY_NAME = "content";
+    static final String REFERENCE_PREFIX = "content-file:";
+
+    private final File directory;
+    private final String namePrefix;
+    private int fileCount;
+
+    private File currentFile;
+    private OutputStream currentStream;
+
+    public ContentFileStore(File directory) {
+        this.directory = directory;
+        this.namePrefix = Long.toString(System.currentTimeMillis(), 36) + "-";
+    }
+
+    public static File getDirectory(Context context) {
+        return new File(context.getFilesDir(), DIRECTORY_NAME);
+    }
+
+    public OutputStream begin() throws IOException {
+        close();
+        if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+            throw new IOException("Can't create " + this.directory);
+        }
+        this.currentFile = new File(this.directory, this.namePrefix + this.fileCount++);
+        this.currentStream = new BufferedOutputStream(new FileOutputStream(this.currentFile), 8 * 1024);
+        return this.currentStream;
+    }
+
+    public String end() throws IOException {
+        String reference = REFERENCE_PREFIX + this.currentFile.getName();
+        this.currentStream.close();
+        this.currentStream = null;
+        this.currentFile = null;
+        return reference;
+    }
+
+    /**
+     * Closes and deletes a value that was started but never finished, e.g. because the payload broke off
+     */
+    public void close() {
+        if (this.currentStream != null) {
+            try {
+                this.currentStream.close();
+            }
+            catch (IOException e) {
+                Trace.w(Trace.STORAGE, LOG_TAG, "Failed to close " + this.currentFile + ": " + e);
+            }
+            this.currentFile.delete();
+            this.currentStream = null;
+            this.currentFile = null;
+        }
+    }
+
+    public static boolean isReference(String content) {
+        return content != null && content.startsWith(REFERENCE_PREFIX);
+    }
+
+    /**
+     * Returns content as stored in the content column, reading it from its file if it was stored as a reference.
+     * Returns null if the file has gone.
+     */
+    public static String resolve(Context context, String content) {
+        if (!isReference(content)) {
+            return content;
+        }
+
+        File file = new File(getDirectory(context), content.substring(REFERENCE_PREFIX.length()));
+        Reader reader = null;
+        try {
+            reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+            StringBuilder value = new StringBuilder((int)Math.min(file.length(), Integer.MAX_VALUE));
+            char[] buffer = new char[4 * 1024];
+            int read;
+            while ((read = reader.read(buffer)) >= 0) {
+                value.append(buffer, 0, read);
+            }
+            return value.toString();
+        }
+        catch (IOException e) {
+            Trace.w(Trace.STORAGE, LOG_TAG, "Failed to read " + file + ": " + e);
+            return null;
+        }
+        finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                }
+                catch (IOException e) {
+                    Trace.w(Trace.STORAGE, LOG_TAG, "Failed to close " + file + ": " + e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Deletes the files in directory whose references aren't in the given set
+     * 
+     * @return the number of files deleted
+     */
+    static int deleteUnreferenced(File directory, Set<String> references) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        int deletedFiles = 0;
+        for (File file : files) {
+            if (!references.contains(REFERENCE_PREFIX + file.getName()) && file.delete()) {
+                deletedFiles++;
+            }
+        }
+        return deletedFiles;
+    }
+}
@@ -0,0 +1,71 @@
+/**
+ * Copyright (C) 2010 Grameen Foundation
+Licensed under the Apache License, Version 2.0 (the "License"); you may not
+use this file except in compliance with the License. You may obtain a copy of
+the License at http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations under
+the License.
+ */
+
+package applab.search.client;
+
+import java.util.zip.Checksum;
+
+/**
+ * The CRC-32 java.util.zip.CRC32 computes, but able to carry on from a value computed earlier. A keyword ingest that
+ * resumes with a Range request never sees the bytes before its checkpoint again, so its checksum has to start from
+ * the one the checkpoint stored.
+ *
+ * This is plain Java, slower than CRC32's native code, so it is only used where that can't be.
+ */
+public class ContinuedCrc32 implements Checksum {
+    private static final int[] TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < TABLE.length; i++) {
+            int value = i;
+            for (int bit = 0; bit < 8; bit++) {
+                value = (value & 1) != 0 ? (value >>> 1) ^ 0xEDB88320 : value >>> 1;
+            }
+            TABLE[i] = value;
+        }
+    }
+
+    private final long initialValue;
+    private int crc;
+
+    /**
+     * @param initialValue
+     *            the value of a CRC32 over the bytes that came before
+     */
+    public ContinuedCrc32(long initialValue) {
+        this.initialValue = initialValue;
+        reset();
+    }
+
+    public void update(int value) {
+        this.crc = TABLE[(this.crc ^ value) & 0xff] ^ (this.crc >>> 8);
+    }
+
+    public void update(byte[] buffer, int offset, int length) {
+        int crc = this.crc;
+        for (int end = offset + length; offset < end; offset++) {
+            crc = TABLE[(crc ^ buffer[offset]) & 0xff] ^ (crc >>> 8);
+        }
+        this.crc = crc;
+    }
+
+    public long getValue() {
+        return ~this.crc & 0xffffffffL;
+    }
+
+    /**
+     * Goes back to the initial value
+     */
+    public void reset() {
+        this.crc = ~(int)this.initialValue;
+    }
+}
@@ -0,0 +1,80 @@
+/**
+ * Copyright (C) 2010 Grameen Foundation
+Licensed under the Apache License, Version 2.0 (the "License"); you may not
+use this file except in compliance with the License. You may obtain a copy of
+the License at http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations under
+the License.
+ */
+
+package applab.search.client;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Input stream that counts the bytes read through it and the time spent waiting on the stream underneath. Placed
+ * either side of a decompressor it tells us how many bytes came over the wire and what inflating them cost.
+ */
+public class CountingInputStream extends FilterInputStream {
+    private long count;
+    private long readTime;
+
+    public CountingInputStream(InputStream inputStream) {
+        super(inputStream);
+    }
+
+    /**
+     * returns the number of bytes read (or skipped) so far
+     */
+    public long getCount() {
+        return this.count;
+    }
+
+    /**
+     * returns the total time spent inside read and skip calls
+     */
+    public long getReadMilliseconds() {
+        return this.readTime / 1000000L;
+    }
+
+    @Override
+    public int read() throws IOException {
+        long startTime = System.nanoTime();
+        int value = super.read();
+        this.readTime += System.nanoTime() - startTime;
+        if (value >= 0) {
+            this.count++;
+        }
+        return value;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        long startTime = System.nanoTime();
+        int read = super.read(buffer, offset, length);
+        this.readTime += System.nanoTime() - startTime;
+        if (read > 0) {
+            this.count += read;
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(long length) throws IOException {
+        long startTime = System.nanoTime();
+        long skipped = super.skip(length);
+        this.readTime += System.nanoTime() - startTime;
+        this.count += skipped;
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+}
@@ -23,6 +23,10 @@ public class GlobalConstants {
     public static final int KEYWORD_PARSE_ERROR = 5;
     public static final int DISMISS_WAIT_DIALOG = 6;
     public static final int KEYWORD_PARSE_GOT_NODE_TOTAL = 7;
+    public static final int KEYWORD_PARSE_PROGRESS = 8;
+    public static final int KEYWORD_SYNC_CANCELLED = 9;
+    public static final int KEYWORD_SYNC_TIMED_OUT = 10;
+    public static final int KEYWORD_SYNC_STALLED = 11;
 
     public static final int UPDATE_DIALOG = 0;
     public static final int CONNECT_DIALOG = 1;
@@ -33,10 +37,28 @@ public class GlobalConstants {
 
     public static final String FARMER_REG_FORM_HASH = "farmerRegistrationFormHash";
 
+    /** Background synchronization schedule, see SyncScheduler **/
+    public static final String LAST_SYNC_SUCCESS_KEY = "lastSynchronizationSuccess";
+    public static final String LAST_SYNC_ATTEMPT_KEY = "lastSynchronizationAttempt";
+    public static final String SYNC_FAILURE_COUNT_KEY = "synchronizationFailures";
+    public static final String SYNC_NOT_BEFORE_KEY = "synchronizationNotBefore";
+    public static final String SYNC_JITTER_KEY = "synchronizationJitter";
+
+    /** Records per page the last paged keyword update settled on, see KeywordPageSizer **/
+    public static final String KEYWORD_PAGE_SIZE_KEY = "keywordPageSize";
+
     /** The new tables **/
     public static final String MENU_TABLE_NAME = "menu";
     public static final String MENU_ITEM_TABLE_NAME = "menu_item";
 
+    /** Where a keyword update is built before it is swapped in **/
+    public static final String MENU_STAGING_TABLE_NAME = "menu_staging";
+    public static final String MENU_ITEM_STAGING_TABLE_NAME = "menu_item_staging";
+
+    /** Bookkeeping for resumable keyword ingest **/
+    public static final String INGEST_CHECKPOINT_TABLE_NAME = "ingest_checkpoint";
+    public static final String INGEST_SEEN_TABLE_NAME = "ingest_seen";
+
     /** current user name or id */
     public static String intervieweeName;
 
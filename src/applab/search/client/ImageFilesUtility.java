@@ -27,7 +27,6 @@ import android.graphics.BitmapFactory;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.os.Environment;
-import android.util.Log;
 import applab.client.search.R;
 
 /**
@@ -52,6 +51,15 @@ public class ImageFilesUtility {
         }
     }
 
+    /**
+     * True if name can be used as a file name under the image folder as it is: not empty and with no path in it, so
+     * it can't point anywhere else
+     */
+    public static boolean isPlainFileName(String name) {
+        return name != null && name.length() > 0 && !name.equals(".") && !name.equals("..")
+                && name.indexOf('/') < 0 && name.indexOf('\\') < 0 && name.indexOf('\0') < 0;
+    }
+
     public static boolean createRootFolder() {
         if (storageReady()) {
             File dir = new File(ROOT);
@@ -182,7 +190,7 @@ public class ImageFilesUtility {
         File dir = new File(ROOT);
 
         for (File file : dir.listFiles()) {
-            Log.d("FILES", file.getName());
+            Trace.v(Trace.IMAGES, "FILES", file.getName());
             if (fileName != null && file.getName().contains(fileName.toLowerCase())) {
                 return file.getAbsolutePath();
             }
@@ -202,7 +210,7 @@ public class ImageFilesUtility {
             return sha1;
         }
         catch (NoSuchAlgorithmException e) {
-            Log.e("SHA1", e.getMessage());
+            Trace.e(Trace.IMAGES, "SHA1", e.getMessage());
             return null;
         }
     }
@@ -215,7 +223,7 @@ public class ImageFilesUtility {
             // Get the size of the file
             long length = file.length();
             if (length > Integer.MAX_VALUE) {
-                Log.e("", "File " + file.getName() + "is too large");
+                Trace.e(Trace.IMAGES, "", "File " + file.getName() + "is too large");
                 return null;
             }
             // Create the byte array to hold the data
@@ -231,19 +239,19 @@ public class ImageFilesUtility {
                 }
             }
             catch (IOException e) {
-                Log.e(LOG_TAG, "Cannot read " + file.getName());
+                Trace.e(Trace.IMAGES, LOG_TAG, "Cannot read ", file.getName());
                 e.printStackTrace();
                 return null;
             }
             // Ensure all the bytes have been read in
             if (offset < bytes.length) {
-                Log.e(LOG_TAG, "Could not completely read file " + file.getName());
+                Trace.e(Trace.IMAGES, LOG_TAG, "Could not completely read file ", file.getName());
                 return null;
             }
             return bytes;
         }
         catch (FileNotFoundException e) {
-            Log.e(LOG_TAG, "Cannot find " + file.getName());
+            Trace.e(Trace.IMAGES, LOG_TAG, "Cannot find ", file.getName());
             e.printStackTrace();
             return null;
         }
@@ -253,7 +261,7 @@ public class ImageFilesUtility {
                 is.close();
             }
             catch (IOException e) {
-                Log.e(LOG_TAG, "Cannot close input stream for " + file.getName());
+                Trace.e(Trace.IMAGES, LOG_TAG, "Cannot close input stream for ", file.getName());
                 e.printStackTrace();
                 return null;
             }
@@ -15,6 +15,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -27,7 +28,6 @@ import javax.xml.parsers.SAXParserFactory;
 import org.apache.http.entity.StringEntity;
 import org.xml.sax.SAXException;
 
-import android.util.Log;
 import applab.client.ApplabActivity;
 import applab.client.HttpHelpers;
 import applab.client.XmlEntityBuilder;
@@ -40,6 +40,7 @@ public class ImageManager {
     private final static String REQUEST_ELEMENT_NAME = "GetImagesRequest";
     private static final String IMAGE_PATH = "search/getImages";
     final static String IMAGE_ELEMENT_NAME = "image";
+    private static final String PARTIAL_IMAGE_SUFFIX = ".part";
 
     /**
      * Submits an image update request and retrieves XML containing image data from remote server
@@ -109,13 +110,13 @@ public class ImageManager {
             }
         }
         catch (SAXException e) {
-            Log.e("ImageManager", "Error while parsing XML: " + e);
+            Trace.e(Trace.IMAGES, "ImageManager", "Error while parsing XML: ", e);
         }
         catch (IOException e) {
-            Log.e("ImageManager", "Error while parsing XML: " + e);
+            Trace.e(Trace.IMAGES, "ImageManager", "Error while parsing XML: ", e);
         }
         catch (ParserConfigurationException e) {
-            Log.e("ImageManager", "Error while parsing XML: " + e);
+            Trace.e(Trace.IMAGES, "ImageManager", "Error while parsing XML: ", e);
         }
     }
 
@@ -135,14 +136,48 @@ public class ImageManager {
     }
 
     public static void getImages (List<String> imageIds) {
+        getImages(imageIds, null);
+    }
+
+    /**
+     * Downloads the given images as part of a synchronization episode, which can stop the downloads part way through
+     * and is told about every byte received.
+     *
+     * Each image is downloaded into the cache directory first (see ResumableDownload), so an image whose download
+     * breaks off is picked up where it left off by the next sync, and only complete images are saved. Ids become file
+     * names, so any that aren't plain file names are skipped.
+     */
+    public static void getImages(List<String> imageIds, SyncEngine syncEngine) {
         if (imageIds != null) {
             for (String imageId : imageIds) {
+                if (syncEngine != null && syncEngine.isStopRequested()) {
+                    Trace.i(Trace.IMAGES, "Image Download", "Synchronization stopped, skipping the remaining images");
+                    break;
+                }
+                if (!ImageFilesUtility.isPlainFileName(imageId)) {
+                    Trace.w(Trace.IMAGES, "Image Download", "Skipping image with invalid id: ", imageId);
+                    JsonSimpleParser.incrementProgressLevel();
+                    continue;
+                }
                 try {
-                    Log.d("Image Download", "Getting " + imageId);
-                    InputStream image = HttpHelpers.getResource(Settings.getNewServerUrl()  + "search/getsfimages?imageId="+imageId);
-                    ImageFilesUtility.writeFile(imageId + ".jpg", image);
+                    Trace.d(Trace.IMAGES, "Image Download", "Getting ", imageId);
+                    String url = Settings.getNewServerUrl() + "search/getsfimages?imageId="
+                            + URLEncoder.encode(imageId, "UTF-8");
+                    ResumableDownload download = new ResumableDownload(url, new File(ApplabActivity
+                            .getGlobalContext().getCacheDir(), imageId + ".jpg" + PARTIAL_IMAGE_SUFFIX));
+                    download.setSyncEngine(syncEngine);
+                    if (download.run()) {
+                        InputStream image = new FileInputStream(download.getFile());
+                        try {
+                            ImageFilesUtility.writeFile(imageId + ".jpg", image);
+                        }
+                        finally {
+                            image.close();
+                        }
+                        download.discard();
+                    }
                 } catch (IOException e) {
-                    Log.e("IOException", e.getMessage());
+                    Trace.e(Trace.IMAGES, "IOException", e.getMessage());
                 }
                 JsonSimpleParser.incrementProgressLevel();
             }
@@ -152,15 +187,25 @@ public class ImageManager {
     public static void deleteImages(List<String> imageIds) {
         if (imageIds != null ) {
             for (String imageId : imageIds) {
-                File file = new File("/sdcard/ckwsearch/", imageId + ".jpg");
-                ImageFilesUtility.deleteFile(file);
+                if (ImageFilesUtility.isPlainFileName(imageId)) {
+                    File file = new File("/sdcard/ckwsearch/", imageId + ".jpg");
+                    ImageFilesUtility.deleteFile(file);
+                }
+                else {
+                    Trace.w(Trace.IMAGES, "Image Download", "Not deleting image with invalid id: ", imageId);
+                }
                 JsonSimpleParser.incrementProgressLevel();
             }
         }
     }
 
     public static void updatePhoneImages(List<String> updatedImageIds, List<String> deletedImageIds) {
-        getImages(updatedImageIds);
+        updatePhoneImages(updatedImageIds, deletedImageIds, null);
+    }
+
+    public static void updatePhoneImages(List<String> updatedImageIds, List<String> deletedImageIds,
+            SyncEngine syncEngine) {
+        getImages(updatedImageIds, syncEngine);
         deleteImages(deletedImageIds);
     }
 }
@@ -9,7 +9,6 @@ import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
 import org.xml.sax.helpers.DefaultHandler;
 
-import android.util.Log;
 import applab.client.HttpHelpers;
 import applab.client.search.R;
 
@@ -33,12 +32,12 @@ public class ImageXmlParseHandler extends DefaultHandler {
                 if (!this.localImageList.containsKey(imageListKey)) {
                     // Retrieve remote file
                     try {
-                        Log.i("ImageManager", "Fetching: " + source);
+                        Trace.i(Trace.IMAGES, "ImageManager", "Fetching: ", source);
                         InputStream inputStream = HttpHelpers.getResource(source);
                         ImageFilesUtility.writeFile(fileName, inputStream);
                     }
                     catch (IOException e) {
-                        Log.e("ImageManager", "Error while fetching resource: " + e);
+                        Trace.e(Trace.IMAGES, "ImageManager", "Error while fetching resource: ", e);
                     }
                 }
                 else {
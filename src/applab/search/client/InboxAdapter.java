@@ -240,6 +240,10 @@ public class InboxAdapter {
         public long getSearchTableId() {
             return this.searchTableId;
         }
+
+        public SearchRequest getSearchRequest() {
+            return this.searchRequest;
+        }
     }
 
     /**
@@ -0,0 +1,223 @@
+/**
+ * Copyright (C) 2010 Grameen Foundation
+Licensed under the Apache License, Version 2.0 (the "License"); you may not
+use this file except in compliance with the License. You may obtain a copy of
+the License at http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations under
+the License.
+ */
+
+package applab.search.client;
+
+/**
+ * How far a keyword ingest got. Written by KeywordBatchWriter in the same transaction as each batch of rows, so that
+ * after a crash the ingest can pick up after the last committed record instead of re-applying the whole payload.
+ *
+ * A payload is identified by the request that produced it (the keywords version and menu ids we sent) plus a CRC32 of
+ * its bytes up to the checkpoint. A resumed sync re-sends the same request and only skips ahead if the new response
+ * starts with the same bytes. If the response came with a validator (see KeywordRequest), the checkpoint keeps it, so
+ * the resumed request can ask for only the bytes after the checkpoint instead.
+ *
+ * In a paged update the checkpoint also holds the continuation token and size of the page being ingested, so that an
+ * interrupted page can be asked for again exactly and resumed like any other payload. Between pages it sits at the
+ * start of the next page, with no byte offset, and what the earlier pages collected is kept with it.
+ *
+ * The payload's Continuation and NextSyncAfter are kept too, since an ingest that resumes after a record never reads
+ * the top of the payload again.
+ */
+public class IngestCheckpoint {
+    private final String baseVersion;
+    private final String menuIds;
+    private volatile String payloadVersion;
+    private volatile int total = -1;
+    private String continuationToken;
+    private int pageSize;
+    private volatile String nextContinuationToken;
+    private volatile long syncNotBefore;
+    private String payloadValidator;
+    private long byteOffset;
+    private long checksum;
+    private int recordType = KeywordRecord.TYPE_UNKNOWN;
+    private int recordCount;
+
+    /**
+     * @param baseVersion
+     *            the local keywords version sent with the request
+     * @param menuIds
+     *            the comma separated menu ids sent with the request
+     */
+    public IngestCheckpoint(String baseVersion, String menuIds) {
+        this.baseVersion = baseVersion;
+        this.menuIds = menuIds;
+    }
+
+    public String getBaseVersion() {
+        return this.baseVersion;
+    }
+
+    public String getMenuIds() {
+        return this.menuIds;
+    }
+
+    /**
+     * The Version from the payload, or null if the ingest hadn't reached it yet
+     */
+    public String getPayloadVersion() {
+        return this.payloadVersion;
+    }
+
+    public void setPayloadVersion(String payloadVersion) {
+        this.payloadVersion = payloadVersion;
+    }
+
+    /**
+     * The Total from the payload, or -1 if the ingest hadn't reached it yet
+     */
+    public int getTotal() {
+        return this.total;
+    }
+
+    public void setTotal(int total) {
+        this.total = total;
+    }
+
+    /**
+     * The token that asks for the page being ingested, or null for the first page or an update that isn't paged
+     */
+    public String getContinuationToken() {
+        return this.continuationToken;
+    }
+
+    public void setContinuationToken(String continuationToken) {
+        this.continuationToken = continuationToken;
+    }
+
+    /**
+     * Records asked for in the page being ingested, or 0 if the update isn't paged
+     */
+    public int getPageSize() {
+        return this.pageSize;
+    }
+
+    public void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * The Continuation from the payload, which asks for the page after this one, or null if the ingest hadn't reached
+     * it yet or this is the last page
+     */
+    public String getNextContinuationToken() {
+        return this.nextContinuationToken;
+    }
+
+    public void setNextContinuationToken(String nextContinuationToken) {
+        this.nextContinuationToken = nextContinuationToken;
+    }
+
+    /**
+     * The time the payload's NextSyncAfter put background syncs off until, or 0 if the ingest hadn't reached it yet
+     */
+    public long getSyncNotBefore() {
+        return this.syncNotBefore;
+    }
+
+    public void setSyncNotBefore(long syncNotBefore) {
+        this.syncNotBefore = syncNotBefore;
+    }
+
+    /**
+     * The ETag or Last-Modified date of the response being ingested, or null if it had neither or can't be resumed
+     * with a byte range
+     */
+    public String getPayloadValidator() {
+        return this.payloadValidator;
+    }
+
+    public void setPayloadValidator(String payloadValidator) {
+        this.payloadValidator = payloadValidator;
+    }
+
+    /**
+     * Offset of the first payload byte after the last committed record
+     */
+    public long getByteOffset() {
+        return this.byteOffset;
+    }
+
+    /**
+     * CRC32 of the payload bytes before getByteOffset()
+     */
+    public long getChecksum() {
+        return this.checksum;
+    }
+
+    /**
+     * The KeywordRecord type of the last committed record, i.e. the array the payload resumes in
+     */
+    public int getRecordType() {
+        return this.recordType;
+    }
+
+    /**
+     * Number of records committed so far
+     */
+    public int getRecordCount() {
+        return this.recordCount;
+    }
+
+    /**
+     * True if at least one record has been committed, so there is somewhere to resume from
+     */
+    public boolean canResume() {
+        return this.byteOffset > 0 && this.recordType != KeywordRecord.TYPE_UNKNOWN;
+    }
+
+    /**
+     * True if an earlier ingest left something to carry on from: committed records of the current payload, or earlier
+     * pages of a paged update
+     */
+    public boolean isInProgress() {
+        return canResume() || this.continuationToken != null;
+    }
+
+    /**
+     * Moves the checkpoint to the start of the page the given token asks for
+     */
+    void startPage(String continuationToken) {
+        this.continuationToken = continuationToken;
+        restartPage();
+    }
+
+    /**
+     * Moves the checkpoint back to the start of the current page, so the page is fetched and applied again from the
+     * top. Records are upserts and deletes, so applying some of them twice does no harm.
+     */
+    void restartPage() {
+        this.byteOffset = 0;
+        this.checksum = 0;
+        this.recordType = KeywordRecord.TYPE_UNKNOWN;
+        this.nextContinuationToken = null;
+        this.payloadValidator = null;
+    }
+
+    /**
+     * Moves the checkpoint past the given record
+     */
+    void advance(KeywordRecord record) {
+        this.byteOffset = record.getEndOffset();
+        this.checksum = record.getEndChecksum();
+        this.recordType = record.getType();
+        this.recordCount++;
+    }
+
+    void restore(long byteOffset, long checksum, int recordType, int recordCount) {
+        this.byteOffset = byteOffset;
+        this.checksum = checksum;
+        this.recordType = recordType;
+        this.recordCount = recordCount;
+    }
+}
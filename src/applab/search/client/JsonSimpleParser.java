@@ -15,9 +15,9 @@ package applab.search.client;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Set;
+import java.util.zip.Checksum;
 
 import javax.xml.parsers.FactoryConfigurationError;
 import org.json.simple.parser.ContentHandler;
@@ -26,10 +26,10 @@ import org.json.simple.parser.ParseException;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import android.content.ContentValues;
+import android.content.Context;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
-import android.util.Log;
 import applab.client.ApplabActivity;
 import applab.client.PropertyStorage;
 
@@ -41,37 +41,102 @@ public class JsonSimpleParser {
     /** for debugging purposes in adb logcat */
     private static final String LOG_TAG = "JsonSimpleParser";
     private static final String VERSION_ATTRIBUTE_NAME = "Version";
-    private static int progressLevel = 0;
     private Storage storage;
+    private KeywordBatchWriter batchWriter;
 
-    /** handler to which progress updates are sent */
-    private static Handler progressHandler;
+    /** whose database and files the update goes to, the application's unless set */
+    private Context context;
+
+    /** number of rows written per ingest transaction */
+    private static int ingestBatchSize = KeywordBatchWriter.DEFAULT_BATCH_SIZE;
+
+    /** when set, parse with json-simple rather than KeywordJsonTokenizer */
+    private static boolean useGenericJsonParser = false;
+
+    /** when set, tokenizing and database writes run on separate threads. Only worth it with more than one core */
+    private static boolean usePipelinedIngest = Runtime.getRuntime().availableProcessors() > 1;
+
+    /**
+     * when set, larger updates are built in staging tables and swapped in at the end, so readers never see partial
+     * state
+     */
+    private static boolean useStagingTables = true;
+
+    /**
+     * updates with fewer records than this go straight into the live tables: copying the tables to stage them would
+     * cost far more than the update, and one batch commits it all at once anyway
+     */
+    private static int stagingThreshold = KeywordBatchWriter.DEFAULT_BATCH_SIZE;
+
+    /** content longer than this many chars is streamed to a file rather than held in memory */
+    private static int maxInlineContentLength = 64 * 1024;
+
+    /** coalesces progress updates for the current sync; static because ImageManager reports through us */
+    private static volatile SyncProgressReporter progressReporter;
 
     private InputStream keywordStream;
 
     /** handler to which responses are sent */
     private Handler responseHandler;
 
-    private static Bundle bundle;
     private JSONParser jsonParser;
     private KeywordParseHandler keywordHandler;
     private static Integer nodeCount;
     private String keywordVersion;
-    private Integer addedNodes;
-    private Integer deletedNodes;
+    private int addedNodes;
+    private int deletedNodes;
     public ArrayList<String> menuIdsCollection;
     public ArrayList<String> updatedImages;
     public ArrayList<String> deletedImages;
+    public ArrayList<String> deletedMenuItemIds;
+
+    /** checkpoint to maintain (and maybe resume from), and the checksum of the payload bytes already skipped */
+    private IngestCheckpoint checkpoint;
+    private Checksum checkpointChecksum;
+    private boolean checkpointing;
+
+    /** true if this update is being written to the staging tables */
+    private boolean staged;
+
+    /** true if keywordStream holds a binary snapshot rather than JSON */
+    private boolean binaryPayload;
+
+    /** takes content too large to keep in memory */
+    private ContentFileStore contentStore;
+
+    /** told when we move on to images, if this ingest is part of a synchronization episode */
+    private SyncEngine syncEngine;
+
+    /** true if updatedImages and deletedImages are left for the caller to apply */
+    private boolean deferImages;
+
+    /** whether a broken download is reported to the response handler, or left to the caller to retry */
+    private boolean reportDownloadFailure = true;
+    private boolean downloadFailed;
+
+    /** set once the update has been applied and its version stored */
+    private boolean successful;
+
+    /** the token asking for the next page of a paged update, if the payload said there is one */
+    private volatile String continuationToken;
+    private boolean morePages;
 
     public JsonSimpleParser(Handler progressHandler,
             Handler responseHandler, InputStream newKeywordStream) {
+        this(new SyncProgressReporter(progressHandler), responseHandler, newKeywordStream);
+    }
+
+    public JsonSimpleParser(SyncProgressReporter progressReporter,
+            Handler responseHandler, InputStream newKeywordStream) {
         this.keywordStream = newKeywordStream;
         this.responseHandler = responseHandler;
-        JsonSimpleParser.progressHandler = progressHandler;
+        JsonSimpleParser.progressReporter = progressReporter;
+        JsonSimpleParser.nodeCount = null;
         this.keywordHandler = new KeywordParseHandler();
         menuIdsCollection = new ArrayList<String>();
         updatedImages = new ArrayList<String>();
         deletedImages = new ArrayList<String>();
+        deletedMenuItemIds = new ArrayList<String>();
 
         try {
             this.jsonParser = new JSONParser();
@@ -81,6 +146,84 @@ public class JsonSimpleParser {
         }
     }
 
+    /**
+     * Keeps an IngestCheckpoint up to date while ingesting. If the checkpoint can be resumed from, the keyword stream
+     * must already be positioned at its byte offset and checksum must cover the bytes before it.
+     */
+    public void setCheckpoint(IngestCheckpoint checkpoint, Checksum checksum) {
+        this.checkpoint = checkpoint;
+        this.checkpointChecksum = checksum;
+    }
+
+    /**
+     * Marks the keyword stream as a binary snapshot (see KeywordBinaryFormat). Binary snapshots are always read with
+     * KeywordBinaryDecoder, whatever parser is configured for JSON, and can't be resumed from a checkpoint.
+     */
+    public void setBinaryPayload(boolean binaryPayload) {
+        this.binaryPayload = binaryPayload;
+    }
+
+    /**
+     * Leaves fetching and deleting images to the caller, who finds them in updatedImages and deletedImages once run()
+     * returns. Used when the images arrive with the keyword update rather than one request each.
+     */
+    public void setDeferImages(boolean deferImages) {
+        this.deferImages = deferImages;
+    }
+
+    /**
+     * Stops a download that breaks off part way through from being reported as KEYWORD_DOWNLOAD_FAILURE, for callers
+     * that retry first. They can check isDownloadFailed() once run() returns.
+     */
+    public void setReportDownloadFailure(boolean reportDownloadFailure) {
+        this.reportDownloadFailure = reportDownloadFailure;
+    }
+
+    /**
+     * True if the last run() stopped because the download broke off. What was committed before that is kept.
+     */
+    public boolean isDownloadFailed() {
+        return this.downloadFailed;
+    }
+
+    /**
+     * Ingests into the database and content files of the given context instead of the application's, so that tests
+     * can leave the live keywords alone
+     */
+    public void setContext(Context context) {
+        this.context = context;
+    }
+
+    /**
+     * Reports the images phase of the synchronization episode this ingest belongs to, and stops the ingest if that
+     * episode is cancelled or stopped by its watchdog
+     */
+    public void setSyncEngine(SyncEngine syncEngine) {
+        this.syncEngine = syncEngine;
+    }
+
+    /**
+     * True if the last run() ingested one page of a paged update and there are more to come. The checkpoint has moved
+     * on to the next page; nothing is applied until the last page has been ingested.
+     */
+    public boolean hasMorePages() {
+        return this.morePages;
+    }
+
+    /**
+     * True if the last run() applied the update
+     */
+    public boolean isSuccessful() {
+        return this.successful;
+    }
+
+    /**
+     * Checkpoints need the keyword tokenizer; the generic json-simple parser can't resume
+     */
+    public static boolean supportsCheckpoints() {
+        return !useGenericJsonParser;
+    }
+
     /**
      * Obsoleted: loading the xml file into DOM takes a lot of memory. Now using walk() instead, which uses
      * XMLPullParser
@@ -91,65 +234,402 @@ public class JsonSimpleParser {
             addedNodes = 0;
             deletedNodes = 0;
 
-            this.storage = new Storage(ApplabActivity.getGlobalContext());
+            Context context = (this.context != null) ? this.context : ApplabActivity.getGlobalContext();
+            this.storage = new Storage(context);
             this.storage.open();
 
-            while (!this.keywordHandler.isEnd()) {
-                jsonParser.parse(new InputStreamReader(this.keywordStream), (org.json.simple.parser.ContentHandler)this.keywordHandler,
-                        true);
-                if (this.keywordHandler.versionFound()) {
-                    keywordVersion = this.keywordHandler.getVersion();
-                }
+            this.checkpointing = !useGenericJsonParser && !this.binaryPayload && this.checkpoint != null;
+            if (isResuming()) {
+                // an interrupted update has to be finished the way it was started, whatever the current setting
+                openBatchWriter(this.storage.hasStagedTables());
             }
+            else if (!useStagingTables) {
+                openBatchWriter(false);
+            }
+            // otherwise the writer is opened once the payload's Total tells us whether the update is worth staging
 
-            // Update and delete images
-            ImageManager.updatePhoneImages(updatedImages, deletedImages);
+            this.contentStore = new ContentFileStore(ContentFileStore.getDirectory(context));
 
-            // Delete menus that we do not need
-            deleteOldMenus();
+            if (useGenericJsonParser && !this.binaryPayload) {
+                parseWithJsonSimple();
+            }
+            else {
+                KeywordRecordSource source;
+                if (this.binaryPayload) {
+                    KeywordBinaryDecoder decoder = new KeywordBinaryDecoder(this.keywordStream);
+                    decoder.setLargeValueStore(this.contentStore, maxInlineContentLength);
+                    source = decoder;
+                }
+                else {
+                    KeywordJsonTokenizer tokenizer = new KeywordJsonTokenizer(this.keywordStream);
+                    tokenizer.setLargeValueStore(this.contentStore, maxInlineContentLength);
+                    if (this.checkpointing) {
+                        startCheckpointing(tokenizer);
+                    }
+                    source = tokenizer;
+                }
+                if (usePipelinedIngest) {
+                    // tokenize on a separate thread while this one writes to the database
+                    new KeywordIngestPipeline(source, new TokenizerListener(), KeywordIngestPipeline.DEFAULT_CAPACITY).run();
+                }
+                else {
+                    source.parse(new TokenizerListener(), new KeywordRecord());
+                }
+            }
 
             if (nodeCount == null || keywordVersion == null) {
+                // Don't apply a payload that is missing its header
+                closeBatchWriter();
+                discardUpdate();
+                this.responseHandler.sendEmptyMessage(GlobalConstants.KEYWORD_PARSE_ERROR);
+                return;
+            }
+            getBatchWriter();
+
+            if (this.batchWriter.getFailedRows() > 0) {
+                // Storing the version of an update with rows missing would stop the next sync from fetching them
+                Trace.e(Trace.PARSER, LOG_TAG, "Keyword rows failed to write: ", this.batchWriter.getFailedRows());
+                this.batchWriter.rollback();
+                this.batchWriter = null;
+                discardUpdate();
                 this.responseHandler.sendEmptyMessage(GlobalConstants.KEYWORD_PARSE_ERROR);
+                return;
+            }
+
+            if (this.continuationToken != null) {
+                if (this.checkpoint == null || this.binaryPayload) {
+                    // without a checkpoint to carry the pages in between, they would be lost
+                    closeBatchWriter();
+                    discardUpdate();
+                    this.responseHandler.sendEmptyMessage(GlobalConstants.KEYWORD_PARSE_ERROR);
+                    return;
+                }
+
+                // Keep what this page collected and wait for the next one before applying anything
+                this.checkpoint.startPage(this.continuationToken);
+                this.batchWriter.saveCheckpoint();
+                closeBatchWriter();
+                progressReporter.flush();
+                this.morePages = true;
+                Trace.d(Trace.PARSER, LOG_TAG, "Ingested a page of keywords, " + this.checkpoint.getRecordCount()
+                        + " records so far");
+                return;
+            }
+
+            // Delete menus that we do not need, and whatever was under deleted items, and commit the last batch before
+            // we go out to fetch images
+            suspendStallCheck();
+            try {
+                deletedNodes += batchWriter.deleteMenuItemSubtrees(deletedMenuItemIds);
+                deleteOldMenus();
+                closeBatchWriter();
+
+                if (this.staged) {
+                    // Readers switch over to the new keywords in one step
+                    this.storage.swapInStagedTables();
+                }
+                this.storage.deleteUnreferencedContentFiles();
             }
-            else if (keywordVersion != "") {
+            finally {
+                resumeStallCheck();
+            }
+
+            // Update and delete images, unless our caller is taking care of them
+            if (!this.deferImages) {
+                if (this.syncEngine != null) {
+                    this.syncEngine.advance(SyncEngine.IMAGES);
+                }
+                ImageManager.updatePhoneImages(updatedImages, deletedImages, this.syncEngine);
+            }
+            progressReporter.flush();
+
+            if (keywordVersion != "") {
                 JsonSimpleParser.storeKeywordsVersion(keywordVersion);
-                Log.d(LOG_TAG, "Stored version: " + keywordVersion);
+                clearCheckpoint();
+                this.successful = true;
+                Trace.d(Trace.PARSER, LOG_TAG, "Stored version: ", keywordVersion);
 
                 // let UI handler know
-                Log.d(LOG_TAG, "Finished Parsing Keywords ... Added: " + addedNodes + ", Deleted: " + deletedNodes);
+                Trace.d(Trace.PARSER, LOG_TAG, "Finished Parsing Keywords ... Added: " + addedNodes + ", Deleted: "
+                        + deletedNodes);
                 this.responseHandler.sendEmptyMessage(GlobalConstants.KEYWORD_PARSE_SUCCESS);
             }
         }
         catch (IOException e) {
+            if (isCancelled()) {
+                rollbackUpdate();
+                Trace.i(Trace.PARSER, LOG_TAG, "Keyword ingest cancelled after " + addedNodes + " records");
+                return;
+            }
+            if (isStopped()) {
+                // the watchdog gave up on a slow sync. Like a broken download, keep what was committed so the next
+                // sync can resume; the sync manager reports why we stopped
+                Trace.i(Trace.PARSER, LOG_TAG, "Keyword ingest stopped after " + addedNodes + " records");
+                return;
+            }
+
+            // We parse straight off the network stream, so a read failure here means the download broke off
+            this.downloadFailed = true;
+            if (this.reportDownloadFailure) {
+                this.responseHandler.sendEmptyMessage(GlobalConstants.KEYWORD_DOWNLOAD_FAILURE);
+            }
+            Trace.d(Trace.PARSER, LOG_TAG, "IOException: ", e);
+        }
+        catch (ParseException e) {
+            closeBatchWriter();
+            discardUpdate();
             this.responseHandler.sendEmptyMessage(GlobalConstants.KEYWORD_PARSE_ERROR);
-            Log.d(LOG_TAG, "IOException: " + e);
+            Trace.d(Trace.PARSER, LOG_TAG, "ParseException: ", e);
         }
         catch (IllegalStateException e) {
+            closeBatchWriter();
+            discardUpdate();
             this.responseHandler.sendEmptyMessage(GlobalConstants.KEYWORD_PARSE_ERROR);
-            Log.d(LOG_TAG, "IllegalStateException: " + e);
+            Trace.d(Trace.PARSER, LOG_TAG, "IllegalStateException: ", e);
         }
         finally {
+            closeBatchWriter();
+            if (this.contentStore != null) {
+                this.contentStore.close();
+            }
             if (this.storage != null) {
                 this.storage.close();
             }
         }
     }
 
-    private void deleteOldMenus() {
-        ArrayList<String> localMenuIds = storage.getLocalMenuIds();
-
-        // Check if local menu ids match the new ones; if local id doesn't exist
-        // among new ids delete it and all its children
-        if (!localMenuIds.isEmpty()) {
-            for (int i = 0; i < menuIdsCollection.size(); i++) {
-                if (!menuIdsCollection.contains(localMenuIds.get(i))) {
-                    storage.deleteMenuEntry(localMenuIds.get(i));
-                    storage.deleteMenuItemEntry(
-                            localMenuIds.get(i));
-                    deletedNodes++;
-                }
+    /**
+     * The original parse path, driving json-simple's generic parser. Kept so the two can be compared.
+     */
+    private void parseWithJsonSimple() throws ParseException, IOException {
+        while (!this.keywordHandler.isEnd()) {
+            jsonParser.parse(new InputStreamReader(this.keywordStream), (org.json.simple.parser.ContentHandler)this.keywordHandler,
+                    true);
+            if (this.keywordHandler.versionFound()) {
+                keywordVersion = this.keywordHandler.getVersion();
+            }
+        }
+    }
+
+    /**
+     * Turns on checkpoints for this ingest and, when resuming or carrying on with a paged update, restores what the
+     * earlier ingests had collected. When resuming, also positions the tokenizer after the last committed record.
+     */
+    private void startCheckpointing(KeywordJsonTokenizer tokenizer) {
+        tokenizer.trackChecksum(this.checkpointChecksum, this.checkpoint.getByteOffset());
+        if (!this.checkpoint.isInProgress()) {
+            return;
+        }
+
+        Trace.i(Trace.PARSER, LOG_TAG, "Resuming keyword ingest after " + this.checkpoint.getRecordCount()
+                + " records, at byte " + this.checkpoint.getByteOffset());
+        menuIdsCollection.addAll(this.storage.getIngestSeenIds(KeywordRecord.TYPE_MENU));
+        updatedImages.addAll(this.storage.getIngestSeenIds(KeywordRecord.TYPE_IMAGE));
+        deletedImages.addAll(this.storage.getIngestSeenIds(KeywordRecord.TYPE_DELETED_IMAGE));
+        deletedMenuItemIds.addAll(this.storage.getIngestSeenIds(KeywordRecord.TYPE_DELETED_MENU_ITEM));
+        if (this.checkpoint.getPayloadVersion() != null) {
+            keywordVersion = this.checkpoint.getPayloadVersion();
+        }
+        if (this.checkpoint.getTotal() >= 0) {
+            onNodeTotal(this.checkpoint.getTotal());
+        }
+        if (this.checkpoint.getNextContinuationToken() != null) {
+            // without it a resumed page would be taken for the last one
+            this.continuationToken = this.checkpoint.getNextContinuationToken();
+        }
+        if (this.checkpoint.getSyncNotBefore() > 0) {
+            SyncScheduler.setNotBefore(this.checkpoint.getSyncNotBefore());
+        }
+        progressReporter.add(this.checkpoint.getRecordCount());
+        if (this.checkpoint.canResume()) {
+            tokenizer.resumeAfterRecord(this.checkpoint.getRecordType());
+        }
+    }
+
+    /**
+     * Abandons an update that can't be applied. Staged changes are simply dropped, leaving the live tables as they
+     * were.
+     */
+    private void discardUpdate() {
+        if (this.storage == null) {
+            return;
+        }
+        suspendStallCheck();
+        try {
+            if (this.staged) {
+                this.storage.discardStagedTables();
+            }
+            this.storage.deleteUnreferencedContentFiles();
+            clearCheckpoint();
+        }
+        finally {
+            resumeStallCheck();
+        }
+    }
+
+    /**
+     * Bulk database work moves no bytes, so the watchdog mustn't take it for a stalled download
+     */
+    private void suspendStallCheck() {
+        if (this.syncEngine != null) {
+            this.syncEngine.suspendStallCheck();
+        }
+    }
+
+    private void resumeStallCheck() {
+        if (this.syncEngine != null) {
+            this.syncEngine.resumeStallCheck();
+        }
+    }
+
+    /**
+     * Abandons an update the user has cancelled. The open batch is rolled back; a staged update is dropped along with
+     * its checkpoint, while an unstaged one keeps the checkpoint of the batches it already committed so the next sync
+     * can finish them off.
+     */
+    private void rollbackUpdate() {
+        if (this.batchWriter != null) {
+            this.batchWriter.rollback();
+            this.batchWriter = null;
+        }
+        if (this.staged) {
+            discardUpdate();
+        }
+        else if (this.storage != null) {
+            this.storage.deleteUnreferencedContentFiles();
+        }
+    }
+
+    private boolean isCancelled() {
+        return this.syncEngine != null && this.syncEngine.isCancelRequested();
+    }
+
+    private boolean isStopped() {
+        return this.syncEngine != null && this.syncEngine.isStopRequested();
+    }
+
+    /**
+     * Called before each record is saved, so a stopped ingest stops on a record boundary
+     */
+    private void checkCancelled() throws InterruptedIOException {
+        if (isStopped()) {
+            throw new InterruptedIOException("Keyword ingest stopped");
+        }
+    }
+
+    private void clearCheckpoint() {
+        if (this.checkpoint != null) {
+            this.storage.clearIngestCheckpoint();
+        }
+    }
+
+    /**
+     * Opens the batch writer, first copying the live tables into the staging tables if the update is to be staged
+     * (unless an interrupted staged update left them behind)
+     */
+    private void openBatchWriter(boolean staged) {
+        suspendStallCheck();
+        try {
+            if (staged) {
+                this.storage.beginStagedIngest(isResuming());
             }
+            else if (!isResuming() && this.storage.hasStagedTables()) {
+                // left over from an abandoned update; a resumed ingest mustn't mistake them for ours
+                this.storage.discardStagedTables();
+            }
+        }
+        finally {
+            resumeStallCheck();
+        }
+        this.staged = staged;
+        this.batchWriter = this.storage.createKeywordBatchWriter(ingestBatchSize, staged);
+        if (this.checkpointing) {
+            this.batchWriter.enableCheckpoints(this.checkpoint);
+        }
+    }
+
+    /**
+     * True if this ingest carries on from a checkpoint: an interrupted ingest or the next page of a paged update
+     */
+    private boolean isResuming() {
+        return this.checkpointing && this.checkpoint.isInProgress();
+    }
+
+    /**
+     * The batch writer, opened on first use. By then the payload's header has told us its Total, unless it put its
+     * records first, in which case we stage to be safe.
+     */
+    private KeywordBatchWriter getBatchWriter() {
+        if (this.batchWriter == null) {
+            Integer total = nodeCount;
+            openBatchWriter(useStagingTables && (total == null || total.intValue() >= stagingThreshold));
+        }
+        return this.batchWriter;
+    }
+
+    private void closeBatchWriter() {
+        if (this.batchWriter != null) {
+            this.batchWriter.close();
+            this.batchWriter = null;
+        }
+    }
+
+    /**
+     * Sets the longest content, in chars, that is held in memory while ingesting. Longer content is streamed to a file
+     * under the files directory as it is parsed. Doesn't apply to the generic json-simple parser, which always
+     * materializes whole values.
+     */
+    public static void setMaxInlineContentLength(int maxInlineContentLength) {
+        JsonSimpleParser.maxInlineContentLength = maxInlineContentLength;
+    }
+
+    /**
+     * Sets how many rows are written per ingest transaction. Larger batches mean fewer commits but hold the database
+     * lock for longer.
+     */
+    public static void setIngestBatchSize(int batchSize) {
+        JsonSimpleParser.ingestBatchSize = batchSize;
+    }
+
+    /**
+     * Switches back to the generic json-simple parser instead of the keyword tokenizer. Both store the same data; this
+     * is here for comparisons and as a fallback.
+     */
+    public static void setUseGenericJsonParser(boolean useGenericJsonParser) {
+        JsonSimpleParser.useGenericJsonParser = useGenericJsonParser;
+    }
+
+    /**
+     * Turns the two-stage parse/write pipeline on or off. By default it is on for multi-core handsets.
+     */
+    public static void setUsePipelinedIngest(boolean usePipelinedIngest) {
+        JsonSimpleParser.usePipelinedIngest = usePipelinedIngest;
+    }
+
+    /**
+     * Turns staged ingest on or off. When off, updates are written straight into the live menu tables.
+     */
+    public static void setUseStagingTables(boolean useStagingTables) {
+        JsonSimpleParser.useStagingTables = useStagingTables;
+    }
+
+    /**
+     * Sets the fewest records an update must carry to be built in the staging tables rather than written straight into
+     * the live ones. 0 stages every update.
+     */
+    public static void setStagingThreshold(int stagingThreshold) {
+        JsonSimpleParser.stagingThreshold = stagingThreshold;
+    }
+
+    /**
+     * Deletes local menus that are no longer in the payload, and all their items
+     */
+    private void deleteOldMenus() {
+        // An update that carries no menus leaves the ones we have alone, rather than wiping them all
+        if (menuIdsCollection.isEmpty()) {
+            return;
         }
+        deletedNodes += batchWriter.deleteStaleMenus(menuIdsCollection);
     }
 
     /**
@@ -176,15 +656,82 @@ public class JsonSimpleParser {
         storage.insertContent(GlobalConstants.MENU_ITEM_TABLE_NAME, addValues);
     }
 
+    /**
+     * Stores or applies one record of the payload. Called by both the tokenizer and the json-simple handler.
+     */
+    private void saveRecord(KeywordRecord recordToSave) {
+        getBatchWriter();
+        try {
+            switch (recordToSave.getType()) {
+                case KeywordRecord.TYPE_MENU:
+                    batchWriter.write(recordToSave);
+
+                    // Add to collection so we can delete the unwanted ones
+                    menuIdsCollection.add(recordToSave.get(KeywordRecord.SLOT_ID));
+                    batchWriter.recordSeen(KeywordRecord.TYPE_MENU, recordToSave.get(KeywordRecord.SLOT_ID));
+                    addedNodes++;
+                    incrementProgressLevel();
+                    break;
+                case KeywordRecord.TYPE_MENU_ITEM:
+                    batchWriter.write(recordToSave);
+                    addedNodes++;
+                    incrementProgressLevel();
+                    break;
+                case KeywordRecord.TYPE_DELETED_MENU_ITEM:
+                    batchWriter.write(recordToSave);
+
+                    // Its descendants are removed once the whole payload is in
+                    if (recordToSave.has(KeywordRecord.SLOT_ID)) {
+                        deletedMenuItemIds.add(recordToSave.get(KeywordRecord.SLOT_ID));
+                    }
+                    batchWriter.recordSeen(KeywordRecord.TYPE_DELETED_MENU_ITEM, recordToSave.get(KeywordRecord.SLOT_ID));
+                    deletedNodes++;
+                    break;
+                case KeywordRecord.TYPE_IMAGE:
+                    updatedImages.add(recordToSave.get(KeywordRecord.SLOT_ID));
+                    batchWriter.recordSeen(KeywordRecord.TYPE_IMAGE, recordToSave.get(KeywordRecord.SLOT_ID));
+                    break;
+                case KeywordRecord.TYPE_DELETED_IMAGE:
+                    deletedImages.add(recordToSave.get(KeywordRecord.SLOT_ID));
+                    batchWriter.recordSeen(KeywordRecord.TYPE_DELETED_IMAGE, recordToSave.get(KeywordRecord.SLOT_ID));
+                    break;
+            }
+            batchWriter.advanceCheckpoint(recordToSave);
+        }
+        catch (Exception e) {
+           Trace.e(Trace.PARSER, LOG_TAG, e.getMessage());
+        }
+    }
+
+    /**
+     * Records the total number of nodes in the payload and lets the UI switch to the parse progress dialog
+     */
+    private void onNodeTotal(int total) {
+        nodeCount = total;
+        Trace.d(Trace.PARSER, LOG_TAG, "Total nodes: ", nodeCount);
+
+        SyncProgressReporter reporter = progressReporter;
+        if (reporter != null) {
+            reporter.setTotal(total);
+        }
+
+        // Show parse dialog (send signal with total node count)
+        Message message = responseHandler.obtainMessage();
+        Bundle bundle = new Bundle();
+        bundle.putInt("nodeCount", nodeCount);
+        message.what = GlobalConstants.KEYWORD_PARSE_GOT_NODE_TOTAL;
+        message.setData(bundle);
+        responseHandler.sendMessage(message);
+    }
+
     /**
      * Call this each time to increment the progress bar by one level
      */
     static void incrementProgressLevel() {
-        Message message = progressHandler.obtainMessage();
-        bundle.putInt("node", ++progressLevel);
-        Log.d(LOG_TAG, "Processed : " + progressLevel + " of " + nodeCount);
-        message.setData(bundle);
-        progressHandler.sendMessage(message);
+        SyncProgressReporter reporter = progressReporter;
+        if (reporter != null) {
+            reporter.increment();
+        }
     }
 
     /**
@@ -212,6 +759,46 @@ public class JsonSimpleParser {
         return "";
     }
 
+    /**
+     * Receives the payload from the tokenizer or binary decoder. When the pipeline is in use, onVersion and onTotal are called on
+     * the parser thread and onRecord on the writing thread.
+     */
+    private class TokenizerListener implements KeywordRecordSource.Listener {
+        public void onVersion(String version) {
+            keywordVersion = version;
+            if (checkpoint != null) {
+                checkpoint.setPayloadVersion(version);
+            }
+        }
+
+        public void onTotal(int total) {
+            if (checkpoint != null) {
+                checkpoint.setTotal(total);
+            }
+            onNodeTotal(total);
+        }
+
+        public void onNextSyncAfter(int seconds) {
+            SyncScheduler.setNextSyncAfter(seconds);
+            if (checkpoint != null && seconds > 0) {
+                checkpoint.setSyncNotBefore(SyncScheduler.getNotBefore());
+            }
+        }
+
+        public void onContinuation(String token) {
+            continuationToken = token;
+            if (checkpoint != null) {
+                checkpoint.setNextContinuationToken(token);
+            }
+        }
+
+        public KeywordRecord onRecord(KeywordRecord record) throws InterruptedIOException {
+            checkCancelled();
+            saveRecord(record);
+            return record;
+        }
+    }
+
     /**
      * SAX parser handler that processes the Keyword json message
      *
@@ -221,13 +808,11 @@ public class JsonSimpleParser {
         private String version;
         private boolean versionFound = false;
 
-        // Data object
-        private DataObject dataObject = null;
+        // Reusable buffer for the record currently being assembled
+        private final KeywordRecord record = new KeywordRecord();
 
-        private class DataObject {
-            String type;
-            HashMap<String, String> data;
-        }
+        // true between the start and end of an object inside one of the record arrays
+        private boolean inRecord;
 
         private boolean end;
         private String key;
@@ -257,61 +842,14 @@ public class JsonSimpleParser {
 
         @Override
         public boolean endObject() throws ParseException, IOException {
-            if (key != null) {
-                if(null != this.dataObject && null != this.dataObject.data) {
-                    saveObject(this.dataObject);
-                }
+            if (this.inRecord) {
+                this.inRecord = false;
+                checkCancelled();
+                saveRecord(this.record);
             }
             return true;
         }
 
-        private void saveObject(DataObject dataObjectToSave) {
-            try {
-                if(dataObjectToSave.type.equals("Menus")) {
-                    ContentValues addValues = new ContentValues();
-                    Set<String> keys = dataObjectToSave.data.keySet();
-                    for(String key: keys) {
-                        if(key.equals("id")) {
-                            addValues.put(Storage.MENU_ROWID_COLUMN, dataObjectToSave.data.get(key));
-
-                            // Add to collection so we can delete the unwanted ones
-                            menuIdsCollection.add(dataObjectToSave.data.get(key));
-                        }
-                        else {
-                            addValues.put(key, dataObjectToSave.data.get(key));
-                        }
-                    }
-
-                    storage.insertContent(GlobalConstants.MENU_TABLE_NAME, addValues);
-                    addedNodes++;
-                    incrementProgressLevel();
-
-                } else if(dataObjectToSave.type.equals("MenuItems")) {
-                    ContentValues addValues = new ContentValues();
-                    Set<String> keys = dataObjectToSave.data.keySet();
-                    for(String key: keys) {
-                        addValues.put(key, dataObjectToSave.data.get(key));
-                    }
-
-                    storage.insertContent(GlobalConstants.MENU_ITEM_TABLE_NAME, addValues);
-                    addedNodes++;
-                    incrementProgressLevel();
-
-                } else if(dataObjectToSave.type.equals("DeletedMenuItems")) {
-                    storage.deleteMenuItemEntry(dataObjectToSave.data.get("id"));
-                    deletedNodes++;
-
-                } else if(dataObjectToSave.type.equals("Images")) {
-                    updatedImages.add(dataObjectToSave.data.get("id"));
-                } else if(dataObjectToSave.type.equals("DeletedImages")) {
-                    deletedImages.add(dataObjectToSave.data.get("id"));
-                }
-            }
-            catch (Exception e) {
-               Log.e(LOG_TAG, e.getMessage());
-            }
-        }
-
         @Override
         public boolean endObjectEntry() throws ParseException, IOException {
             return true;
@@ -320,36 +858,30 @@ public class JsonSimpleParser {
         @Override
         public boolean primitive(Object value) throws ParseException, IOException {
             if (key != null) {
-                Log.d(LOG_TAG, "Key: " + key);
+                Trace.v(Trace.PARSER, LOG_TAG, "Key: ", key);
                 if(value != null) {
-                    Log.d(LOG_TAG, "Value: " + value.toString());
+                    Trace.v(Trace.PARSER, LOG_TAG, "Value: ", value);
                 } else {
-                    Log.d(LOG_TAG, "Null value");
+                    Trace.v(Trace.PARSER, LOG_TAG, "Null value");
                 }
 
                 if (key.equals("Version")) {
                     versionFound = true;
                     this.version = value.toString();
                     key = null;
-                    Log.d(LOG_TAG, "Keyword version: " + keywordVersion);
+                    Trace.d(Trace.PARSER, LOG_TAG, "Keyword version: ", keywordVersion);
                     return true;
                 }
                 else if(key.equals("Total")) {
-                    nodeCount = Integer.parseInt(value.toString());
-                    Log.d(LOG_TAG, "Total nodes: " + nodeCount);
-
-                    bundle = new Bundle();
-
-                    // Show parse dialog (send signal with total node count)
-                    Message message = responseHandler.obtainMessage();
-                    bundle.putInt("nodeCount", nodeCount);
-                    message.what = GlobalConstants.KEYWORD_PARSE_GOT_NODE_TOTAL;
-                    message.setData(bundle);
-                    responseHandler.sendMessage(message);
+                    onNodeTotal(Integer.parseInt(value.toString()));
                 }
-                else {
-                    if(null != this.dataObject && null != this.dataObject.data) {
-                        this.dataObject.data.put(key.toString(), (null != value)?value.toString():"");
+                else if (key.equals("NextSyncAfter")) {
+                    SyncScheduler.setNextSyncAfter(Integer.parseInt(value.toString()));
+                }
+                else if (this.inRecord) {
+                    int slot = KeywordRecord.slotForKey(key);
+                    if (slot >= 0) {
+                        this.record.set(slot, (null != value) ? value.toString() : "");
                     }
                 }
             }
@@ -360,8 +892,7 @@ public class JsonSimpleParser {
         public boolean startArray() throws ParseException, IOException {
             if (key != null) {
                 // Start handling the key type
-                this.dataObject = new DataObject();
-                this.dataObject.type = key.toString();
+                this.record.setType(KeywordRecord.typeForName(key));
             }
             return true;
         }
@@ -374,10 +905,9 @@ public class JsonSimpleParser {
 
         @Override
         public boolean startObject() throws ParseException, IOException {
-            if (key != null) {
-                if(null != this.dataObject) {
-                    this.dataObject.data = new HashMap<String, String>();
-                }
+            if (key != null && this.record.getType() != KeywordRecord.TYPE_UNKNOWN) {
+                this.record.clear();
+                this.inRecord = true;
             }
             return true;
         }
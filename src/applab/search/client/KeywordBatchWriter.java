@@ -0,0 +1,473 @@
+/**
+ * Copyright (C) 2010 Grameen Foundation
+Licensed under the Apache License, Version 2.0 (the "License"); you may not
+use this file except in compliance with the License. You may obtain a copy of
+the License at http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations under
+the License.
+ */
+
+package applab.search.client;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+
+/**
+ * Bulk writer used while ingesting a keyword update. Rows are written through precompiled statements inside explicit
+ * transactions that are committed every batchSize rows, so we pay for one fsync per batch instead of one per row.
+ *
+ * Create one through Storage.createKeywordBatchWriter() and always call close() when done, which commits the last
+ * partial batch.
+ *
+ * The writer can target either the live menu tables or the staging tables a keyword update is built in.
+ *
+ * With checkpoints enabled, batches are only committed on record boundaries (see advanceCheckpoint()) and every
+ * commit also writes the IngestCheckpoint, so the checkpoint always describes exactly what has been committed.
+ *
+ * A row that fails to write doesn't stop the batch, but it is counted (see getFailedRows()) and the checkpoint is no
+ * longer moved on, so an ingest that is interrupted after a failure comes back to it when it resumes.
+ */
+public class KeywordBatchWriter {
+    private static final String LOG_TAG = "KeywordBatchWriter";
+    public static final int DEFAULT_BATCH_SIZE = 200;
+
+    /** ids per bulk delete, well under SQLite's limit of 999 parameters per statement */
+    private static final int MAX_IDS_PER_DELETE = 500;
+
+    private static final String REPLACE_CHECKPOINT_SQL = "INSERT OR REPLACE INTO "
+            + GlobalConstants.INGEST_CHECKPOINT_TABLE_NAME + " (" + Storage.CHECKPOINT_ROWID_COLUMN + ", "
+            + Storage.CHECKPOINT_BASE_VERSION_COLUMN + ", " + Storage.CHECKPOINT_MENU_IDS_COLUMN + ", "
+            + Storage.CHECKPOINT_PAYLOAD_VERSION_COLUMN + ", " + Storage.CHECKPOINT_TOTAL_COLUMN + ", "
+            + Storage.CHECKPOINT_BYTE_OFFSET_COLUMN + ", " + Storage.CHECKPOINT_CHECKSUM_COLUMN + ", "
+            + Storage.CHECKPOINT_RECORD_TYPE_COLUMN + ", " + Storage.CHECKPOINT_RECORD_COUNT_COLUMN + ", "
+            + Storage.CHECKPOINT_CONTINUATION_COLUMN + ", " + Storage.CHECKPOINT_PAGE_SIZE_COLUMN + ", "
+            + Storage.CHECKPOINT_NEXT_CONTINUATION_COLUMN + ", " + Storage.CHECKPOINT_SYNC_NOT_BEFORE_COLUMN + ", "
+            + Storage.CHECKPOINT_PAYLOAD_VALIDATOR_COLUMN + ") VALUES (0, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    private static final String INSERT_SEEN_SQL = "INSERT OR REPLACE INTO " + GlobalConstants.INGEST_SEEN_TABLE_NAME
+            + " (" + Storage.SEEN_TYPE_COLUMN + ", " + Storage.SEEN_ITEM_ID_COLUMN + ") VALUES (?, ?)";
+
+    private final SQLiteDatabase database;
+    private final int batchSize;
+    private final String menuTable;
+    private final String menuItemTable;
+
+    private SQLiteStatement replaceMenuStatement;
+    private SQLiteStatement replaceMenuItemStatement;
+    private SQLiteStatement deleteMenuStatement;
+    private SQLiteStatement deleteMenuItemStatement;
+    private SQLiteStatement replaceCheckpointStatement;
+    private SQLiteStatement insertSeenStatement;
+
+    /** the checkpoint written with each commit, or null if checkpoints are off */
+    private IngestCheckpoint checkpoint;
+    private boolean checkpointChanged;
+
+    /** number of rows written in the currently open transaction */
+    private int pendingRows;
+
+    /** totals for the lifetime of this writer, used for throughput reporting */
+    private int totalRows;
+    private int failedRows;
+    private long startTime;
+    private long endTime;
+
+    /**
+     * @param menuTable
+     *            the menu table to write to
+     * @param menuItemTable
+     *            the menu item table to write to
+     */
+    KeywordBatchWriter(SQLiteDatabase database, int batchSize, String menuTable, String menuItemTable) {
+        this.database = database;
+        this.batchSize = batchSize > 0 ? batchSize : DEFAULT_BATCH_SIZE;
+        this.menuTable = menuTable;
+        this.menuItemTable = menuItemTable;
+        this.replaceMenuStatement = database.compileStatement("INSERT OR REPLACE INTO " + menuTable + " ("
+                + Storage.MENU_ROWID_COLUMN + ", " + Storage.MENU_LABEL_COLUMN + ") VALUES (?, ?)");
+        this.replaceMenuItemStatement = database.compileStatement("INSERT OR REPLACE INTO " + menuItemTable + " ("
+                + Storage.MENU_ITEM_ROWID_COLUMN + ", " + Storage.MENU_ITEM_LABEL_COLUMN + ", "
+                + Storage.MENU_ITEM_MENUID_COLUMN + ", " + Storage.MENU_ITEM_PARENTID_COLUMN + ", "
+                + Storage.MENU_ITEM_POSITION_COLUMN + ", " + Storage.MENU_ITEM_CONTENT_COLUMN + ", "
+                + Storage.MENU_ITEM_ATTACHMENTID_COLUMN + ") VALUES (?, ?, ?, ?, ?, ?, ?)");
+        this.deleteMenuStatement = database.compileStatement("DELETE FROM " + menuTable + " WHERE "
+                + Storage.MENU_ROWID_COLUMN + " = ?");
+        this.deleteMenuItemStatement = database.compileStatement("DELETE FROM " + menuItemTable + " WHERE "
+                + Storage.MENU_ITEM_ROWID_COLUMN + " = ?");
+        this.startTime = SystemClock.elapsedRealtime();
+    }
+
+    public boolean replaceMenu(String id, String label) {
+        SQLiteStatement statement = this.replaceMenuStatement;
+        bindNullable(statement, 1, id);
+        bindNullable(statement, 2, label);
+        return execute(statement);
+    }
+
+    public boolean replaceMenuItem(String id, String label, String menuId, String parentId, String position,
+                                   String content, String attachmentId) {
+        SQLiteStatement statement = this.replaceMenuItemStatement;
+        bindNullable(statement, 1, id);
+        bindNullable(statement, 2, label);
+        bindNullable(statement, 3, menuId);
+        bindNullable(statement, 4, parentId);
+        bindNullable(statement, 5, position);
+        bindNullable(statement, 6, content);
+        bindNullable(statement, 7, attachmentId);
+        return execute(statement);
+    }
+
+    /**
+     * Writes a Menu or MenuItem record, or applies a DeletedMenuItem record. The record slots are bound directly to
+     * the matching statement. Image records are not stored in the database and are ignored.
+     */
+    public boolean write(KeywordRecord record) {
+        switch (record.getType()) {
+            case KeywordRecord.TYPE_MENU:
+                return replaceMenu(record.get(KeywordRecord.SLOT_ID), record.get(KeywordRecord.SLOT_LABEL));
+            case KeywordRecord.TYPE_MENU_ITEM:
+                SQLiteStatement statement = this.replaceMenuItemStatement;
+                for (int slot = 0; slot < KeywordRecord.SLOT_COUNT; slot++) {
+                    bindNullable(statement, slot + 1, record.get(slot));
+                }
+                return execute(statement);
+            case KeywordRecord.TYPE_DELETED_MENU_ITEM:
+                return deleteMenuItem(record.get(KeywordRecord.SLOT_ID));
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Turns on checkpointing for this ingest. From now on batches are committed by advanceCheckpoint() rather than
+     * after every batchSize rows.
+     */
+    public void enableCheckpoints(IngestCheckpoint checkpoint) {
+        this.checkpoint = checkpoint;
+        this.replaceCheckpointStatement = this.database.compileStatement(REPLACE_CHECKPOINT_SQL);
+        this.insertSeenStatement = this.database.compileStatement(INSERT_SEEN_SQL);
+    }
+
+    /**
+     * Remembers the id of a record whose effect is applied only at the end of the ingest (menus, images), so a
+     * resumed ingest still knows about it. Does nothing unless checkpoints are on.
+     */
+    public boolean recordSeen(int recordType, String id) {
+        if (this.checkpoint == null || id == null) {
+            return true;
+        }
+        this.insertSeenStatement.bindLong(1, recordType);
+        this.insertSeenStatement.bindString(2, id);
+        return execute(this.insertSeenStatement);
+    }
+
+    /**
+     * Moves the checkpoint past a record whose rows have all been written, committing the batch if it is full
+     */
+    public void advanceCheckpoint(KeywordRecord record) {
+        if (this.checkpoint == null) {
+            return;
+        }
+        this.checkpoint.advance(record);
+        this.checkpointChanged = true;
+        if (this.pendingRows >= this.batchSize) {
+            commit();
+        }
+    }
+
+    /**
+     * Commits the rows written so far along with the checkpoint, e.g. once it has moved on to the next page. Does
+     * nothing unless checkpoints are on.
+     */
+    public void saveCheckpoint() {
+        if (this.checkpoint == null) {
+            return;
+        }
+        this.checkpointChanged = true;
+        commit();
+    }
+
+    public boolean deleteMenu(String id) {
+        bindNullable(this.deleteMenuStatement, 1, id);
+        return execute(this.deleteMenuStatement);
+    }
+
+    public boolean deleteMenuItem(String id) {
+        bindNullable(this.deleteMenuItemStatement, 1, id);
+        return execute(this.deleteMenuItemStatement);
+    }
+
+    /**
+     * Deletes every menu that isn't in currentMenuIds, along with all of its menu items, in a single transaction.
+     * 
+     * @return the number of rows removed
+     */
+    public int deleteStaleMenus(Collection<String> currentMenuIds) {
+        HashSet<String> current = new HashSet<String>(currentMenuIds);
+        List<String> staleMenuIds = new ArrayList<String>();
+        Cursor cursor = this.database.query(this.menuTable, new String[] { Storage.MENU_ROWID_COLUMN }, null, null,
+                null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                String menuId = cursor.getString(0);
+                if (!current.contains(menuId)) {
+                    staleMenuIds.add(menuId);
+                }
+            }
+        }
+        finally {
+            cursor.close();
+        }
+
+        if (staleMenuIds.isEmpty()) {
+            return 0;
+        }
+
+        // keep the reconciliation in a transaction of its own
+        commit();
+        this.database.beginTransaction();
+        int removedRows = 0;
+        try {
+            for (int start = 0; start < staleMenuIds.size(); start += MAX_IDS_PER_DELETE) {
+                int end = Math.min(start + MAX_IDS_PER_DELETE, staleMenuIds.size());
+                String[] ids = staleMenuIds.subList(start, end).toArray(new String[end - start]);
+                String placeholders = getPlaceholders(ids.length);
+                removedRows += this.database.delete(this.menuItemTable, Storage.MENU_ITEM_MENUID_COLUMN + " IN ("
+                        + placeholders + ")", ids);
+                removedRows += this.database.delete(this.menuTable, Storage.MENU_ROWID_COLUMN + " IN (" + placeholders
+                        + ")", ids);
+            }
+            this.database.setTransactionSuccessful();
+        }
+        finally {
+            this.database.endTransaction();
+        }
+
+        Trace.i(Trace.STORAGE, LOG_TAG, "Removed " + staleMenuIds.size() + " stale menus, " + removedRows
+                + " rows in all");
+        return removedRows;
+    }
+
+    /**
+     * Deletes everything below the given (already deleted) menu items, a level at a time, in a single transaction.
+     * Foreign key cascades aren't available on the Android versions we support, so this is done by hand.
+     * 
+     * @return the number of rows removed
+     */
+    public int deleteMenuItemSubtrees(Collection<String> deletedItemIds) {
+        if (deletedItemIds.isEmpty()) {
+            return 0;
+        }
+
+        commit();
+        this.database.beginTransaction();
+        int removedRows = 0;
+        try {
+            List<String> parentIds = new ArrayList<String>(deletedItemIds);
+            while (!parentIds.isEmpty()) {
+                List<String> childIds = new ArrayList<String>();
+                for (int start = 0; start < parentIds.size(); start += MAX_IDS_PER_DELETE) {
+                    int end = Math.min(start + MAX_IDS_PER_DELETE, parentIds.size());
+                    String[] ids = parentIds.subList(start, end).toArray(new String[end - start]);
+                    String condition = Storage.MENU_ITEM_PARENTID_COLUMN + " IN (" + getPlaceholders(ids.length) + ")";
+
+                    // remember the children so we can go on to their children
+                    Cursor cursor = this.database.query(this.menuItemTable,
+                            new String[] { Storage.MENU_ITEM_ROWID_COLUMN }, condition, ids, null, null, null);
+                    try {
+                        while (cursor.moveToNext()) {
+                            childIds.add(cursor.getString(0));
+                        }
+                    }
+                    finally {
+                        cursor.close();
+                    }
+                    removedRows += this.database.delete(this.menuItemTable, condition, ids);
+                }
+                parentIds = childIds;
+            }
+            this.database.setTransactionSuccessful();
+        }
+        finally {
+            this.database.endTransaction();
+        }
+
+        Trace.i(Trace.STORAGE, LOG_TAG, "Removed " + removedRows + " rows below " + deletedItemIds.size()
+                + " deleted menu items");
+        return removedRows;
+    }
+
+    /**
+     * Commit the rows written so far. Safe to call when no transaction is open.
+     */
+    public void commit() {
+        if (this.checkpointChanged && this.failedRows == 0) {
+            writeCheckpoint();
+        }
+        if (this.database.inTransaction()) {
+            this.database.setTransactionSuccessful();
+            this.database.endTransaction();
+        }
+        this.pendingRows = 0;
+    }
+
+    /**
+     * Commits any outstanding rows, releases the compiled statements and logs the ingest throughput
+     */
+    public void close() {
+        try {
+            commit();
+        }
+        finally {
+            this.endTime = SystemClock.elapsedRealtime();
+            closeStatements();
+            Trace.i(Trace.STORAGE, LOG_TAG, "Wrote " + this.totalRows + " rows (" + this.failedRows + " failed) in "
+                    + getElapsedMilliseconds() + "ms: " + getRowsPerSecond() + " rows/sec");
+        }
+    }
+
+    /**
+     * Rolls back the rows written since the last commit, along with their checkpoint, and releases the compiled
+     * statements. Batches that were already committed stay written.
+     */
+    public void rollback() {
+        int discardedRows = this.pendingRows;
+        try {
+            if (this.database.inTransaction()) {
+                this.database.endTransaction();
+            }
+            this.checkpointChanged = false;
+            this.pendingRows = 0;
+        }
+        finally {
+            this.endTime = SystemClock.elapsedRealtime();
+            closeStatements();
+            Trace.i(Trace.STORAGE, LOG_TAG, "Rolled back " + discardedRows + " uncommitted rows after "
+                    + getElapsedMilliseconds() + "ms");
+        }
+    }
+
+    public int getTotalRows() {
+        return this.totalRows;
+    }
+
+    /**
+     * Rows that failed to write. An update with any is incomplete and mustn't be applied.
+     */
+    public int getFailedRows() {
+        return this.failedRows;
+    }
+
+    public long getElapsedMilliseconds() {
+        long end = this.endTime > 0 ? this.endTime : SystemClock.elapsedRealtime();
+        return end - this.startTime;
+    }
+
+    /**
+     * The rows/sec figure for this ingest, so that batch sizes and storage changes can be compared
+     */
+    public long getRowsPerSecond() {
+        long elapsed = getElapsedMilliseconds();
+        if (elapsed <= 0) {
+            return this.totalRows;
+        }
+        return (this.totalRows * 1000L) / elapsed;
+    }
+
+    private boolean execute(SQLiteStatement statement) {
+        if (!this.database.inTransaction()) {
+            this.database.beginTransaction();
+        }
+
+        boolean successful = true;
+        try {
+            statement.execute();
+            this.totalRows++;
+        }
+        catch (SQLException e) {
+            // a bad row shouldn't cost us the rest of the batch
+            Trace.e(Trace.STORAGE, LOG_TAG, "Failed to write row: ", e.getMessage());
+            this.failedRows++;
+            successful = false;
+        }
+        finally {
+            statement.clearBindings();
+        }
+
+        // with checkpoints on, commits wait for the end of the record
+        if (++this.pendingRows >= this.batchSize && this.checkpoint == null) {
+            commit();
+        }
+        return successful;
+    }
+
+    private void writeCheckpoint() {
+        if (!this.database.inTransaction()) {
+            this.database.beginTransaction();
+        }
+
+        IngestCheckpoint checkpoint = this.checkpoint;
+        SQLiteStatement statement = this.replaceCheckpointStatement;
+        bindNullable(statement, 1, checkpoint.getBaseVersion());
+        bindNullable(statement, 2, checkpoint.getMenuIds());
+        bindNullable(statement, 3, checkpoint.getPayloadVersion());
+        statement.bindLong(4, checkpoint.getTotal());
+        statement.bindLong(5, checkpoint.getByteOffset());
+        statement.bindLong(6, checkpoint.getChecksum());
+        statement.bindLong(7, checkpoint.getRecordType());
+        statement.bindLong(8, checkpoint.getRecordCount());
+        bindNullable(statement, 9, checkpoint.getContinuationToken());
+        statement.bindLong(10, checkpoint.getPageSize());
+        bindNullable(statement, 11, checkpoint.getNextContinuationToken());
+        statement.bindLong(12, checkpoint.getSyncNotBefore());
+        bindNullable(statement, 13, checkpoint.getPayloadValidator());
+        try {
+            statement.execute();
+        }
+        finally {
+            statement.clearBindings();
+        }
+        this.checkpointChanged = false;
+    }
+
+    private void closeStatements() {
+        this.replaceMenuStatement.close();
+        this.replaceMenuItemStatement.close();
+        this.deleteMenuStatement.close();
+        this.deleteMenuItemStatement.close();
+        if (this.replaceCheckpointStatement != null) {
+            this.replaceCheckpointStatement.close();
+            this.insertSeenStatement.close();
+        }
+    }
+
+    private static String getPlaceholders(int count) {
+        StringBuilder placeholders = new StringBuilder(count * 2);
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                placeholders.append(',');
+            }
+            placeholders.append('?');
+        }
+        return placeholders.toString();
+    }
+
+    private static void bindNullable(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        }
+        else {
+            statement.bindString(index, value);
+        }
+    }
+}
@@ -0,0 +1,214 @@
+/**
+ * Copyright (C) 2010 Grameen Foundation
+Licensed under the Apache License, Version 2.0 (the "License"); you may not
+use this file except in compliance with the License. You may obtain a copy of
+the License at http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations under
+the License.
+ */
+
+package applab.search.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.json.simple.parser.ParseException;
+
+/**
+ * Reads a binary keyword snapshot (see KeywordBinaryFormat) into KeywordRecords.
+ *
+ * Repeated strings come straight out of the string table, so a record made of ids, menu ids and positions decodes
+ * without allocating. Malformed input is reported as a ParseException, the same as bad JSON.
+ */
+public class KeywordBinaryDecoder implements KeywordRecordSource {
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private final InputStream inputStream;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int bufferPosition;
+    private int bufferLength;
+    private long bufferStart;
+
+    private final String[] stringTable = new String[KeywordBinaryFormat.MAX_STRING_TABLE_SIZE];
+    private int stringTableSize;
+    private byte[] stringBytes = new byte[256];
+
+    /** where content values longer than maxInlineLength bytes go, if anywhere */
+    private LargeValueStore largeValueStore;
+    private int maxInlineLength = Integer.MAX_VALUE;
+
+    public KeywordBinaryDecoder(InputStream inputStream) {
+        this.inputStream = inputStream;
+    }
+
+    /**
+     * Copies content values longer than maxInlineLength bytes straight to the given store instead of decoding them.
+     * The record gets the store's reference in place of the value.
+     */
+    public void setLargeValueStore(LargeValueStore largeValueStore, int maxInlineLength) {
+        this.largeValueStore = largeValueStore;
+        this.maxInlineLength = maxInlineLength;
+    }
+
+    /**
+     * Number of payload bytes read so far
+     */
+    public long getBytesConsumed() {
+        return this.bufferStart + this.bufferPosition;
+    }
+
+    public void parse(Listener listener, KeywordRecord record) throws IOException, ParseException {
+        for (int i = 0; i < KeywordBinaryFormat.MAGIC.length; i++) {
+            if (readByte() != KeywordBinaryFormat.MAGIC[i]) {
+                throw error("not a binary keyword snapshot");
+            }
+        }
+        int formatVersion = readByte();
+        if (formatVersion != KeywordBinaryFormat.FORMAT_VERSION) {
+            throw error("unsupported snapshot version " + formatVersion);
+        }
+
+        while (true) {
+            int tag = readByte();
+            if (tag == KeywordBinaryFormat.TAG_END) {
+                return;
+            }
+            else if (tag == KeywordBinaryFormat.TAG_VERSION) {
+                listener.onVersion(readString(false));
+            }
+            else if (tag == KeywordBinaryFormat.TAG_TOTAL) {
+                listener.onTotal(readVarint());
+            }
+            else if (tag == KeywordBinaryFormat.TAG_NEXT_SYNC_AFTER) {
+                listener.onNextSyncAfter(readVarint());
+            }
+            else if (tag == KeywordBinaryFormat.TAG_CONTINUATION) {
+                listener.onContinuation(readString(false));
+            }
+            else {
+                int type = tag - KeywordBinaryFormat.TAG_RECORD;
+                if (type <= KeywordRecord.TYPE_UNKNOWN || type > KeywordRecord.TYPE_DELETED_IMAGE) {
+                    throw error("unknown tag " + tag);
+                }
+                record = listener.onRecord(readRecord(type, record));
+            }
+        }
+    }
+
+    private KeywordRecord readRecord(int type, KeywordRecord record) throws IOException, ParseException {
+        int slotMask = readVarint();
+        if ((slotMask >>> KeywordRecord.SLOT_COUNT) != 0) {
+            throw error("bad slot mask " + slotMask);
+        }
+
+        record.clear();
+        record.setType(type);
+        for (int slot = 0; slot < KeywordRecord.SLOT_COUNT; slot++) {
+            if ((slotMask & (1 << slot)) != 0) {
+                record.set(slot, readString(slot == KeywordRecord.SLOT_CONTENT));
+            }
+        }
+        record.setEnd(getBytesConsumed(), 0);
+        return record;
+    }
+
+    private String readString(boolean spillAllowed) throws IOException, ParseException {
+        int header = readVarint();
+        if (header >= KeywordBinaryFormat.STRING_TABLE_BASE) {
+            int index = header - KeywordBinaryFormat.STRING_TABLE_BASE;
+            if (index >= this.stringTableSize) {
+                throw error("string table index " + index + " out of range");
+            }
+            return this.stringTable[index];
+        }
+
+        int length = readVarint();
+        if (spillAllowed && header == KeywordBinaryFormat.STRING_ONCE && this.largeValueStore != null
+                && length > this.maxInlineLength) {
+            // already UTF-8, so it can go to the store as is
+            copyTo(this.largeValueStore.begin(), length);
+            return this.largeValueStore.end();
+        }
+        if (length > this.stringBytes.length) {
+            this.stringBytes = new byte[Math.max(length, this.stringBytes.length * 2)];
+        }
+        readFully(this.stringBytes, length);
+        String value = new String(this.stringBytes, 0, length, "UTF-8");
+
+        if (header == KeywordBinaryFormat.STRING_NEW) {
+            if (this.stringTableSize == this.stringTable.length) {
+                throw error("string table overflow");
+            }
+            this.stringTable[this.stringTableSize++] = value;
+        }
+        return value;
+    }
+
+    private int readVarint() throws IOException, ParseException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int next = readByte();
+            value |= (next & 0x7f) << shift;
+            if ((next & 0x80) == 0) {
+                if (value < 0) {
+                    throw error("varint out of range");
+                }
+                return value;
+            }
+        }
+        throw error("varint too long");
+    }
+
+    private int readByte() throws IOException, ParseException {
+        if (this.bufferPosition == this.bufferLength && !fillBuffer()) {
+            throw new ParseException((int)getBytesConsumed(), ParseException.ERROR_UNEXPECTED_TOKEN, "END OF FILE");
+        }
+        return this.buffer[this.bufferPosition++] & 0xff;
+    }
+
+    private void readFully(byte[] destination, int length) throws IOException, ParseException {
+        int copied = 0;
+        while (copied < length) {
+            if (this.bufferPosition == this.bufferLength && !fillBuffer()) {
+                throw new ParseException((int)getBytesConsumed(), ParseException.ERROR_UNEXPECTED_TOKEN, "END OF FILE");
+            }
+            int count = Math.min(length - copied, this.bufferLength - this.bufferPosition);
+            System.arraycopy(this.buffer, this.bufferPosition, destination, copied, count);
+            this.bufferPosition += count;
+            copied += count;
+        }
+    }
+
+    private void copyTo(OutputStream destination, int length) throws IOException, ParseException {
+        int copied = 0;
+        while (copied < length) {
+            if (this.bufferPosition == this.bufferLength && !fillBuffer()) {
+                throw new ParseException((int)getBytesConsumed(), ParseException.ERROR_UNEXPECTED_TOKEN, "END OF FILE");
+            }
+            int count = Math.min(length - copied, this.bufferLength - this.bufferPosition);
+            destination.write(this.buffer, this.bufferPosition, count);
+            this.bufferPosition += count;
+            copied += count;
+        }
+    }
+
+    private boolean fillBuffer() throws IOException {
+        this.bufferStart += this.bufferLength;
+        this.bufferPosition = 0;
+        this.bufferLength = 0;
+        int read = this.inputStream.read(this.buffer, 0, this.buffer.length);
+        if (read <= 0) {
+            return false;
+        }
+        this.bufferLength = read;
+        return true;
+    }
+
+    private ParseException error(String message) {
+        return new ParseException((int)getBytesConsumed(), ParseException.ERROR_UNEXPECTED_EXCEPTION, message);
+    }
+}
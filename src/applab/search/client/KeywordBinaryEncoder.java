@@ -0,0 +1,143 @@
+/**
+ * Copyright (C) 2010 Grameen Foundation
+Licensed under the Apache License, Version 2.0 (the "License"); you may not
+use this file except in compliance with the License. You may obtain a copy of
+the License at http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations under
+the License.
+ */
+
+package applab.search.client;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+
+import org.json.simple.parser.ParseException;
+
+/**
+ * Writes a binary keyword snapshot (see KeywordBinaryFormat). Has no Android dependencies, so it can be used by a
+ * server or a test fixture as well as on the phone.
+ */
+public class KeywordBinaryEncoder {
+    private final OutputStream output;
+    private final HashMap<String, Integer> stringTable = new HashMap<String, Integer>();
+
+    /**
+     * Writes the snapshot header. Call finish() once all entries have been written.
+     */
+    public KeywordBinaryEncoder(OutputStream output) throws IOException {
+        this.output = new BufferedOutputStream(output, 8 * 1024);
+        this.output.write(KeywordBinaryFormat.MAGIC);
+        this.output.write(KeywordBinaryFormat.FORMAT_VERSION);
+    }
+
+    /**
+     * Converts a JSON keyword payload into a binary snapshot
+     */
+    public static void transcode(InputStream json, OutputStream output) throws IOException, ParseException {
+        final KeywordBinaryEncoder encoder = new KeywordBinaryEncoder(output);
+        new KeywordJsonTokenizer(json).parse(new KeywordRecordSource.Listener() {
+            public void onVersion(String version) throws IOException {
+                encoder.writeVersion(version);
+            }
+
+            public void onTotal(int total) throws IOException {
+                encoder.writeTotal(total);
+            }
+
+            public void onNextSyncAfter(int seconds) throws IOException {
+                encoder.writeNextSyncAfter(seconds);
+            }
+
+            public void onContinuation(String token) throws IOException {
+                encoder.writeContinuation(token);
+            }
+
+            public KeywordRecord onRecord(KeywordRecord record) throws IOException {
+                encoder.writeRecord(record);
+                return record;
+            }
+        }, new KeywordRecord());
+        encoder.finish();
+    }
+
+    public void writeVersion(String version) throws IOException {
+        this.output.write(KeywordBinaryFormat.TAG_VERSION);
+        writeString(version, false);
+    }
+
+    public void writeTotal(int total) throws IOException {
+        this.output.write(KeywordBinaryFormat.TAG_TOTAL);
+        writeVarint(total);
+    }
+
+    public void writeNextSyncAfter(int seconds) throws IOException {
+        this.output.write(KeywordBinaryFormat.TAG_NEXT_SYNC_AFTER);
+        writeVarint(seconds);
+    }
+
+    public void writeContinuation(String token) throws IOException {
+        this.output.write(KeywordBinaryFormat.TAG_CONTINUATION);
+        writeString(token, false);
+    }
+
+    public void writeRecord(KeywordRecord record) throws IOException {
+        this.output.write(KeywordBinaryFormat.TAG_RECORD + record.getType());
+        int slotMask = 0;
+        for (int slot = 0; slot < KeywordRecord.SLOT_COUNT; slot++) {
+            if (record.has(slot)) {
+                slotMask |= 1 << slot;
+            }
+        }
+        writeVarint(slotMask);
+        for (int slot = 0; slot < KeywordRecord.SLOT_COUNT; slot++) {
+            if (record.has(slot)) {
+                // content is prose, it almost never repeats
+                writeString(record.get(slot), slot != KeywordRecord.SLOT_CONTENT);
+            }
+        }
+    }
+
+    /**
+     * Writes the end marker and flushes. Does not close the underlying stream.
+     */
+    public void finish() throws IOException {
+        this.output.write(KeywordBinaryFormat.TAG_END);
+        this.output.flush();
+    }
+
+    private void writeString(String value, boolean useTable) throws IOException, UnsupportedEncodingException {
+        if (useTable) {
+            Integer index = this.stringTable.get(value);
+            if (index != null) {
+                writeVarint(KeywordBinaryFormat.STRING_TABLE_BASE + index.intValue());
+                return;
+            }
+        }
+
+        boolean addToTable = useTable && value.length() <= KeywordBinaryFormat.MAX_TABLE_STRING_LENGTH
+                && this.stringTable.size() < KeywordBinaryFormat.MAX_STRING_TABLE_SIZE;
+        if (addToTable) {
+            this.stringTable.put(value, Integer.valueOf(this.stringTable.size()));
+        }
+        byte[] bytes = value.getBytes("UTF-8");
+        writeVarint(addToTable ? KeywordBinaryFormat.STRING_NEW : KeywordBinaryFormat.STRING_ONCE);
+        writeVarint(bytes.length);
+        this.output.write(bytes);
+    }
+
+    private void writeVarint(int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            this.output.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        this.output.write(value);
+    }
+}
@@ -0,0 +1,88 @@
+/**
+ * Copyright (C) 2010 Grameen Foundation
+Licensed under the Apache License, Version 2.0 (the "License"); you may not
+use this file except in compliance with the License. You may obtain a copy of
+the License at http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations under
+the License.
+ */
+
+package applab.search.client;
+
+import java.io.IOException;
+import java.io.PushbackInputStream;
+
+/**
+ * Constants for the binary keyword snapshot, a compact alternative to the JSON payload carrying the same records.
+ *
+ * <pre>
+ * payload := 'K' 'W' 'B' formatVersion entry* END
+ * entry   := VERSION string | TOTAL varint | NEXT_SYNC_AFTER varint | CONTINUATION string
+ *          | (RECORD + recordType) slotMask string*
+ * string  := varint h, then: h == 0  new string, varint byteLength + UTF-8 bytes, appended to the string table
+ *                            h == 1  one-off string, varint byteLength + UTF-8 bytes, not added to the table
+ *                            h >= 2  string table entry h - 2
+ * </pre>
+ *
+ * Varints are unsigned LEB128. A record's slot mask has bit n set for each KeywordRecord slot n present in it, and the
+ * values follow in slot order. The string table is how repeated ids, menu ids and positions stay small; it is capped
+ * at MAX_STRING_TABLE_SIZE entries so the decoder's memory stays bounded.
+ */
+public final class KeywordBinaryFormat {
+    /** what the client puts in acceptFormat to ask for this encoding */
+    public static final String FORMAT_NAME = "keywords-binary-1";
+
+    static final byte[] MAGIC = { 'K', 'W', 'B' };
+    static final int FORMAT_VERSION = 1;
+
+    static final int TAG_END = 0x00;
+    static final int TAG_VERSION = 0x01;
+    static final int TAG_TOTAL = 0x02;
+    static final int TAG_NEXT_SYNC_AFTER = 0x03;
+    static final int TAG_CONTINUATION = 0x04;
+
+    /** record tags are TAG_RECORD plus the KeywordRecord type */
+    static final int TAG_RECORD = 0x10;
+
+    static final int STRING_NEW = 0;
+    static final int STRING_ONCE = 1;
+    static final int STRING_TABLE_BASE = 2;
+
+    static final int MAX_STRING_TABLE_SIZE = 8192;
+
+    /** strings longer than this aren't worth a table entry */
+    static final int MAX_TABLE_STRING_LENGTH = 64;
+
+    private KeywordBinaryFormat() {
+    }
+
+    /**
+     * Returns true if the stream holds a binary snapshot. The bytes looked at are pushed back, so the stream must have
+     * room to push back MAGIC.length bytes.
+     */
+    public static boolean isBinaryPayload(PushbackInputStream inputStream) throws IOException {
+        byte[] header = new byte[MAGIC.length];
+        int count = 0;
+        while (count < header.length) {
+            int read = inputStream.read(header, count, header.length - count);
+            if (read < 0) {
+                break;
+            }
+            count += read;
+        }
+        inputStream.unread(header, 0, count);
+
+        if (count < header.length) {
+            return false;
+        }
+        for (int i = 0; i < header.length; i++) {
+            if (header[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,253 @@
+/**
+ * Copyright (C) 2010 Grameen Foundation
+Licensed under the Apache License, Version 2.0 (the "License"); you may not
+use this file except in compliance with the License. You may obtain a copy of
+the License at http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations under
+the License.
+ */
+
+package applab.search.client;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.json.simple.parser.ParseException;
+
+/**
+ * Two-stage keyword ingest: a parser thread reads the payload into KeywordRecords while the calling thread writes
+ * them to the database, so tokenizing overlaps with SQLite commits on multi-core handsets.
+ *
+ * A fixed pool of records circulates between the two stages through a pair of bounded queues. When the writer falls
+ * behind the parser blocks waiting for a free record, which keeps memory flat no matter how big the payload is.
+ *
+ * Database writes stay on the calling thread, since SQLite transactions are bound to the thread that opened them.
+ */
+public class KeywordIngestPipeline {
+    private static final String LOG_TAG = "KeywordIngestPipeline";
+    public static final int DEFAULT_CAPACITY = 64;
+
+    /** how long a failed ingest waits for the parser thread to notice it has been interrupted, in milliseconds */
+    private static final long PARSER_STOP_TIMEOUT = 10 * 1000;
+
+    /** marks the end of the record stream, whether the parser finished or failed */
+    private static final KeywordRecord END_OF_RECORDS = new KeywordRecord();
+
+    private final KeywordRecordSource source;
+    private final KeywordRecordSource.Listener sink;
+    private final BlockingQueue<KeywordRecord> freeRecords;
+    private final BlockingQueue<KeywordRecord> filledRecords;
+
+    /** set by the parser thread if tokenizing fails */
+    private volatile Throwable parserFailure;
+
+    /* Stage timings, in nanoseconds */
+    private volatile long parserBusyTime;
+    private volatile long parserBlockedTime;
+    private long writerBusyTime;
+    private long writerIdleTime;
+    private int recordCount;
+
+    /**
+     * @param source
+     *            tokenizer or decoder to run on the parser thread
+     * @param sink
+     *            receives version and total on the parser thread, and records on the calling thread
+     * @param capacity
+     *            number of records in flight between the two stages
+     */
+    public KeywordIngestPipeline(KeywordRecordSource source, KeywordRecordSource.Listener sink, int capacity) {
+        this.source = source;
+        this.sink = sink;
+        this.freeRecords = new ArrayBlockingQueue<KeywordRecord>(capacity);
+
+        // room for every record plus the end marker, so the parser can always signal that it's done
+        this.filledRecords = new ArrayBlockingQueue<KeywordRecord>(capacity + 1);
+        for (int i = 0; i < capacity; i++) {
+            this.freeRecords.add(new KeywordRecord());
+        }
+    }
+
+    /**
+     * Runs the pipeline to completion. Records are handed to the sink on the calling thread. Failures from either
+     * stage are rethrown here.
+     */
+    public void run() throws IOException, ParseException {
+        Thread parserThread = new Thread(new Runnable() {
+            public void run() {
+                produce();
+            }
+        }, "KeywordParser");
+        parserThread.start();
+
+        try {
+            consume();
+        }
+        catch (IOException e) {
+            stopParser(parserThread);
+            throw e;
+        }
+        catch (RuntimeException e) {
+            stopParser(parserThread);
+            throw e;
+        }
+
+        try {
+            parserThread.join();
+        }
+        catch (InterruptedException e) {
+            parserThread.interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the keyword parser");
+        }
+
+        Trace.i(Trace.PARSER, LOG_TAG, "Ingested " + this.recordCount + " records. Parser busy "
+                + toMilliseconds(this.parserBusyTime) + "ms, blocked on writer " + toMilliseconds(this.parserBlockedTime)
+                + "ms. Writer busy " + toMilliseconds(this.writerBusyTime) + "ms, idle waiting on parser "
+                + toMilliseconds(this.writerIdleTime) + "ms");
+
+        rethrowParserFailure();
+    }
+
+    /**
+     * Interrupts the parser thread after the writer has failed and waits a while for it to finish, so that it isn't
+     * still reading the payload or writing large values once our caller has closed the stream and storage. A parser
+     * blocked in a network read only notices when the read returns, hence the bounded wait.
+     */
+    private void stopParser(Thread parserThread) {
+        parserThread.interrupt();
+        try {
+            parserThread.join(PARSER_STOP_TIMEOUT);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (parserThread.isAlive()) {
+            Trace.w(Trace.PARSER, LOG_TAG, "Keyword parser still running " + PARSER_STOP_TIMEOUT
+                    + "ms after the writer failed");
+        }
+    }
+
+    public long getParserBusyMilliseconds() {
+        return toMilliseconds(this.parserBusyTime);
+    }
+
+    public long getParserBlockedMilliseconds() {
+        return toMilliseconds(this.parserBlockedTime);
+    }
+
+    public long getWriterBusyMilliseconds() {
+        return toMilliseconds(this.writerBusyTime);
+    }
+
+    public long getWriterIdleMilliseconds() {
+        return toMilliseconds(this.writerIdleTime);
+    }
+
+    public int getRecordCount() {
+        return this.recordCount;
+    }
+
+    /**
+     * Parser stage: tokenize the payload, passing each filled record to the writer
+     */
+    private void produce() {
+        long startTime = System.nanoTime();
+        try {
+            KeywordRecordSource.Listener producer = new KeywordRecordSource.Listener() {
+                public void onVersion(String version) throws IOException {
+                    sink.onVersion(version);
+                }
+
+                public void onTotal(int total) throws IOException {
+                    sink.onTotal(total);
+                }
+
+                public void onNextSyncAfter(int seconds) throws IOException {
+                    sink.onNextSyncAfter(seconds);
+                }
+
+                public void onContinuation(String token) throws IOException {
+                    sink.onContinuation(token);
+                }
+
+                public KeywordRecord onRecord(KeywordRecord record) throws IOException {
+                    long waitStart = System.nanoTime();
+                    try {
+                        filledRecords.put(record);
+                        return freeRecords.take();
+                    }
+                    catch (InterruptedException e) {
+                        throw new InterruptedIOException("Keyword parser interrupted");
+                    }
+                    finally {
+                        parserBlockedTime += System.nanoTime() - waitStart;
+                    }
+                }
+            };
+
+            this.source.parse(producer, this.freeRecords.take());
+        }
+        catch (Throwable e) {
+            this.parserFailure = e;
+        }
+        finally {
+            this.parserBusyTime = System.nanoTime() - startTime - this.parserBlockedTime;
+            this.filledRecords.offer(END_OF_RECORDS);
+        }
+    }
+
+    /**
+     * Writer stage: drain filled records into the sink until the parser is done
+     */
+    private void consume() throws IOException {
+        while (true) {
+            long waitStart = System.nanoTime();
+            KeywordRecord record;
+            try {
+                record = this.filledRecords.take();
+            }
+            catch (InterruptedException e) {
+                throw new InterruptedIOException("Keyword writer interrupted");
+            }
+            this.writerIdleTime += System.nanoTime() - waitStart;
+
+            if (record == END_OF_RECORDS) {
+                return;
+            }
+
+            long writeStart = System.nanoTime();
+            this.sink.onRecord(record);
+            this.writerBusyTime += System.nanoTime() - writeStart;
+            this.recordCount++;
+
+            // never blocks, the free queue has room for every record
+            this.freeRecords.offer(record);
+        }
+    }
+
+    private void rethrowParserFailure() throws IOException, ParseException {
+        Throwable failure = this.parserFailure;
+        if (failure == null) {
+            return;
+        }
+        if (failure instanceof IOException) {
+            throw (IOException)failure;
+        }
+        if (failure instanceof ParseException) {
+            throw (ParseException)failure;
+        }
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException)failure;
+        }
+        throw (Error)failure;
+    }
+
+    private static long toMilliseconds(long nanoseconds) {
+        return nanoseconds / 1000000L;
+    }
+}
@@ -0,0 +1,646 @@
+/**
+ * Copyright (C) 2010 Grameen Foundation
+Licensed under the Apache License, Version 2.0 (the "License"); you may not
+use this file except in compliance with the License. You may obtain a copy of
+the License at http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations under
+the License.
+ */
+
+package applab.search.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.zip.Checksum;
+
+import org.json.simple.parser.ParseException;
+
+/**
+ * Pull tokenizer specialized for the keyword payload:
+ *
+ * { "Version": "...", "Total": n, "NextSyncAfter": seconds, "Continuation": "...", "Menus": [ {...}, ... ],
+ * "MenuItems": [...], "DeletedMenuItems": [...], "Images": [...], "DeletedImages": [...] }
+ *
+ * Bytes are read through one reusable buffer and UTF-8 is decoded incrementally into a reusable char buffer, so
+ * multi-byte characters may straddle buffer refills. Keys are matched against the known names without creating
+ * Strings, and field values are copied as char slices into the KeywordRecord being filled. Keys and arrays we don't
+ * know about are skipped.
+ *
+ * Values are rendered the same way the json-simple based KeywordParseHandler renders them: strings unescaped, null as
+ * an empty string, booleans as their literal text, and numbers as json-simple's Long or Double would print them (so
+ * 007 and -0 read "7" and "0", and 1e3 reads "1000.0").
+ *
+ * Content values longer than a set limit can be handed to a LargeValueStore as they are decoded, so that no more than
+ * the limit is ever held in memory however long the value is.
+ *
+ * For checkpointed ingest the tokenizer can keep a checksum of the bytes it has consumed, stamp each record with where
+ * it ends, and resume a payload from just after a given record.
+ */
+public class KeywordJsonTokenizer implements KeywordRecordSource {
+    public static final int DEFAULT_BUFFER_SIZE = 16 * 1024;
+
+    private static final char[] VERSION_KEY = "Version".toCharArray();
+    private static final char[] TOTAL_KEY = "Total".toCharArray();
+    private static final char[] NEXT_SYNC_AFTER_KEY = "NextSyncAfter".toCharArray();
+    private static final char[] CONTINUATION_KEY = "Continuation".toCharArray();
+    private static final int END_OF_STREAM = -1;
+    private static final char REPLACEMENT_CHARACTER = '\uFFFD';
+
+    private final InputStream input;
+    private final byte[] buffer;
+    private int position;
+    private int limit;
+
+    /** number of bytes consumed before the current buffer contents */
+    private long bufferOffset;
+
+    /** decoded text of the last string or literal we read */
+    private char[] text = new char[256];
+    private int textLength;
+
+    /** a byte we've looked at but not consumed, or END_OF_STREAM - 1 if there is none */
+    private int peeked = END_OF_STREAM - 1;
+
+    /** checksum of the bytes consumed so far, if tracking; buffer bytes before checksumPosition are already in it */
+    private Checksum checksum;
+    private int checksumPosition;
+
+    /** type of the array to resume in, if the stream starts just after a record */
+    private int resumeType = KeywordRecord.TYPE_UNKNOWN;
+
+    /** where content values longer than maxInlineLength chars go, if anywhere */
+    private LargeValueStore largeValueStore;
+    private int maxInlineLength = Integer.MAX_VALUE;
+
+    /** true while reading a value that may go to the store; spillWriter is set once it has started to */
+    private boolean spillAllowed;
+    private Writer spillWriter;
+
+    public KeywordJsonTokenizer(InputStream input) {
+        this(input, DEFAULT_BUFFER_SIZE);
+    }
+
+    public KeywordJsonTokenizer(InputStream input, int bufferSize) {
+        this.input = input;
+        this.buffer = new byte[bufferSize];
+    }
+
+    /**
+     * Returns the number of bytes of the payload consumed so far
+     */
+    public long getBytesConsumed() {
+        return this.bufferOffset + this.position - (this.peeked >= 0 ? 1 : 0);
+    }
+
+    /**
+     * Starts keeping a checksum of the payload bytes as they are consumed, and stamps each record with its end offset
+     * and the checksum up to there. Must be called before parsing starts.
+     * 
+     * @param checksum
+     *            checksum to add the bytes to; when resuming, one that already covers the skipped bytes
+     * @param startOffset
+     *            payload offset of the first byte of the stream, non-zero when resuming
+     */
+    public void trackChecksum(Checksum checksum, long startOffset) {
+        this.checksum = checksum;
+        this.checksumPosition = this.position;
+        this.bufferOffset = startOffset - this.position;
+    }
+
+    /**
+     * Tells parse() that the stream starts just after a record in the array of the given type, rather than at the
+     * beginning of the payload
+     */
+    public void resumeAfterRecord(int recordType) {
+        this.resumeType = recordType;
+    }
+
+    /**
+     * Sends content values longer than maxInlineLength chars to the given store as they are read, rather than
+     * collecting them in memory. The record gets the store's reference in place of the value.
+     */
+    public void setLargeValueStore(LargeValueStore largeValueStore, int maxInlineLength) {
+        this.largeValueStore = largeValueStore;
+        this.maxInlineLength = Math.max(1, maxInlineLength);
+    }
+
+    /**
+     * Returns the checksum of the bytes consumed so far. Only valid when tracking a checksum.
+     */
+    public long getChecksumValue() {
+        updateChecksum();
+        return this.checksum.getValue();
+    }
+
+    /**
+     * Tokenizes the whole payload, handing results to the listener. The record is the first buffer to fill.
+     */
+    public void parse(Listener listener, KeywordRecord record) throws IOException, ParseException {
+        if (this.resumeType != KeywordRecord.TYPE_UNKNOWN) {
+            int type = this.resumeType;
+            this.resumeType = KeywordRecord.TYPE_UNKNOWN;
+
+            // pick up where the last record left off, then carry on with the rest of the document
+            if (nextSeparator(']')) {
+                record = readRecordElements(type, listener, record);
+            }
+        }
+        else {
+            expect('{');
+            if (peekNonWhitespace() == '}') {
+                nextByte();
+                return;
+            }
+            record = readMember(listener, record);
+        }
+
+        while (nextSeparator('}')) {
+            record = readMember(listener, record);
+        }
+    }
+
+    /**
+     * Reads one member of the top level object
+     */
+    private KeywordRecord readMember(Listener listener, KeywordRecord record) throws IOException, ParseException {
+        readKey();
+        if (textEquals(VERSION_KEY)) {
+            readScalar();
+            listener.onVersion(new String(this.text, 0, this.textLength));
+        }
+        else if (textEquals(TOTAL_KEY)) {
+            readScalar();
+            listener.onTotal(parseTextAsInt());
+        }
+        else if (textEquals(NEXT_SYNC_AFTER_KEY)) {
+            readScalar();
+            listener.onNextSyncAfter(parseTextAsInt());
+        }
+        else if (textEquals(CONTINUATION_KEY)) {
+            readScalar();
+            if (this.textLength > 0) {
+                listener.onContinuation(new String(this.text, 0, this.textLength));
+            }
+        }
+        else {
+            int type = KeywordRecord.typeForName(this.text, this.textLength);
+            if (type != KeywordRecord.TYPE_UNKNOWN && peekNonWhitespace() == '[') {
+                record = readRecords(type, listener, record);
+            }
+            else {
+                skipValue();
+            }
+        }
+        return record;
+    }
+
+    private KeywordRecord readRecords(int type, Listener listener, KeywordRecord record) throws IOException,
+            ParseException {
+        expect('[');
+        if (peekNonWhitespace() == ']') {
+            nextByte();
+            return record;
+        }
+        return readRecordElements(type, listener, record);
+    }
+
+    /**
+     * Reads the elements of a record array up to and including the closing ']'
+     */
+    private KeywordRecord readRecordElements(int type, Listener listener, KeywordRecord record) throws IOException,
+            ParseException {
+        do {
+            if (peekNonWhitespace() != '{') {
+                // only objects are records
+                skipValue();
+                continue;
+            }
+
+            nextByte();
+            record.clear();
+            record.setType(type);
+            if (peekNonWhitespace() == '}') {
+                nextByte();
+            }
+            else {
+                do {
+                    readKey();
+                    int slot = KeywordRecord.slotForKey(this.text, this.textLength);
+                    int next = peekNonWhitespace();
+                    if (slot >= 0 && next != '{' && next != '[') {
+                        this.spillAllowed = slot == KeywordRecord.SLOT_CONTENT && this.largeValueStore != null;
+                        readScalar();
+                        this.spillAllowed = false;
+                        if (this.spillWriter != null) {
+                            record.set(slot, finishSpill());
+                        }
+                        else {
+                            record.set(slot, this.text, this.textLength);
+                        }
+                    }
+                    else {
+                        skipValue();
+                    }
+                } while (nextSeparator('}'));
+            }
+            if (this.checksum != null) {
+                record.setEnd(getBytesConsumed(), getChecksumValue());
+            }
+            record = listener.onRecord(record);
+        } while (nextSeparator(']'));
+
+        return record;
+    }
+
+    /**
+     * Reads an object key and the ':' after it
+     */
+    private void readKey() throws IOException, ParseException {
+        expect('"');
+        readStringBody();
+        expect(':');
+    }
+
+    /**
+     * Reads a string, number or literal into the text buffer
+     */
+    private void readScalar() throws IOException, ParseException {
+        int next = peekNonWhitespace();
+        if (next == '"') {
+            nextByte();
+            readStringBody();
+        }
+        else {
+            readLiteral();
+            if (textEquals("null")) {
+                this.textLength = 0;
+            }
+            else {
+                normalizeNumber();
+            }
+        }
+    }
+
+    /**
+     * Rewrites a number in the text buffer the way json-simple prints it: integers as a Long, and anything with a
+     * fraction or exponent as a Double. Plain integers, which is nearly all the payload carries, are left as they are.
+     */
+    private void normalizeNumber() {
+        int digits = (this.text[0] == '-') ? 1 : 0;
+        if (digits == this.textLength || this.text[digits] < '0' || this.text[digits] > '9') {
+            return;
+        }
+        boolean decimal = false;
+        for (int i = digits; i < this.textLength; i++) {
+            char character = this.text[i];
+            if (character == '.' || character == 'e' || character == 'E') {
+                decimal = true;
+                break;
+            }
+        }
+        boolean canonical = this.text[digits] != '0' || (digits == 0 && this.textLength == 1);
+        if (!decimal && canonical) {
+            return;
+        }
+
+        String literal = new String(this.text, 0, this.textLength);
+        String rendered;
+        try {
+            rendered = decimal ? Double.valueOf(literal).toString() : Long.valueOf(literal).toString();
+        }
+        catch (NumberFormatException e) {
+            // not a number json-simple would accept either; keep the text
+            return;
+        }
+        if (rendered.length() > this.text.length) {
+            this.text = new char[rendered.length()];
+        }
+        rendered.getChars(0, rendered.length(), this.text, 0);
+        this.textLength = rendered.length();
+    }
+
+    /**
+     * Reads a bare literal (number, true, false, null) into the text buffer
+     */
+    private void readLiteral() throws IOException, ParseException {
+        this.textLength = 0;
+        while (true) {
+            int next = peekByte();
+            if ((next >= '0' && next <= '9') || (next >= 'a' && next <= 'z') || next == '-' || next == '+'
+                    || next == '.' || next == 'E') {
+                nextByte();
+                appendText((char)next);
+            }
+            else {
+                break;
+            }
+        }
+        if (this.textLength == 0) {
+            throw unexpected(peekByte());
+        }
+    }
+
+    /**
+     * Decodes the rest of a string (after the opening quote) into the text buffer
+     */
+    private void readStringBody() throws IOException, ParseException {
+        this.textLength = 0;
+        while (true) {
+            int next = nextByte();
+            if (next == '"') {
+                return;
+            }
+            else if (next == '\\') {
+                readEscape();
+            }
+            else if (next < 0x80) {
+                if (next == END_OF_STREAM) {
+                    throw unexpected(next);
+                }
+                appendText((char)next);
+            }
+            else {
+                readMultiByteCharacter(next);
+            }
+        }
+    }
+
+    private void readEscape() throws IOException, ParseException {
+        int next = nextByte();
+        switch (next) {
+            case '"':
+            case '\\':
+            case '/':
+                appendText((char)next);
+                break;
+            case 'b':
+                appendText('\b');
+                break;
+            case 'f':
+                appendText('\f');
+                break;
+            case 'n':
+                appendText('\n');
+                break;
+            case 'r':
+                appendText('\r');
+                break;
+            case 't':
+                appendText('\t');
+                break;
+            case 'u':
+                int value = 0;
+                for (int i = 0; i < 4; i++) {
+                    int digit = Character.digit(nextByte(), 16);
+                    if (digit < 0) {
+                        throw unexpected(digit);
+                    }
+                    value = (value << 4) | digit;
+                }
+                appendText((char)value);
+                break;
+            default:
+                throw unexpected(next);
+        }
+    }
+
+    /**
+     * Decodes a UTF-8 sequence whose lead byte has already been read. Malformed input becomes U+FFFD.
+     */
+    private void readMultiByteCharacter(int lead) throws IOException {
+        int remaining;
+        int codePoint;
+        if ((lead & 0xE0) == 0xC0) {
+            remaining = 1;
+            codePoint = lead & 0x1F;
+        }
+        else if ((lead & 0xF0) == 0xE0) {
+            remaining = 2;
+            codePoint = lead & 0x0F;
+        }
+        else if ((lead & 0xF8) == 0xF0) {
+            remaining = 3;
+            codePoint = lead & 0x07;
+        }
+        else {
+            appendText(REPLACEMENT_CHARACTER);
+            return;
+        }
+
+        while (remaining-- > 0) {
+            int next = peekByte();
+            if ((next & 0xC0) != 0x80) {
+                // truncated sequence; leave the byte for the caller
+                appendText(REPLACEMENT_CHARACTER);
+                return;
+            }
+            nextByte();
+            codePoint = (codePoint << 6) | (next & 0x3F);
+        }
+
+        if (codePoint >= 0x10000) {
+            codePoint -= 0x10000;
+            appendText((char)(0xD800 + (codePoint >> 10)));
+            appendText((char)(0xDC00 + (codePoint & 0x3FF)));
+        }
+        else {
+            appendText((char)codePoint);
+        }
+    }
+
+    /**
+     * Skips over a value of any shape, including nested objects and arrays
+     */
+    private void skipValue() throws IOException, ParseException {
+        int next = peekNonWhitespace();
+        if (next == '{' || next == '[') {
+            int close = (next == '{') ? '}' : ']';
+            nextByte();
+            if (peekNonWhitespace() == close) {
+                nextByte();
+                return;
+            }
+            do {
+                if (close == '}') {
+                    readKey();
+                }
+                skipValue();
+            } while (nextSeparator(close));
+        }
+        else {
+            readScalar();
+        }
+    }
+
+    /**
+     * Consumes the separator after a member. Returns true on ',' and false on the closing character.
+     */
+    private boolean nextSeparator(int close) throws IOException, ParseException {
+        int next = peekNonWhitespace();
+        nextByte();
+        if (next == ',') {
+            return true;
+        }
+        if (next == close) {
+            return false;
+        }
+        throw unexpected(next);
+    }
+
+    private void expect(int expected) throws IOException, ParseException {
+        int next = peekNonWhitespace();
+        if (next != expected) {
+            throw unexpected(next);
+        }
+        nextByte();
+    }
+
+    private int parseTextAsInt() throws ParseException {
+        int value = 0;
+        boolean negative = false;
+        for (int i = 0; i < this.textLength; i++) {
+            char character = this.text[i];
+            if (i == 0 && character == '-') {
+                negative = true;
+            }
+            else if (character >= '0' && character <= '9') {
+                value = value * 10 + (character - '0');
+            }
+            else {
+                throw unexpected(character);
+            }
+        }
+        return negative ? -value : value;
+    }
+
+    private boolean textEquals(char[] expected) {
+        if (this.textLength != expected.length) {
+            return false;
+        }
+        for (int i = 0; i < this.textLength; i++) {
+            if (this.text[i] != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean textEquals(String expected) {
+        if (this.textLength != expected.length()) {
+            return false;
+        }
+        for (int i = 0; i < this.textLength; i++) {
+            if (this.text[i] != expected.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void appendText(char character) throws IOException {
+        if (this.spillAllowed && this.textLength == this.maxInlineLength) {
+            spillText();
+        }
+        if (this.textLength == this.text.length) {
+            char[] larger = new char[this.text.length * 2];
+            System.arraycopy(this.text, 0, larger, 0, this.textLength);
+            this.text = larger;
+        }
+        this.text[this.textLength++] = character;
+    }
+
+    /**
+     * Moves the text read so far into the large value store, starting a new value there if need be
+     */
+    private void spillText() throws IOException {
+        if (this.spillWriter == null) {
+            this.spillWriter = new OutputStreamWriter(this.largeValueStore.begin(), "UTF-8");
+        }
+        this.spillWriter.write(this.text, 0, this.textLength);
+        this.textLength = 0;
+    }
+
+    /**
+     * Writes out the rest of a spilled value and returns the reference that stands in for it
+     */
+    private String finishSpill() throws IOException {
+        this.spillWriter.write(this.text, 0, this.textLength);
+        this.spillWriter.flush();
+        this.spillWriter = null;
+        this.textLength = 0;
+        return this.largeValueStore.end();
+    }
+
+    private int peekNonWhitespace() throws IOException {
+        while (true) {
+            int next = peekByte();
+            if (next == ' ' || next == '\n' || next == '\r' || next == '\t') {
+                nextByte();
+            }
+            else {
+                return next;
+            }
+        }
+    }
+
+    private int peekByte() throws IOException {
+        if (this.peeked < END_OF_STREAM) {
+            this.peeked = readByte();
+        }
+        return this.peeked;
+    }
+
+    private int nextByte() throws IOException {
+        if (this.peeked >= END_OF_STREAM) {
+            int next = this.peeked;
+            this.peeked = END_OF_STREAM - 1;
+            return next;
+        }
+        return readByte();
+    }
+
+    /**
+     * Adds the consumed bytes that aren't in the checksum yet
+     */
+    private void updateChecksum() {
+        int consumed = this.position - (this.peeked >= 0 ? 1 : 0);
+        if (consumed > this.checksumPosition) {
+            this.checksum.update(this.buffer, this.checksumPosition, consumed - this.checksumPosition);
+            this.checksumPosition = consumed;
+        }
+    }
+
+    private int readByte() throws IOException {
+        if (this.position == this.limit) {
+            if (this.checksum != null) {
+                updateChecksum();
+                this.checksumPosition = 0;
+            }
+            this.bufferOffset += this.limit;
+            this.position = 0;
+            this.limit = 0;
+            int count = this.input.read(this.buffer, 0, this.buffer.length);
+            while (count == 0) {
+                count = this.input.read(this.buffer, 0, this.buffer.length);
+            }
+            if (count < 0) {
+                return END_OF_STREAM;
+            }
+            this.limit = count;
+        }
+        return this.buffer[this.position++] & 0xFF;
+    }
+
+    private ParseException unexpected(int character) {
+        int position = (int)getBytesConsumed();
+        if (character == END_OF_STREAM) {
+            return new ParseException(position, ParseException.ERROR_UNEXPECTED_TOKEN, "END OF FILE");
+        }
+        return new ParseException(position, ParseException.ERROR_UNEXPECTED_CHAR, Character.valueOf((char)character));
+    }
+}
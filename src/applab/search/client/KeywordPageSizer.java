@@ -0,0 +1,90 @@
+/**
+ * Copyright (C) 2010 Grameen Foundation
+Licensed under the Apache License, Version 2.0 (the "License"); you may not
+use this file except in compliance with the License. You may obtain a copy of
+the License at http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations under
+the License.
+ */
+
+package applab.search.client;
+
+/**
+ * Picks how many records to ask for in each page of a paged keyword update.
+ *
+ * A page should take about TARGET_PAGE_MILLISECONDS to arrive and be ingested, so that a dropped connection costs at
+ * most that much work, and at least LATENCY_FACTOR times the time the server takes to start answering, so that round
+ * trips don't dominate on links with high latency. Records per second and latency are smoothed over the pages seen
+ * so far. A page grows at most twofold at a time, and a page that fails halves the size.
+ */
+public class KeywordPageSizer {
+    public static final int MIN_PAGE_SIZE = 25;
+    public static final int MAX_PAGE_SIZE = 5000;
+    public static final int INITIAL_PAGE_SIZE = 200;
+
+    static final long TARGET_PAGE_MILLISECONDS = 15 * 1000;
+    static final int LATENCY_FACTOR = 4;
+
+    /** weight of the latest page in the smoothed measurements */
+    private static final double SMOOTHING = 0.5;
+
+    private int pageSize;
+    private double recordsPerSecond = -1;
+    private double latencyMilliseconds = -1;
+
+    public KeywordPageSizer() {
+        this(INITIAL_PAGE_SIZE);
+    }
+
+    /**
+     * Starts from pageSize, e.g. what the last update settled on
+     */
+    public KeywordPageSizer(int pageSize) {
+        this.pageSize = clamp(pageSize);
+    }
+
+    public int getPageSize() {
+        return this.pageSize;
+    }
+
+    /**
+     * Adjusts the page size after a page of records has been ingested
+     *
+     * @param records
+     *            records the page carried
+     * @param responseMilliseconds
+     *            from sending the request to the response starting to arrive
+     * @param transferMilliseconds
+     *            from the response starting to arrive to the page being committed
+     */
+    public void onPageCompleted(int records, long responseMilliseconds, long transferMilliseconds) {
+        if (records <= 0) {
+            return;
+        }
+        double rate = records * 1000.0 / Math.max(1, transferMilliseconds);
+        this.recordsPerSecond = smooth(this.recordsPerSecond, rate);
+        this.latencyMilliseconds = smooth(this.latencyMilliseconds, responseMilliseconds);
+
+        double targetMilliseconds = Math.max(TARGET_PAGE_MILLISECONDS, LATENCY_FACTOR * this.latencyMilliseconds);
+        double size = this.recordsPerSecond * targetMilliseconds / 1000;
+        this.pageSize = clamp((int)Math.min(size, 2.0 * this.pageSize));
+    }
+
+    /**
+     * Shrinks the page size after a page broke off or timed out
+     */
+    public void onPageFailed() {
+        this.pageSize = clamp(this.pageSize / 2);
+    }
+
+    private static double smooth(double average, double value) {
+        return average < 0 ? value : average + SMOOTHING * (value - average);
+    }
+
+    private static int clamp(int pageSize) {
+        return Math.max(MIN_PAGE_SIZE, Math.min(MAX_PAGE_SIZE, pageSize));
+    }
+}
@@ -0,0 +1,195 @@
+/**
+ * Copyright (C) 2010 Grameen Foundation
+Licensed under the Apache License, Version 2.0 (the "License"); you may not
+use this file except in compliance with the License. You may obtain a copy of
+the License at http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations under
+the License.
+ */
+
+package applab.search.client;
+
+/**
+ * Reusable buffer for one record of the keyword payload (a Menu, MenuItem, DeletedMenuItem, Image or DeletedImage).
+ *
+ * The keys we know about are mapped to fixed slots, in the same order as the columns of the menu_item table, so that a
+ * record can be bound straight to a statement. The parser fills the same instance over and over instead of allocating
+ * a map per record.
+ *
+ * Values can be set either as Strings or as char slices. Slices are copied into per-slot buffers that are reused from
+ * record to record, and only turned into a String when someone asks for the value.
+ */
+public class KeywordRecord {
+    /* Record types, one per array in the keyword payload */
+    public static final int TYPE_UNKNOWN = 0;
+    public static final int TYPE_MENU = 1;
+    public static final int TYPE_MENU_ITEM = 2;
+    public static final int TYPE_DELETED_MENU_ITEM = 3;
+    public static final int TYPE_IMAGE = 4;
+    public static final int TYPE_DELETED_IMAGE = 5;
+
+    /* Field slots, in menu_item column order */
+    public static final int SLOT_ID = 0;
+    public static final int SLOT_LABEL = 1;
+    public static final int SLOT_MENU_ID = 2;
+    public static final int SLOT_PARENT_ID = 3;
+    public static final int SLOT_POSITION = 4;
+    public static final int SLOT_CONTENT = 5;
+    public static final int SLOT_ATTACHMENT_ID = 6;
+    public static final int SLOT_COUNT = 7;
+
+    private static final String[] SLOT_KEYS = { Storage.MENU_ITEM_ROWID_COLUMN, Storage.MENU_ITEM_LABEL_COLUMN,
+            Storage.MENU_ITEM_MENUID_COLUMN, Storage.MENU_ITEM_PARENTID_COLUMN, Storage.MENU_ITEM_POSITION_COLUMN,
+            Storage.MENU_ITEM_CONTENT_COLUMN, Storage.MENU_ITEM_ATTACHMENTID_COLUMN };
+
+    private static final String[] TYPE_NAMES = { null, "Menus", "MenuItems", "DeletedMenuItems", "Images",
+            "DeletedImages" };
+
+    /** marks a slot whose value is held in values[] rather than in the char buffers */
+    private static final int STRING_VALUE = -2;
+    private static final int NO_VALUE = -1;
+
+    private int type;
+
+    /** slot values; null means the key was not present in this record (or hasn't been materialized yet) */
+    private final String[] values = new String[SLOT_COUNT];
+
+    /** char buffers for slice values, and how many chars of each are in use */
+    private final char[][] chars = new char[SLOT_COUNT][];
+    private final int[] lengths = new int[SLOT_COUNT];
+
+    /** where the record ends in the payload, filled in by the tokenizer when checksums are being tracked */
+    private long endOffset;
+    private long endChecksum;
+
+    public KeywordRecord() {
+        clear();
+    }
+
+    /**
+     * Returns the slot for the given JSON key, or -1 if it is not a column we store
+     */
+    public static int slotForKey(String key) {
+        for (int slot = 0; slot < SLOT_COUNT; slot++) {
+            if (SLOT_KEYS[slot].equals(key)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the slot for the key held in the first length chars of key, or -1 if it is not a column we store
+     */
+    public static int slotForKey(char[] key, int length) {
+        for (int slot = 0; slot < SLOT_COUNT; slot++) {
+            if (matches(SLOT_KEYS[slot], key, length)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the record type for the given payload array name
+     */
+    public static int typeForName(String name) {
+        for (int type = 1; type < TYPE_NAMES.length; type++) {
+            if (TYPE_NAMES[type].equals(name)) {
+                return type;
+            }
+        }
+        return TYPE_UNKNOWN;
+    }
+
+    /**
+     * Returns the record type for the array name held in the first length chars of name
+     */
+    public static int typeForName(char[] name, int length) {
+        for (int type = 1; type < TYPE_NAMES.length; type++) {
+            if (matches(TYPE_NAMES[type], name, length)) {
+                return type;
+            }
+        }
+        return TYPE_UNKNOWN;
+    }
+
+    private static boolean matches(String expected, char[] actual, int length) {
+        if (expected.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (expected.charAt(i) != actual[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int getType() {
+        return this.type;
+    }
+
+    public void setType(int type) {
+        this.type = type;
+    }
+
+    public long getEndOffset() {
+        return this.endOffset;
+    }
+
+    public long getEndChecksum() {
+        return this.endChecksum;
+    }
+
+    /**
+     * Records the payload offset just past this record, and the checksum of the payload up to that offset
+     */
+    public void setEnd(long endOffset, long endChecksum) {
+        this.endOffset = endOffset;
+        this.endChecksum = endChecksum;
+    }
+
+    public String get(int slot) {
+        if (this.values[slot] == null && this.lengths[slot] >= 0) {
+            this.values[slot] = new String(this.chars[slot], 0, this.lengths[slot]);
+        }
+        return this.values[slot];
+    }
+
+    public boolean has(int slot) {
+        return this.lengths[slot] != NO_VALUE;
+    }
+
+    public void set(int slot, String value) {
+        this.values[slot] = value;
+        this.lengths[slot] = (value == null) ? NO_VALUE : STRING_VALUE;
+    }
+
+    /**
+     * Copies the first length chars of source into this slot's reusable buffer
+     */
+    public void set(int slot, char[] source, int length) {
+        char[] buffer = this.chars[slot];
+        if (buffer == null || buffer.length < length) {
+            buffer = new char[Math.max(length, buffer == null ? 32 : buffer.length * 2)];
+            this.chars[slot] = buffer;
+        }
+        System.arraycopy(source, 0, buffer, 0, length);
+        this.lengths[slot] = length;
+        this.values[slot] = null;
+    }
+
+    /**
+     * Clears the field values so the buffer can be reused for the next record of the same type
+     */
+    public void clear() {
+        for (int slot = 0; slot < SLOT_COUNT; slot++) {
+            this.values[slot] = null;
+            this.lengths[slot] = NO_VALUE;
+        }
+    }
+}
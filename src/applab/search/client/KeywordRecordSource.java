@@ -0,0 +1,52 @@
+/**
+ * Copyright (C) 2010 Grameen Foundation
+Licensed under the Apache License, Version 2.0 (the "License"); you may not
+use this file except in compliance with the License. You may obtain a copy of
+the License at http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations under
+the License.
+ */
+
+package applab.search.client;
+
+import java.io.IOException;
+
+import org.json.simple.parser.ParseException;
+
+/**
+ * Something that reads a keyword payload and turns it into KeywordRecords: the JSON tokenizer or the binary decoder.
+ */
+public interface KeywordRecordSource {
+    /**
+     * Receives the pieces of the payload as they are read
+     */
+    interface Listener {
+        void onVersion(String version) throws IOException;
+
+        void onTotal(int total) throws IOException;
+
+        /**
+         * Called if the server asked us not to sync again for the given number of seconds
+         */
+        void onNextSyncAfter(int seconds) throws IOException;
+
+        /**
+         * Called if the payload is one page of a paged update and more pages follow. The token asks for the next one.
+         */
+        void onContinuation(String token) throws IOException;
+
+        /**
+         * Called once a record has been filled. Returns the buffer to fill with the next record, which may be the
+         * same instance.
+         */
+        KeywordRecord onRecord(KeywordRecord record) throws IOException;
+    }
+
+    /**
+     * Reads the whole payload, handing results to the listener. The record is the first buffer to fill.
+     */
+    void parse(Listener listener, KeywordRecord record) throws IOException, ParseException;
+}
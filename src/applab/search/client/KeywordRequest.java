@@ -0,0 +1,168 @@
+/**
+ * Copyright (C) 2010 Grameen Foundation
+Licensed under the Apache License, Version 2.0 (the "License"); you may not
+use this file except in compliance with the License. You may obtain a copy of
+the License at http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations under
+the License.
+ */
+
+package applab.search.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import org.apache.http.Header;
+import org.apache.http.entity.AbstractHttpEntity;
+
+/**
+ * Posts the keywords request and opens the response. This goes over HttpURLConnection rather than HttpHelpers, so that
+ * we can see the response headers and ask for only part of the response.
+ *
+ * An interrupted keyword ingest is resumed with Range: bytes=n- and If-Range: validator, where n is the byte offset of
+ * its checkpoint and the validator is the ETag that came with the interrupted response. The server either sends the
+ * rest of that same response (206), so what was already ingested doesn't come over the wire again, or, if the response
+ * has changed or it doesn't do ranges, all of it (200), which the caller checks against the checkpoint as before.
+ *
+ * Byte ranges only make sense on the bytes as stored, so a resumed request asks for them without content encoding.
+ */
+public class KeywordRequest {
+    private static final String LOG_TAG = "KeywordRequest";
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+    private final String url;
+    private final AbstractHttpEntity entity;
+    private final int timeout;
+    private SyncEngine syncEngine;
+    private long resumeOffset;
+    private String resumeValidator;
+
+    private HttpURLConnection connection;
+    private boolean resumed;
+    private String validator;
+
+    /**
+     * @param timeout
+     *            the connect and read timeout, in milliseconds
+     */
+    public KeywordRequest(String url, AbstractHttpEntity entity, int timeout) {
+        this.url = url;
+        this.entity = entity;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Asks for the response from the given byte on, provided it still has the given validator
+     */
+    public void setResumeFrom(long offset, String validator) {
+        this.resumeOffset = offset;
+        this.resumeValidator = validator;
+    }
+
+    /**
+     * Lets the synchronization episode the request belongs to break the connection off if it is stopped while we wait
+     * for the response
+     */
+    public void setSyncEngine(SyncEngine syncEngine) {
+        this.syncEngine = syncEngine;
+    }
+
+    /**
+     * Sends the request and returns the response body, or null if the server answered with an error. Call
+     * disconnect() once done with the body.
+     */
+    public InputStream open() throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection)new URL(this.url).openConnection();
+        this.connection = connection;
+        Closeable abortHandle = new Closeable() {
+            public void close() {
+                connection.disconnect();
+            }
+        };
+        if (this.syncEngine != null) {
+            this.syncEngine.setActiveStream(abortHandle);
+        }
+        try {
+            connection.setConnectTimeout(this.timeout);
+            connection.setReadTimeout(this.timeout);
+            connection.setDoOutput(true);
+            connection.setRequestMethod("POST");
+            Header contentType = this.entity.getContentType();
+            if (contentType != null) {
+                connection.setRequestProperty("Content-Type", contentType.getValue());
+            }
+            if (this.resumeValidator != null) {
+                connection.setRequestProperty("Accept-Encoding", "identity");
+                connection.setRequestProperty("Range", "bytes=" + this.resumeOffset + "-");
+                connection.setRequestProperty("If-Range", this.resumeValidator);
+            }
+            OutputStream outputStream = connection.getOutputStream();
+            try {
+                this.entity.writeTo(outputStream);
+            }
+            finally {
+                outputStream.close();
+            }
+
+            int status = connection.getResponseCode();
+            long rangeStart = ResumableDownload.getRangeStart(connection.getHeaderField("Content-Range"));
+            if (status == HttpURLConnection.HTTP_PARTIAL && this.resumeValidator != null
+                    && rangeStart == this.resumeOffset) {
+                Trace.i(Trace.SYNC, LOG_TAG, "Resuming keyword response at byte ", this.resumeOffset);
+                this.resumed = true;
+                this.validator = this.resumeValidator;
+            }
+            else if (status == HttpURLConnection.HTTP_OK) {
+                if (this.resumeValidator != null) {
+                    Trace.i(Trace.SYNC, LOG_TAG, "Server sent all of the keyword response again");
+                }
+                this.validator = ResumableDownload.getValidator(connection);
+            }
+            else if (status == HTTP_RANGE_NOT_SATISFIABLE && this.resumeValidator != null) {
+                // the checkpoint no longer fits the response, so ask for all of it
+                Trace.i(Trace.SYNC, LOG_TAG, "Server can't resume the keyword response at byte ", this.resumeOffset);
+                connection.disconnect();
+                this.resumeValidator = null;
+                return open();
+            }
+            else {
+                Trace.w(Trace.SYNC, LOG_TAG, "Keywords request failed with status ", status);
+                return null;
+            }
+            return connection.getInputStream();
+        }
+        finally {
+            if (this.syncEngine != null) {
+                this.syncEngine.clearActiveStream(abortHandle);
+            }
+        }
+    }
+
+    /**
+     * True if the response picks up at the offset given to setResumeFrom() rather than starting from the top
+     */
+    public boolean isResumed() {
+        return this.resumed;
+    }
+
+    /**
+     * The ETag (or else the Last-Modified date) of the response, which a later request can resume it with, or null if
+     * it had neither
+     */
+    public String getValidator() {
+        return this.validator;
+    }
+
+    public void disconnect() {
+        if (this.connection != null) {
+            this.connection.disconnect();
+        }
+    }
+}
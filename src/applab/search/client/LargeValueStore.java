@@ -0,0 +1,33 @@
+/**
+ * Copyright (C) 2010 Grameen Foundation
+Licensed under the Apache License, Version 2.0 (the "License"); you may not
+use this file except in compliance with the License. You may obtain a copy of
+the License at http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations under
+the License.
+ */
+
+package applab.search.client;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Somewhere to put field values that are too big to hold in memory while ingesting. A value is written out a chunk
+ * at a time as UTF-8, and the record then carries the short reference returned by end() instead of the value itself.
+ * One value is written at a time.
+ */
+public interface LargeValueStore {
+    /**
+     * Starts a new value and returns the stream to write it to
+     */
+    OutputStream begin() throws IOException;
+
+    /**
+     * Finishes the value started by begin() and returns the reference to store in its place
+     */
+    String end() throws IOException;
+}
@@ -2,6 +2,7 @@ package applab.search.client;
 
 import android.app.ProgressDialog;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.util.Log;
 import applab.client.search.R;
 
@@ -62,6 +63,7 @@ public class ProgressDialogManager {
                         dialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
                         dialog.setIndeterminate(true);
                         dialog.setCancelable(false);
+                        addCancelSynchronizationButton(dialog, context);
                         setMax(100);
                         break;
                     case GlobalConstants.CONNECT_DIALOG:
@@ -75,6 +77,7 @@ public class ProgressDialogManager {
                         dialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
                         dialog.setIndeterminate(false);
                         dialog.setCancelable(false);
+                        addCancelSynchronizationButton(dialog, context);
                         break;
                     case GlobalConstants.SETUP_DIALOG:
                         dialog.setTitle(context.getString(R.string.progress_header));
@@ -96,6 +99,17 @@ public class ProgressDialogManager {
         }
     }
 
+    /**
+     * Lets the user abandon the synchronization episode the dialog is tracking
+     */
+    private static void addCancelSynchronizationButton(ProgressDialog dialog, Context context) {
+        dialog.setButton(context.getString(R.string.cancel_button), new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int id) {
+                SynchronizationManager.cancelSynchronization();
+            }
+        });
+    }
+
     private static ProgressDialog getLastOrNewDialog(Context context) {
         if (ProgressDialogManager.progressDialog == null) {
             ProgressDialogManager.progressDialog = new ProgressDialog(context);
@@ -116,6 +130,18 @@ public class ProgressDialogManager {
         }
     }
 
+    /**
+     * Applies a progress update from a SyncProgressReporter. A max of 0 leaves the current max alone.
+     */
+    public static void updateProgress(int level, int max) {
+        if (max > 0) {
+            setMax(max);
+        }
+        if (level > 0) {
+            setProgress(level);
+        }
+    }
+
     public static boolean isVisible() {
         return (ProgressDialogManager.progressDialog instanceof ProgressDialog) && ProgressDialogManager.progressDialog.isShowing();
     }
@@ -0,0 +1,293 @@
+/**
+ * Copyright (C) 2010 Grameen Foundation
+Licensed under the Apache License, Version 2.0 (the "License"); you may not
+use this file except in compliance with the License. You may obtain a copy of
+the License at http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations under
+the License.
+ */
+
+package applab.search.client;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Properties;
+
+
+/**
+ * Downloads a resource into a partial file that survives a broken connection, so the next attempt asks only for the
+ * bytes that are still missing.
+ *
+ * Next to the partial file we keep the URL and the validator the server sent with it (its ETag, or else its
+ * Last-Modified date). A resumed request sends Range: bytes=n- together with If-Range: validator, so the server
+ * either sends the rest (206) or, if the resource has changed or it doesn't do ranges, the whole thing again (200), in
+ * which case we start over. Without a validator we can't tell whether the bytes we have are still good, so such
+ * downloads always start from the beginning.
+ *
+ * Byte ranges only make sense on the bytes as stored, so we ask for the resource without content encoding.
+ */
+public class ResumableDownload {
+    private static final String LOG_TAG = "ResumableDownload";
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private static final String META_SUFFIX = ".meta";
+    private static final String URL_PROPERTY = "url";
+    private static final String VALIDATOR_PROPERTY = "validator";
+
+    private static int timeout = 60 * 1000;
+
+    private final String url;
+    private final File partFile;
+    private final File metaFile;
+    private SyncEngine syncEngine;
+
+    /**
+     * @param partFile
+     *            where the download is kept until it is complete
+     */
+    public ResumableDownload(String url, File partFile) {
+        this.url = url;
+        this.partFile = partFile;
+        this.metaFile = new File(partFile.getPath() + META_SUFFIX);
+    }
+
+    /**
+     * Sets the connect and read timeout for downloads, in milliseconds
+     */
+    public static void setTimeout(int timeout) {
+        ResumableDownload.timeout = timeout;
+    }
+
+    /**
+     * Reports received bytes to the synchronization episode the download belongs to, and stops the download if that
+     * episode is cancelled or stopped
+     */
+    public void setSyncEngine(SyncEngine syncEngine) {
+        this.syncEngine = syncEngine;
+    }
+
+    /**
+     * The downloaded bytes, complete once run() has returned true
+     */
+    public File getFile() {
+        return this.partFile;
+    }
+
+    /**
+     * Fetches whatever of the resource is still missing. Returns true once all of it is in getFile(), or false if the
+     * server answered with an error. Throws if the connection breaks, keeping what arrived for the next run().
+     */
+    public boolean run() throws IOException {
+        String validator = null;
+        long offset = 0;
+        Properties metadata = loadMetadata();
+        if (metadata != null && this.url.equals(metadata.getProperty(URL_PROPERTY))) {
+            validator = metadata.getProperty(VALIDATOR_PROPERTY);
+            offset = this.partFile.length();
+        }
+        if (validator == null || offset == 0) {
+            discard();
+            offset = 0;
+        }
+
+        final HttpURLConnection connection = (HttpURLConnection)new URL(this.url).openConnection();
+
+        // until the body starts arriving, stopping the episode breaks the connection itself
+        Closeable abortHandle = new Closeable() {
+            public void close() {
+                connection.disconnect();
+            }
+        };
+        if (this.syncEngine != null) {
+            this.syncEngine.setActiveStream(abortHandle);
+        }
+        try {
+            connection.setConnectTimeout(timeout);
+            connection.setReadTimeout(timeout);
+            connection.setRequestProperty("Accept-Encoding", "identity");
+            if (offset > 0) {
+                connection.setRequestProperty("Range", "bytes=" + offset + "-");
+                connection.setRequestProperty("If-Range", validator);
+            }
+
+            int status = connection.getResponseCode();
+            long length;
+            if (status == HttpURLConnection.HTTP_PARTIAL && offset > 0
+                    && getRangeStart(connection.getHeaderField("Content-Range")) == offset) {
+                if (Trace.isEnabled(Trace.IMAGES, Trace.INFO)) {
+                    Trace.i(Trace.IMAGES, LOG_TAG, "Resuming " + this.url + " at byte " + offset);
+                }
+                length = getRangeLength(connection.getHeaderField("Content-Range"));
+            }
+            else if (status == HttpURLConnection.HTTP_OK) {
+                if (offset > 0) {
+                    Trace.i(Trace.IMAGES, LOG_TAG, "Server sent all of the download again, starting over: ", this.url);
+                }
+                offset = 0;
+                length = connection.getContentLength();
+                validator = getValidator(connection);
+            }
+            else if (status == HTTP_RANGE_NOT_SATISFIABLE && offset > 0) {
+                // what we have no longer fits the resource
+                if (Trace.isEnabled(Trace.IMAGES, Trace.INFO)) {
+                    Trace.i(Trace.IMAGES, LOG_TAG, "Server can't resume " + this.url + " at byte " + offset
+                            + ", starting over");
+                }
+                connection.disconnect();
+                discard();
+                return run();
+            }
+            else if (status == HttpURLConnection.HTTP_PARTIAL) {
+                Trace.w(Trace.IMAGES, LOG_TAG, "Server sent a range we didn't ask for: ", this.url);
+                discard();
+                return false;
+            }
+            else {
+                if (Trace.isEnabled(Trace.IMAGES, Trace.WARN)) {
+                    Trace.w(Trace.IMAGES, LOG_TAG, "Download of " + this.url + " failed with status " + status);
+                }
+                return false;
+            }
+
+            // write the metadata first: bytes without it are thrown away, while metadata without bytes is harmless
+            if (offset == 0) {
+                discard();
+                if (validator != null) {
+                    saveMetadata(validator);
+                }
+            }
+            copy(connection.getInputStream(), offset > 0);
+
+            if (length >= 0 && this.partFile.length() != length) {
+                throw new EOFException("Download of " + this.url + " ended after " + this.partFile.length() + " of "
+                        + length + " bytes");
+            }
+            return true;
+        }
+        finally {
+            if (this.syncEngine != null) {
+                this.syncEngine.clearActiveStream(abortHandle);
+            }
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Deletes the partial file and its metadata, e.g. once the caller is done with a completed download
+     */
+    public void discard() {
+        this.partFile.delete();
+        this.metaFile.delete();
+    }
+
+    private void copy(InputStream inputStream, boolean append) throws IOException {
+        if (this.syncEngine != null) {
+            inputStream = new CancellableInputStream(inputStream, this.syncEngine);
+        }
+        OutputStream outputStream = new FileOutputStream(this.partFile, append);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int count;
+            while ((count = inputStream.read(buffer)) >= 0) {
+                outputStream.write(buffer, 0, count);
+            }
+        }
+        finally {
+            outputStream.close();
+            inputStream.close();
+        }
+    }
+
+    /**
+     * The ETag, or else the Last-Modified date, or null if the server sent neither. Weak ETags can't be used with
+     * If-Range.
+     */
+    static String getValidator(HttpURLConnection connection) {
+        String eTag = connection.getHeaderField("ETag");
+        if (eTag != null && !eTag.startsWith("W/")) {
+            return eTag;
+        }
+        return connection.getHeaderField("Last-Modified");
+    }
+
+    /**
+     * The first byte position in a Content-Range header of the form "bytes first-last/length", or -1
+     */
+    static long getRangeStart(String contentRange) {
+        if (contentRange == null || !contentRange.startsWith("bytes ")) {
+            return -1;
+        }
+        int dash = contentRange.indexOf('-');
+        if (dash < 0) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(contentRange.substring("bytes ".length(), dash).trim());
+        }
+        catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * The complete length in a Content-Range header, or -1 if it is unknown
+     */
+    static long getRangeLength(String contentRange) {
+        int slash = contentRange == null ? -1 : contentRange.indexOf('/');
+        if (slash < 0) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(contentRange.substring(slash + 1).trim());
+        }
+        catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private Properties loadMetadata() {
+        if (!this.metaFile.exists() || !this.partFile.exists()) {
+            return null;
+        }
+        Properties metadata = new Properties();
+        try {
+            InputStream inputStream = new FileInputStream(this.metaFile);
+            try {
+                metadata.load(inputStream);
+            }
+            finally {
+                inputStream.close();
+            }
+            return metadata;
+        }
+        catch (IOException e) {
+            Trace.w(Trace.IMAGES, LOG_TAG, "Failed to read download metadata: ", e);
+            return null;
+        }
+    }
+
+    private void saveMetadata(String validator) throws IOException {
+        Properties metadata = new Properties();
+        metadata.setProperty(URL_PROPERTY, this.url);
+        metadata.setProperty(VALIDATOR_PROPERTY, validator);
+        OutputStream outputStream = new FileOutputStream(this.metaFile);
+        try {
+            metadata.store(outputStream, null);
+        }
+        finally {
+            outputStream.close();
+        }
+    }
+}
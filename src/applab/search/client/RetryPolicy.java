@@ -0,0 +1,160 @@
+/**
+ * Copyright (C) 2010 Grameen Foundation
+Licensed under the Apache License, Version 2.0 (the "License"); you may not
+use this file except in compliance with the License. You may obtain a copy of
+the License at http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations under
+the License.
+ */
+
+package applab.search.client;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.MalformedURLException;
+import java.util.Random;
+
+
+/**
+ * Decides whether a failed network operation is worth trying again, and how long to wait first.
+ *
+ * An operation gets up to maxAttempts tries. The wait after the nth failure is initialDelay doubled n - 1 times, capped
+ * at maxDelay, plus up to jitter times as long again at random so that handsets that failed together don't all come
+ * back together. Only failures that can heal by themselves are retried: I/O errors such as timeouts, dropped
+ * connections and missing responses. A bad URL, a missing resource or a payload we can't parse will fail the same way
+ * next time, so those are reported straight away.
+ *
+ * The sync phases and search submission each have a shared policy, so that the user is only asked to retry once the
+ * policy has given up.
+ */
+public class RetryPolicy {
+    private static final String LOG_TAG = "RetryPolicy";
+
+    /** how often a wait checks whether the synchronization episode has been stopped */
+    private static final long STOP_CHECK_INTERVAL = 500;
+
+    /** tries once and never retries */
+    public static final RetryPolicy NONE = new RetryPolicy(1, 0, 0, 0);
+
+    // waits can be up to a minute and a half; SyncPhaseRunner holds off the watchdog's stall check while they last
+    private static RetryPolicy syncPolicy = new RetryPolicy(4, 5 * 1000, 60 * 1000, 0.5);
+
+    // someone is waiting on a search, so give up sooner
+    private static RetryPolicy searchPolicy = new RetryPolicy(3, 2 * 1000, 8 * 1000, 0.5);
+
+    private final int maxAttempts;
+    private final long initialDelay;
+    private final long maxDelay;
+    private final double jitter;
+    private final Random random = new Random();
+
+    /**
+     * @param maxAttempts
+     *            tries in total, including the first
+     * @param initialDelay
+     *            wait after the first failure, in milliseconds
+     * @param maxDelay
+     *            longest wait before jitter, in milliseconds
+     * @param jitter
+     *            how much longer than the backoff a wait may be, as a fraction of it
+     */
+    public RetryPolicy(int maxAttempts, long initialDelay, long maxDelay, double jitter) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.initialDelay = initialDelay;
+        this.maxDelay = Math.max(initialDelay, maxDelay);
+        this.jitter = jitter;
+    }
+
+    /**
+     * The policy the sync phases run under
+     */
+    public static RetryPolicy getSyncPolicy() {
+        return syncPolicy;
+    }
+
+    public static void setSyncPolicy(RetryPolicy syncPolicy) {
+        RetryPolicy.syncPolicy = syncPolicy;
+    }
+
+    /**
+     * The policy searches submitted from the UI run under
+     */
+    public static RetryPolicy getSearchPolicy() {
+        return searchPolicy;
+    }
+
+    public static void setSearchPolicy(RetryPolicy searchPolicy) {
+        RetryPolicy.searchPolicy = searchPolicy;
+    }
+
+    public int getMaxAttempts() {
+        return this.maxAttempts;
+    }
+
+    /**
+     * True if an operation that has failed the given number of times, the last time with failure, should be tried
+     * again. A null failure means the operation failed without an exception, e.g. because no response came back.
+     */
+    public boolean shouldRetry(int attempts, Throwable failure) {
+        return attempts < this.maxAttempts && isRetryable(failure);
+    }
+
+    /**
+     * How long to wait after the given number of failed attempts, in milliseconds
+     */
+    public long getDelay(int attempts) {
+        long delay = this.initialDelay;
+        for (int i = 1; i < attempts && delay < this.maxDelay; i++) {
+            delay *= 2;
+        }
+        delay = Math.min(delay, this.maxDelay);
+        return delay + (long)(this.random.nextDouble() * this.jitter * delay);
+    }
+
+    /**
+     * Waits before the next attempt. Returns false, possibly early, if the synchronization episode is stopped or the
+     * thread is interrupted while waiting, in which case there should be no next attempt. syncEngine may be null.
+     */
+    public boolean waitBeforeRetry(int attempts, SyncEngine syncEngine) {
+        long delay = getDelay(attempts);
+        if (Trace.isEnabled(Trace.SYNC, Trace.INFO)) {
+            Trace.i(Trace.SYNC, LOG_TAG, "Attempt " + attempts + " of " + this.maxAttempts + " failed, trying again in "
+                    + delay + "ms");
+        }
+        long endTime = System.currentTimeMillis() + delay;
+        try {
+            while (true) {
+                if (syncEngine != null && syncEngine.isStopRequested()) {
+                    return false;
+                }
+                long remaining = endTime - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return true;
+                }
+                Thread.sleep(Math.min(remaining, STOP_CHECK_INTERVAL));
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * True if the failure might not happen next time
+     */
+    public static boolean isRetryable(Throwable failure) {
+        if (failure == null) {
+            return true;
+        }
+        if (failure instanceof UnsupportedEncodingException || failure instanceof MalformedURLException
+                || failure instanceof FileNotFoundException) {
+            return false;
+        }
+        return failure instanceof IOException;
+    }
+}
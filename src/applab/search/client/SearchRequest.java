@@ -33,6 +33,9 @@ public class SearchRequest {
     private String result;
     private String category;
 
+    /** why the last submit() failed, if it threw */
+    private Exception failure;
+
     // TODO: add category as an input to SearchRequest
     public SearchRequest(String keyword, String farmerId, String submissionTime) {
         this(keyword, farmerId, submissionTime, null);
@@ -86,6 +89,10 @@ public class SearchRequest {
         return this.location;
     }
 
+    public String getSubmissionTime() {
+        return this.submissionTime;
+    }
+
     public String getResult() {
         return this.result;
     }
@@ -97,6 +104,7 @@ public class SearchRequest {
      * unsent-searches and logs
      */
     public boolean submit() {
+        this.failure = null;
         String searchUrl = Settings.getNewServerUrl() + "search/search";
         StringBuilder requestParameters = new StringBuilder();
         try {
@@ -116,16 +124,31 @@ public class SearchRequest {
         }
         catch (UnsupportedEncodingException e) {
             // We should never get here, but if so, report failure
+            this.failure = e;
             return false;
         } 
         catch(Exception exception)
         {
             exception.printStackTrace();
+            this.failure = exception;
             return false;
         }
         return this.result != null;
     }
 
+    /**
+     * Submits the request, trying again after a backoff for as long as the failures look transient and the policy
+     * allows. Blocks, so call it from a background thread.
+     */
+    public boolean submit(RetryPolicy retryPolicy) {
+        for (int attempts = 1; !submit(); attempts++) {
+            if (!retryPolicy.shouldRetry(attempts, this.failure) || !retryPolicy.waitBeforeRetry(attempts, null)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * Method that can be called from the UI thread to submit this request in the background
      */
@@ -148,10 +171,11 @@ public class SearchRequest {
             }
         };
 
-        // now make a request to our server in the background so that we don't block the UI thread
+        // now make a request to our server in the background so that we don't block the UI thread. Transient failures
+        // are retried quietly; the user is only asked once the retry policy has given up
         Thread backgroundThread = new Thread() {
             public void run() {
-                if (submit()) {
+                if (submit(RetryPolicy.getSearchPolicy())) {
                     sendSuccessMessage(internalHandler);
                 }
                 else {
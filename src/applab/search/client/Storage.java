@@ -14,6 +14,7 @@ package applab.search.client;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 
 import android.content.ContentValues;
@@ -22,7 +23,6 @@ import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
-import android.util.Log;
 import applab.client.search.R;
 
 /**
@@ -42,8 +42,28 @@ public class Storage {
     public static final String MENU_ITEM_PARENTID_COLUMN = "parent_id";
     public static final String MENU_ITEM_ATTACHMENTID_COLUMN = "attachment_id";
 
-    private static final String DATABASE_NAME = "search";
-    private static final int DATABASE_VERSION = 6;
+    /* Ingest Checkpoint Table Columns */
+    public static final String CHECKPOINT_ROWID_COLUMN = "id";
+    public static final String CHECKPOINT_BASE_VERSION_COLUMN = "base_version";
+    public static final String CHECKPOINT_MENU_IDS_COLUMN = "menu_ids";
+    public static final String CHECKPOINT_PAYLOAD_VERSION_COLUMN = "payload_version";
+    public static final String CHECKPOINT_TOTAL_COLUMN = "total";
+    public static final String CHECKPOINT_BYTE_OFFSET_COLUMN = "byte_offset";
+    public static final String CHECKPOINT_CHECKSUM_COLUMN = "checksum";
+    public static final String CHECKPOINT_RECORD_TYPE_COLUMN = "record_type";
+    public static final String CHECKPOINT_RECORD_COUNT_COLUMN = "record_count";
+    public static final String CHECKPOINT_CONTINUATION_COLUMN = "continuation";
+    public static final String CHECKPOINT_PAGE_SIZE_COLUMN = "page_size";
+    public static final String CHECKPOINT_NEXT_CONTINUATION_COLUMN = "next_continuation";
+    public static final String CHECKPOINT_SYNC_NOT_BEFORE_COLUMN = "sync_not_before";
+    public static final String CHECKPOINT_PAYLOAD_VALIDATOR_COLUMN = "payload_validator";
+
+    /* Ingest Seen Table Columns */
+    public static final String SEEN_TYPE_COLUMN = "type";
+    public static final String SEEN_ITEM_ID_COLUMN = "item_id";
+
+    static final String DATABASE_NAME = "search";
+    private static final int DATABASE_VERSION = 11;
     private static final int SEQUENCES = 32;
 
     /** keep track of batch size to enable batch inserts **/
@@ -69,6 +89,11 @@ public class Storage {
     public Storage open() throws SQLException {
         this.databaseHelper = new DatabaseHelper(context);
         this.database = databaseHelper.getWritableDatabase();
+        if (this.databaseHelper.vacuumPending) {
+            // can't run inside onUpgrade's transaction
+            this.databaseHelper.vacuumPending = false;
+            this.database.execSQL("VACUUM");
+        }
         return this;
     }
 
@@ -109,7 +134,9 @@ public class Storage {
                     new String[] { menuItemId }, null, null, null, null);
             cursor.moveToFirst();
             String content = cursor.getString(0);
-            return content;
+
+            // very large content is kept in a file
+            return ContentFileStore.resolve(this.context, content);
         }
         
         finally {
@@ -148,6 +175,207 @@ public class Storage {
         // MAX_BATCH_SIZE values in the batch
     }
 
+    /**
+     * Creates a writer for bulk keyword ingest that commits every batchSize rows. The caller must close() it before
+     * closing this Storage.
+     */
+    public KeywordBatchWriter createKeywordBatchWriter(int batchSize) {
+        return createKeywordBatchWriter(batchSize, false);
+    }
+
+    /**
+     * Creates a writer for bulk keyword ingest that commits every batchSize rows, writing to the staging tables if
+     * staged is set. The caller must close() it before closing this Storage.
+     */
+    public KeywordBatchWriter createKeywordBatchWriter(int batchSize, boolean staged) {
+        if (staged) {
+            return new KeywordBatchWriter(this.database, batchSize, GlobalConstants.MENU_STAGING_TABLE_NAME,
+                    GlobalConstants.MENU_ITEM_STAGING_TABLE_NAME);
+        }
+        return new KeywordBatchWriter(this.database, batchSize, GlobalConstants.MENU_TABLE_NAME,
+                GlobalConstants.MENU_ITEM_TABLE_NAME);
+    }
+
+    /**
+     * Prepares the staging tables for a keyword update. Updates only carry changes, so the staging tables start out
+     * as a copy of the live ones. If reuseExisting is set and staging tables survive from an interrupted update, they
+     * are kept as they are so that update can be resumed.
+     */
+    public void beginStagedIngest(boolean reuseExisting) {
+        if (reuseExisting && hasStagedTables()) {
+            Trace.i(Trace.STORAGE, "Storage", "Reusing staging tables from an interrupted keyword update");
+            return;
+        }
+
+        database.beginTransaction();
+        try {
+            dropStagingTables();
+            database.execSQL(DatabaseHelper.getMenuTableInitializationSql(GlobalConstants.MENU_STAGING_TABLE_NAME));
+            database.execSQL(DatabaseHelper.getMenuItemTableInitializationSql(GlobalConstants.MENU_ITEM_STAGING_TABLE_NAME));
+            database.execSQL("INSERT INTO " + GlobalConstants.MENU_STAGING_TABLE_NAME + " SELECT * FROM "
+                    + GlobalConstants.MENU_TABLE_NAME);
+            database.execSQL("INSERT INTO " + GlobalConstants.MENU_ITEM_STAGING_TABLE_NAME + " SELECT * FROM "
+                    + GlobalConstants.MENU_ITEM_TABLE_NAME);
+            database.execSQL(DatabaseHelper.getMenuItemIndexSql(GlobalConstants.MENU_ITEM_STAGING_TABLE_NAME));
+            database.setTransactionSuccessful();
+        }
+        finally {
+            database.endTransaction();
+        }
+    }
+
+    /**
+     * Replaces the live menu tables with the staging tables in a single transaction, so readers see either the old
+     * keywords or the new ones and never a mix
+     */
+    public void swapInStagedTables() {
+        database.beginTransaction();
+        try {
+            database.execSQL("DROP TABLE " + GlobalConstants.MENU_ITEM_TABLE_NAME);
+            database.execSQL("DROP TABLE " + GlobalConstants.MENU_TABLE_NAME);
+            database.execSQL("ALTER TABLE " + GlobalConstants.MENU_STAGING_TABLE_NAME + " RENAME TO "
+                    + GlobalConstants.MENU_TABLE_NAME);
+            database.execSQL("ALTER TABLE " + GlobalConstants.MENU_ITEM_STAGING_TABLE_NAME + " RENAME TO "
+                    + GlobalConstants.MENU_ITEM_TABLE_NAME);
+
+            // indexes keep their names through a rename, so give the live table its usual one back
+            database.execSQL("DROP INDEX IF EXISTS " + DatabaseHelper.getMenuItemIndexName(GlobalConstants.MENU_ITEM_STAGING_TABLE_NAME));
+            database.execSQL(DatabaseHelper.getMenuItemIndexSql(GlobalConstants.MENU_ITEM_TABLE_NAME));
+            database.setTransactionSuccessful();
+        }
+        finally {
+            database.endTransaction();
+        }
+    }
+
+    /**
+     * Throws away a keyword update that was being built in the staging tables. The live tables are untouched.
+     */
+    public void discardStagedTables() {
+        database.beginTransaction();
+        try {
+            dropStagingTables();
+            database.setTransactionSuccessful();
+        }
+        finally {
+            database.endTransaction();
+        }
+    }
+
+    /**
+     * Deletes content files that no menu item, live or staged, refers to any more
+     * 
+     * @return the number of files deleted
+     */
+    public int deleteUnreferencedContentFiles() {
+        HashSet<String> references = new HashSet<String>();
+        addContentFileReferences(GlobalConstants.MENU_ITEM_TABLE_NAME, references);
+        if (tableExists(GlobalConstants.MENU_ITEM_STAGING_TABLE_NAME)) {
+            addContentFileReferences(GlobalConstants.MENU_ITEM_STAGING_TABLE_NAME, references);
+        }
+        return ContentFileStore.deleteUnreferenced(ContentFileStore.getDirectory(this.context), references);
+    }
+
+    private void addContentFileReferences(String table, HashSet<String> references) {
+        Cursor cursor = database.query(table, new String[] { MENU_ITEM_CONTENT_COLUMN }, MENU_ITEM_CONTENT_COLUMN
+                + " LIKE ?", new String[] { ContentFileStore.REFERENCE_PREFIX + "%" }, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                references.add(cursor.getString(0));
+            }
+        }
+        finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * True if an interrupted keyword update left its staging tables behind
+     */
+    public boolean hasStagedTables() {
+        return tableExists(GlobalConstants.MENU_STAGING_TABLE_NAME)
+                && tableExists(GlobalConstants.MENU_ITEM_STAGING_TABLE_NAME);
+    }
+
+    private void dropStagingTables() {
+        database.execSQL("DROP TABLE IF EXISTS " + GlobalConstants.MENU_ITEM_STAGING_TABLE_NAME);
+        database.execSQL("DROP TABLE IF EXISTS " + GlobalConstants.MENU_STAGING_TABLE_NAME);
+    }
+
+    private boolean tableExists(String table) {
+        Cursor cursor = database.rawQuery("SELECT name FROM sqlite_master WHERE type = 'table' AND name = ?",
+                new String[] { table });
+        try {
+            return cursor.moveToFirst();
+        }
+        finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Returns the checkpoint left by an interrupted keyword ingest, or null if the last ingest finished
+     */
+    public IngestCheckpoint getIngestCheckpoint() {
+        Cursor cursor = null;
+        try {
+            cursor = database.query(GlobalConstants.INGEST_CHECKPOINT_TABLE_NAME, new String[] {
+                    CHECKPOINT_BASE_VERSION_COLUMN, CHECKPOINT_MENU_IDS_COLUMN, CHECKPOINT_PAYLOAD_VERSION_COLUMN,
+                    CHECKPOINT_TOTAL_COLUMN, CHECKPOINT_BYTE_OFFSET_COLUMN, CHECKPOINT_CHECKSUM_COLUMN,
+                    CHECKPOINT_RECORD_TYPE_COLUMN, CHECKPOINT_RECORD_COUNT_COLUMN, CHECKPOINT_CONTINUATION_COLUMN,
+                    CHECKPOINT_PAGE_SIZE_COLUMN, CHECKPOINT_NEXT_CONTINUATION_COLUMN,
+                    CHECKPOINT_SYNC_NOT_BEFORE_COLUMN, CHECKPOINT_PAYLOAD_VALIDATOR_COLUMN }, null, null, null, null,
+                    null);
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            IngestCheckpoint checkpoint = new IngestCheckpoint(cursor.getString(0), cursor.getString(1));
+            checkpoint.setPayloadVersion(cursor.getString(2));
+            checkpoint.setTotal(cursor.getInt(3));
+            checkpoint.restore(cursor.getLong(4), cursor.getLong(5), cursor.getInt(6), cursor.getInt(7));
+            checkpoint.setContinuationToken(cursor.getString(8));
+            checkpoint.setPageSize(cursor.getInt(9));
+            checkpoint.setNextContinuationToken(cursor.getString(10));
+            checkpoint.setSyncNotBefore(cursor.getLong(11));
+            checkpoint.setPayloadValidator(cursor.getString(12));
+            return checkpoint;
+        }
+        finally {
+            if (null != cursor) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Returns the ids of the records of the given type that were committed before the ingest checkpoint
+     */
+    public ArrayList<String> getIngestSeenIds(int recordType) {
+        ArrayList<String> results = new ArrayList<String>();
+        Cursor cursor = null;
+        try {
+            cursor = database.query(GlobalConstants.INGEST_SEEN_TABLE_NAME, new String[] { SEEN_ITEM_ID_COLUMN },
+                    SEEN_TYPE_COLUMN + " = ?", new String[] { Integer.toString(recordType) }, null, null, null);
+            while (cursor.moveToNext()) {
+                results.add(cursor.getString(0));
+            }
+            return results;
+        }
+        finally {
+            if (null != cursor) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Forgets any ingest checkpoint, once the ingest it belongs to has finished or can no longer be resumed
+     */
+    public void clearIngestCheckpoint() {
+        database.delete(GlobalConstants.INGEST_CHECKPOINT_TABLE_NAME, null, null);
+        database.delete(GlobalConstants.INGEST_SEEN_TABLE_NAME, null, null);
+    }
+
     /**
      * Remove all table rows
      * 
@@ -175,18 +403,81 @@ public class Storage {
         return isValid;
     }
 
+    /**
+     * Deletes menu items whose parent item or menu no longer exists, a level at a time until none are left. Foreign
+     * key cascades aren't available on the Android versions we support, so deleted branches used to be left behind.
+     * 
+     * @return the number of rows removed
+     */
+    static int deleteOrphanedMenuItems(SQLiteDatabase database, String menuTable, String menuItemTable) {
+        String orphanCondition = "(" + MENU_ITEM_PARENTID_COLUMN + " IS NOT NULL AND " + MENU_ITEM_PARENTID_COLUMN
+                + " != '' AND " + MENU_ITEM_PARENTID_COLUMN + " NOT IN (SELECT " + MENU_ITEM_ROWID_COLUMN + " FROM "
+                + menuItemTable + ")) OR " + MENU_ITEM_MENUID_COLUMN + " NOT IN (SELECT " + MENU_ROWID_COLUMN
+                + " FROM " + menuTable + ")";
+        int removedRows = 0;
+        int removed;
+        do {
+            removed = database.delete(menuItemTable, orphanCondition, null);
+            removedRows += removed;
+        } while (removed > 0);
+        return removedRows;
+    }
+
+    /**
+     * Creates the live menu and menu item tables, along with the menu item index, in the given database. Also used
+     * to set up in-memory databases for KeywordIngestBenchmark under tools/.
+     */
+    static void createMenuTables(SQLiteDatabase database) {
+        database.execSQL(DatabaseHelper.getMenuTableInitializationSql(GlobalConstants.MENU_TABLE_NAME));
+        database.execSQL(DatabaseHelper.getMenuItemTableInitializationSql(GlobalConstants.MENU_ITEM_TABLE_NAME));
+        database.execSQL(DatabaseHelper.getMenuItemIndexSql(GlobalConstants.MENU_ITEM_TABLE_NAME));
+    }
+
     private static class DatabaseHelper extends SQLiteOpenHelper {
+        /** set when an upgrade has freed enough space that the file should be compacted */
+        private boolean vacuumPending;
+
         private DatabaseHelper(Context context) {
             super(context, DATABASE_NAME, null, DATABASE_VERSION);
         }
 
         @Override
         public void onCreate(SQLiteDatabase database) {
-            // Create Menu Table
-            database.execSQL(getMenuTableInitializationSql());
+            // Create Menu and Menu Item Tables
+            createMenuTables(database);
+
+            createIngestTables(database);
+        }
 
-            // Create Menu Item Table
-            database.execSQL(getMenuItemTableInitializationSql());
+        private static String getMenuItemIndexName(String tableName) {
+            return tableName + "_parent_id_index";
+        }
+
+        /**
+         * Returns the SQL for the index used to find a menu item's children
+         */
+        private static String getMenuItemIndexSql(String tableName) {
+            return "CREATE INDEX IF NOT EXISTS " + getMenuItemIndexName(tableName) + " ON " + tableName + " ("
+                    + Storage.MENU_ITEM_PARENTID_COLUMN + ");";
+        }
+
+        /**
+         * Creates the tables used to resume an interrupted keyword ingest
+         */
+        private void createIngestTables(SQLiteDatabase database) {
+            database.execSQL("create table " + GlobalConstants.INGEST_CHECKPOINT_TABLE_NAME + " ("
+                    + Storage.CHECKPOINT_ROWID_COLUMN + " INTEGER PRIMARY KEY, "
+                    + Storage.CHECKPOINT_BASE_VERSION_COLUMN + " TEXT, " + Storage.CHECKPOINT_MENU_IDS_COLUMN + " TEXT, "
+                    + Storage.CHECKPOINT_PAYLOAD_VERSION_COLUMN + " TEXT, " + Storage.CHECKPOINT_TOTAL_COLUMN + " INTEGER, "
+                    + Storage.CHECKPOINT_BYTE_OFFSET_COLUMN + " INTEGER, " + Storage.CHECKPOINT_CHECKSUM_COLUMN + " INTEGER, "
+                    + Storage.CHECKPOINT_RECORD_TYPE_COLUMN + " INTEGER, " + Storage.CHECKPOINT_RECORD_COUNT_COLUMN
+                    + " INTEGER, " + Storage.CHECKPOINT_CONTINUATION_COLUMN + " TEXT, "
+                    + Storage.CHECKPOINT_PAGE_SIZE_COLUMN + " INTEGER, " + Storage.CHECKPOINT_NEXT_CONTINUATION_COLUMN
+                    + " TEXT, " + Storage.CHECKPOINT_SYNC_NOT_BEFORE_COLUMN + " INTEGER, "
+                    + Storage.CHECKPOINT_PAYLOAD_VALIDATOR_COLUMN + " TEXT);");
+            database.execSQL("create table " + GlobalConstants.INGEST_SEEN_TABLE_NAME + " ("
+                    + Storage.SEEN_TYPE_COLUMN + " INTEGER, " + Storage.SEEN_ITEM_ID_COLUMN + " TEXT, "
+                    + "PRIMARY KEY (" + Storage.SEEN_TYPE_COLUMN + ", " + Storage.SEEN_ITEM_ID_COLUMN + "));");
         }
 
         /**
@@ -194,23 +485,24 @@ public class Storage {
          * 
          * @return String
          */
-        private String getMenuTableInitializationSql() {
+        private static String getMenuTableInitializationSql(String tableName) {
             StringBuilder sqlCommand = new StringBuilder();
-            sqlCommand.append("create table " + GlobalConstants.MENU_TABLE_NAME);
+            sqlCommand.append("create table " + tableName);
             sqlCommand
                     .append(" (" + Storage.MENU_ROWID_COLUMN + " CHAR(16) PRIMARY KEY, " + Storage.MENU_LABEL_COLUMN + " TEXT NOT NULL);");
             return sqlCommand.toString();
         }
 
         /**
-         * Returns the SQL string for MenuItem Table creation
+         * Returns the SQL string for MenuItem Table creation. Foreign keys always name the live tables, so a staging
+         * table is correct as soon as it is renamed.
          * 
          * @return String
          */
-        private String getMenuItemTableInitializationSql() {
+        private static String getMenuItemTableInitializationSql(String tableName) {
 
             StringBuilder sqlCommand = new StringBuilder();
-            sqlCommand.append("create table " + GlobalConstants.MENU_ITEM_TABLE_NAME);
+            sqlCommand.append("create table " + tableName);
             sqlCommand.append(" (" + Storage.MENU_ITEM_ROWID_COLUMN + " CHAR(16) PRIMARY KEY, " + Storage.MENU_ITEM_LABEL_COLUMN
                     + " TEXT NOT NULL, "
                     + Storage.MENU_ITEM_MENUID_COLUMN + " CHAR(16), " + Storage.MENU_ITEM_PARENTID_COLUMN + " CHAR(16), "
@@ -224,7 +516,42 @@ public class Storage {
 
         @Override
         public void onUpgrade(SQLiteDatabase database, int oldVersion, int newVersion) {
-            Log.w("StorageAdapter", "***Upgrading database from version*** "
+            if (oldVersion >= 6) {
+                // versions 7 to 11 only added tables, columns and an index, no need to throw away the keywords
+                if (oldVersion < 7) {
+                    createIngestTables(database);
+                }
+                else {
+                    if (oldVersion < 9) {
+                        database.execSQL("ALTER TABLE " + GlobalConstants.INGEST_CHECKPOINT_TABLE_NAME + " ADD COLUMN "
+                                + CHECKPOINT_CONTINUATION_COLUMN + " TEXT");
+                        database.execSQL("ALTER TABLE " + GlobalConstants.INGEST_CHECKPOINT_TABLE_NAME + " ADD COLUMN "
+                                + CHECKPOINT_PAGE_SIZE_COLUMN + " INTEGER");
+                    }
+                    if (oldVersion < 10) {
+                        database.execSQL("ALTER TABLE " + GlobalConstants.INGEST_CHECKPOINT_TABLE_NAME + " ADD COLUMN "
+                                + CHECKPOINT_NEXT_CONTINUATION_COLUMN + " TEXT");
+                        database.execSQL("ALTER TABLE " + GlobalConstants.INGEST_CHECKPOINT_TABLE_NAME + " ADD COLUMN "
+                                + CHECKPOINT_SYNC_NOT_BEFORE_COLUMN + " INTEGER");
+                    }
+                    if (oldVersion < 11) {
+                        database.execSQL("ALTER TABLE " + GlobalConstants.INGEST_CHECKPOINT_TABLE_NAME + " ADD COLUMN "
+                                + CHECKPOINT_PAYLOAD_VALIDATOR_COLUMN + " TEXT");
+                    }
+                }
+                if (oldVersion < 8) {
+                    database.execSQL(getMenuItemIndexSql(GlobalConstants.MENU_ITEM_TABLE_NAME));
+
+                    // clear out the branches that deletes have been leaving behind
+                    int removedRows = deleteOrphanedMenuItems(database, GlobalConstants.MENU_TABLE_NAME,
+                            GlobalConstants.MENU_ITEM_TABLE_NAME);
+                    Trace.i(Trace.STORAGE, "StorageAdapter", "Removed " + removedRows + " orphaned menu items");
+                    this.vacuumPending = removedRows > 0;
+                }
+                return;
+            }
+
+            Trace.w(Trace.STORAGE, "StorageAdapter", "***Upgrading database from version*** "
                     + oldVersion + " to " + newVersion
                     + ", which will destroy all old data");
 
@@ -235,6 +562,10 @@ public class Storage {
             // Get rid of new tables if they exist
             database.execSQL("DROP TABLE IF EXISTS " + GlobalConstants.MENU_TABLE_NAME);
             database.execSQL("DROP TABLE IF EXISTS " + GlobalConstants.MENU_ITEM_TABLE_NAME);
+            database.execSQL("DROP TABLE IF EXISTS " + GlobalConstants.INGEST_CHECKPOINT_TABLE_NAME);
+            database.execSQL("DROP TABLE IF EXISTS " + GlobalConstants.INGEST_SEEN_TABLE_NAME);
+            database.execSQL("DROP TABLE IF EXISTS " + GlobalConstants.MENU_STAGING_TABLE_NAME);
+            database.execSQL("DROP TABLE IF EXISTS " + GlobalConstants.MENU_ITEM_STAGING_TABLE_NAME);
 
             onCreate(database);
         }
@@ -311,7 +642,7 @@ public class Storage {
      * @return
      */
     public boolean deleteMenuItemEntry(String itemId) {
-        return database.delete(GlobalConstants.MENU_ITEM_TABLE_NAME, Storage.MENU_ITEM_ROWID_COLUMN + "='" + itemId + "'", null) > 0;
+        return database.delete(GlobalConstants.MENU_ITEM_TABLE_NAME, Storage.MENU_ITEM_ROWID_COLUMN + " = ?", new String[] { itemId }) > 0;
     }
 
     /**
@@ -322,7 +653,7 @@ public class Storage {
      * @return
      */
     public boolean deleteMenuEntry(String menuId) {
-        return database.delete(GlobalConstants.MENU_TABLE_NAME, Storage.MENU_ROWID_COLUMN + "= '" + menuId + "'", null) > 0;
+        return database.delete(GlobalConstants.MENU_TABLE_NAME, Storage.MENU_ROWID_COLUMN + " = ?", new String[] { menuId }) > 0;
 
     }
 
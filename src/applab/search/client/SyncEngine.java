@@ -0,0 +1,502 @@
+/**
+ * Copyright (C) 2010 Grameen Foundation
+Licensed under the Apache License, Version 2.0 (the "License"); you may not
+use this file except in compliance with the License. You may obtain a copy of
+the License at http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations under
+the License.
+ */
+
+package applab.search.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+
+/**
+ * Runs synchronization episodes one at a time on a dedicated background thread and tracks which phase the current
+ * episode is in.
+ *
+ * An episode goes IDLE -> UPLOADING_REGISTRATIONS -> UPLOADING_LOGS -> DOWNLOADING -> INGESTING -> IMAGES -> DONE ->
+ * IDLE. From any active phase it can instead end in FAILED, where it either goes straight back to IDLE or, if the user
+ * is being offered a retry, waits there for retry() or release(). Every transition is a compare-and-set, so concurrent
+ * requests can't both start an episode: whoever loses tryStart() is coalesced into the episode that is already running.
+ *
+ * cancel() raises a flag; the episode polls isStopRequested() at safe points, undoes what it can and then ends
+ * through CANCELLED back to IDLE. So that a read blocked on a stalled connection doesn't hold that up until the network
+ * timeout, the episode registers the response it is reading with setActiveStream(), and stopping closes it.
+ *
+ * While an episode is active a watchdog checks it every few seconds. A phase can be given a deadline, and a minimum
+ * number of bytes (as reported through reportProgress()) it has to move in every stall window. A phase that overruns
+ * its deadline or stalls is stopped the same way as a cancel, with STOP_TIMED_OUT or STOP_STALLED as the reason, and
+ * the episode then ends in FAILED. Work that goes back to the network for another attempt or another page calls
+ * restartPhase(), which moves the episode back to that phase with a fresh deadline and stall window. Steps that
+ * legitimately move no bytes for a while, such as backing off before a retry or a bulk database operation, are
+ * bracketed with suspendStallCheck() and resumeStallCheck().
+ *
+ * The background thread has a Looper, so code running in an episode can create Handlers as it would on the UI thread.
+ * Listeners are called on the thread that made the transition.
+ */
+public class SyncEngine {
+    private static final String LOG_TAG = "SyncEngine";
+
+    /* States */
+    public static final int IDLE = 0;
+    public static final int UPLOADING_REGISTRATIONS = 1;
+    public static final int UPLOADING_LOGS = 2;
+    public static final int DOWNLOADING = 3;
+    public static final int INGESTING = 4;
+    public static final int IMAGES = 5;
+    public static final int DONE = 6;
+    public static final int FAILED = 7;
+    public static final int CANCELLED = 8;
+
+    private static final String[] STATE_NAMES = { "IDLE", "UPLOADING_REGISTRATIONS", "UPLOADING_LOGS", "DOWNLOADING",
+            "INGESTING", "IMAGES", "DONE", "FAILED", "CANCELLED" };
+
+    /* Why an episode was stopped */
+    public static final int STOP_NONE = 0;
+    public static final int STOP_CANCELLED = 1;
+    public static final int STOP_TIMED_OUT = 2;
+    public static final int STOP_STALLED = 3;
+
+    private static final String[] STOP_REASON_NAMES = { "none", "cancelled", "timed out", "stalled" };
+
+    private static final long WATCHDOG_INTERVAL = 5 * 1000;
+
+    /* Per-phase limits, indexed by state. 0 means no limit */
+    private static final long[] phaseTimeouts = new long[STATE_NAMES.length];
+    private static final long[] stallWindows = new long[STATE_NAMES.length];
+    private static final long[] minimumProgress = new long[STATE_NAMES.length];
+
+    static {
+        // waiting for the keyword response to start arriving
+        setPhaseTimeout(DOWNLOADING, 10 * 60 * 1000);
+
+        // streaming the payload into the database, and fetching images: at least 1KB every 2 minutes
+        setPhaseTimeout(INGESTING, 30 * 60 * 1000);
+        setStallThreshold(INGESTING, 1024, 2 * 60 * 1000);
+        setPhaseTimeout(IMAGES, 30 * 60 * 1000);
+        setStallThreshold(IMAGES, 1024, 2 * 60 * 1000);
+    }
+
+    /** one watchdog thread for all engines; it only has work while an episode is active */
+    private static Timer watchdogTimer;
+
+    /**
+     * Told about every state change
+     */
+    public interface Listener {
+        void onStateChanged(int oldState, int newState);
+    }
+
+    private final AtomicInteger state = new AtomicInteger(IDLE);
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+    /** set by cancel() or the watchdog, cleared when the next episode starts */
+    private volatile int stopReason = STOP_NONE;
+
+    /** bytes moved by the current episode, as reported through reportProgress() */
+    private final AtomicLong progress = new AtomicLong();
+
+    /** when the current phase started, by SystemClock.elapsedRealtime() */
+    private volatile long phaseStartTime;
+
+    /** changes whenever the watchdog should start a new stall window: on every transition, restart and resume */
+    private final AtomicInteger phaseGeneration = new AtomicInteger();
+
+    /** how many callers currently have stall detection suspended */
+    private final AtomicInteger stallCheckSuspensions = new AtomicInteger();
+
+    /** the response the current episode is reading, closed when the episode is stopped */
+    private Closeable activeStream;
+
+    private TimerTask watchdog;
+
+    /** posts episodes to the sync thread; created on first use */
+    private Handler executor;
+
+    public static String getStateName(int state) {
+        return STATE_NAMES[state];
+    }
+
+    public static String getStopReasonName(int stopReason) {
+        return STOP_REASON_NAMES[stopReason];
+    }
+
+    /**
+     * Sets how long the given phase may take before the watchdog stops the episode, or 0 for no limit
+     */
+    public static void setPhaseTimeout(int phase, long milliseconds) {
+        phaseTimeouts[phase] = milliseconds;
+    }
+
+    /**
+     * Sets the least progress the given phase has to report in every window of the given length before the watchdog
+     * treats it as stalled. A window of 0 turns stall detection off for the phase.
+     */
+    public static void setStallThreshold(int phase, long minimumBytes, long windowMilliseconds) {
+        minimumProgress[phase] = minimumBytes;
+        stallWindows[phase] = windowMilliseconds;
+    }
+
+    public int getState() {
+        return this.state.get();
+    }
+
+    public boolean isIdle() {
+        return this.state.get() == IDLE;
+    }
+
+    /**
+     * True from the start of an episode until it reaches DONE or FAILED
+     */
+    public static boolean isActive(int state) {
+        return state >= UPLOADING_REGISTRATIONS && state <= IMAGES;
+    }
+
+    public void addListener(Listener listener) {
+        this.listeners.addIfAbsent(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        this.listeners.remove(listener);
+    }
+
+    /**
+     * Claims the engine for a new episode. Returns false if an episode is already under way (or waiting on a retry),
+     * in which case the caller's request is covered by that one.
+     */
+    public synchronized boolean tryStart() {
+        return startEpisode(IDLE);
+    }
+
+    /**
+     * Starts a failed episode again from the beginning. Returns false if it has been released in the meantime.
+     */
+    public synchronized boolean retry() {
+        return startEpisode(FAILED);
+    }
+
+    /**
+     * Asks the current episode to stop. Returns false if there is no active episode to cancel.
+     */
+    public boolean cancel() {
+        return stop(STOP_CANCELLED);
+    }
+
+    /**
+     * True once the current episode has been asked to stop, whether by the user or by the watchdog
+     */
+    public boolean isStopRequested() {
+        return this.stopReason != STOP_NONE;
+    }
+
+    /**
+     * True once the user has cancelled the current episode
+     */
+    public boolean isCancelRequested() {
+        return this.stopReason == STOP_CANCELLED;
+    }
+
+    /**
+     * Why the current (or last) episode was stopped, one of the STOP_ constants
+     */
+    public int getStopReason() {
+        return this.stopReason;
+    }
+
+    /**
+     * Registers the network stream or connection the current episode is reading from, replacing any registered
+     * before. Stopping the episode closes it, on the watchdog thread, which makes a read that is blocked on it fail at
+     * once. If the episode has already been stopped it is closed straight away.
+     */
+    public synchronized void setActiveStream(Closeable stream) {
+        this.activeStream = stream;
+        if (isStopRequested()) {
+            closeActiveStream();
+        }
+    }
+
+    /**
+     * Unregisters the given stream, if it is still the one registered
+     */
+    public synchronized void clearActiveStream(Closeable stream) {
+        if (this.activeStream == stream) {
+            this.activeStream = null;
+        }
+    }
+
+    /**
+     * Records that the current episode has moved the given number of bytes, which keeps the stall detector quiet
+     */
+    public void reportProgress(long bytes) {
+        this.progress.addAndGet(bytes);
+    }
+
+    /**
+     * Moves the current episode forward to the given phase. Returns false if the episode is no longer active or is
+     * already past that phase.
+     */
+    public boolean advance(int phase) {
+        while (true) {
+            int current = this.state.get();
+            if (!isActive(current) || current >= phase) {
+                return false;
+            }
+            if (transition(current, phase)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Starts the given phase over for another attempt, e.g. a retried or the next request of the keyword update, which
+     * may move the episode back from a later phase. The phase gets a fresh deadline and stall window. Returns false if
+     * the episode is no longer active or hasn't reached that phase yet.
+     */
+    public boolean restartPhase(int phase) {
+        while (true) {
+            int current = this.state.get();
+            if (!isActive(current) || current < phase) {
+                return false;
+            }
+            if (current == phase) {
+                this.phaseStartTime = SystemClock.elapsedRealtime();
+                this.phaseGeneration.incrementAndGet();
+                Trace.i(Trace.SYNC, LOG_TAG, "Restarting ", STATE_NAMES[phase]);
+                return true;
+            }
+            if (transition(current, phase)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Stops the watchdog from treating the current phase as stalled until the matching resumeStallCheck(), for work
+     * that moves no bytes. Phase deadlines still apply. Calls nest, and may come from more than one thread.
+     */
+    public void suspendStallCheck() {
+        this.stallCheckSuspensions.incrementAndGet();
+    }
+
+    /**
+     * Ends a suspendStallCheck(). The stall window starts over from here.
+     */
+    public void resumeStallCheck() {
+        if (this.stallCheckSuspensions.decrementAndGet() < 0) {
+            this.stallCheckSuspensions.set(0);
+        }
+        this.phaseGeneration.incrementAndGet();
+    }
+
+    /**
+     * Ends the current episode successfully and returns to IDLE
+     */
+    public void succeed() {
+        if (finish(DONE)) {
+            transition(DONE, IDLE);
+        }
+    }
+
+    /**
+     * Ends the current episode in FAILED. Unless awaitRetry is set the engine goes straight back to IDLE; otherwise it
+     * stays in FAILED until retry() or release().
+     */
+    public void fail(boolean awaitRetry) {
+        if (finish(FAILED) && !awaitRetry) {
+            transition(FAILED, IDLE);
+        }
+    }
+
+    /**
+     * Ends the current episode after it has stopped for a cancel, and returns to IDLE
+     */
+    public void abandon() {
+        if (finish(CANCELLED)) {
+            transition(CANCELLED, IDLE);
+        }
+    }
+
+    /**
+     * Returns a finished episode to IDLE. Does nothing to an episode that is still running.
+     */
+    public void release() {
+        if (!transition(DONE, IDLE)) {
+            transition(FAILED, IDLE);
+        }
+    }
+
+    /**
+     * Runs the task on the sync thread, after any episode already queued there
+     */
+    public synchronized void execute(Runnable task) {
+        if (this.executor == null) {
+            HandlerThread thread = new HandlerThread("SyncEngine", Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            this.executor = new Handler(thread.getLooper());
+        }
+        this.executor.post(task);
+    }
+
+    private boolean startEpisode(int from) {
+        if (!transition(from, UPLOADING_REGISTRATIONS)) {
+            return false;
+        }
+        this.stopReason = STOP_NONE;
+        this.stallCheckSuspensions.set(0);
+        this.activeStream = null;
+        startWatchdog();
+        return true;
+    }
+
+    /**
+     * Asks the current episode to stop for the given reason. The first reason given sticks.
+     */
+    private synchronized boolean stop(int reason) {
+        int current = this.state.get();
+        if (!isActive(current)) {
+            return false;
+        }
+        if (this.stopReason == STOP_NONE) {
+            if (Trace.isEnabled(Trace.SYNC, Trace.INFO)) {
+                Trace.i(Trace.SYNC, LOG_TAG, "Stopping in " + STATE_NAMES[current] + ": " + STOP_REASON_NAMES[reason]);
+            }
+            this.stopReason = reason;
+            closeActiveStream();
+        }
+        return true;
+    }
+
+    /**
+     * Closes the registered stream on the watchdog thread, so a cancel from the UI thread doesn't wait on the network
+     */
+    private synchronized void closeActiveStream() {
+        final Closeable stream = this.activeStream;
+        if (stream == null) {
+            return;
+        }
+        this.activeStream = null;
+        getWatchdogTimer().schedule(new TimerTask() {
+            @Override
+            public void run() {
+                try {
+                    stream.close();
+                }
+                catch (IOException e) {
+                    Trace.w(Trace.SYNC, LOG_TAG, "Failed to close the stream of a stopped synchronization: ", e);
+                }
+            }
+        }, 0);
+    }
+
+    private static synchronized Timer getWatchdogTimer() {
+        if (watchdogTimer == null) {
+            watchdogTimer = new Timer("SyncWatchdog", true);
+        }
+        return watchdogTimer;
+    }
+
+    private synchronized void startWatchdog() {
+        this.watchdog = new Watchdog();
+        getWatchdogTimer().schedule(this.watchdog, WATCHDOG_INTERVAL, WATCHDOG_INTERVAL);
+    }
+
+    private synchronized void stopWatchdog() {
+        if (this.watchdog != null) {
+            this.watchdog.cancel();
+            this.watchdog = null;
+        }
+    }
+
+    private boolean finish(int endState) {
+        while (true) {
+            int current = this.state.get();
+            if (!isActive(current)) {
+                return false;
+            }
+            if (transition(current, endState)) {
+                stopWatchdog();
+                return true;
+            }
+        }
+    }
+
+    private boolean transition(int from, int to) {
+        if (!this.state.compareAndSet(from, to)) {
+            return false;
+        }
+        this.phaseStartTime = SystemClock.elapsedRealtime();
+        this.phaseGeneration.incrementAndGet();
+        if (Trace.isEnabled(Trace.SYNC, Trace.INFO)) {
+            Trace.i(Trace.SYNC, LOG_TAG, STATE_NAMES[from] + " -> " + STATE_NAMES[to]);
+        }
+        for (Listener listener : this.listeners) {
+            listener.onStateChanged(from, to);
+        }
+        return true;
+    }
+
+    /**
+     * Checks the active phase against its deadline and stall threshold
+     */
+    private class Watchdog extends TimerTask {
+        private int watchedGeneration = -1;
+        private long windowStartTime;
+        private long windowStartProgress;
+
+        @Override
+        public void run() {
+            int phase = state.get();
+            if (!isActive(phase) || isStopRequested()) {
+                return;
+            }
+
+            long now = SystemClock.elapsedRealtime();
+            int generation = phaseGeneration.get();
+            if (generation != this.watchedGeneration || stallCheckSuspensions.get() > 0) {
+                // a new phase or attempt, or work that isn't expected to move bytes: the stall window starts now
+                this.watchedGeneration = generation;
+                this.windowStartTime = now;
+                this.windowStartProgress = progress.get();
+            }
+
+            long timeout = phaseTimeouts[phase];
+            if (timeout > 0 && now - phaseStartTime > timeout) {
+                if (Trace.isEnabled(Trace.SYNC, Trace.WARN)) {
+                    Trace.w(Trace.SYNC, LOG_TAG, STATE_NAMES[phase] + " has run for over " + timeout + "ms");
+                }
+                stop(STOP_TIMED_OUT);
+                return;
+            }
+
+            long window = stallWindows[phase];
+            if (window > 0 && now - this.windowStartTime >= window) {
+                long windowProgress = progress.get() - this.windowStartProgress;
+                if (windowProgress < minimumProgress[phase]) {
+                    if (Trace.isEnabled(Trace.SYNC, Trace.WARN)) {
+                        Trace.w(Trace.SYNC, LOG_TAG, STATE_NAMES[phase] + " moved only " + windowProgress + " bytes in "
+                                + (now - this.windowStartTime) + "ms");
+                    }
+                    stop(STOP_STALLED);
+                    return;
+                }
+                this.windowStartTime = now;
+                this.windowStartProgress += windowProgress;
+            }
+        }
+    }
+}
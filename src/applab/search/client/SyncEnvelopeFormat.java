@@ -0,0 +1,83 @@
+/**
+ * Copyright (C) 2010 Grameen Foundation
+Licensed under the Apache License, Version 2.0 (the "License"); you may not
+use this file except in compliance with the License. You may obtain a copy of
+the License at http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations under
+the License.
+ */
+
+package applab.search.client;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Constants for the sync envelope, the response to a combined sync request. One envelope carries everything a sync
+ * episode used to fetch with separate requests, as a sequence of sections that can be read as they arrive.
+ *
+ * <pre>
+ * envelope := 'S' 'Y' 'E' formatVersion section* END
+ * section  := type varint nameLength UTF-8 name chunk* 0
+ * chunk    := varint length (> 0) byte[length]
+ * </pre>
+ *
+ * Varints are unsigned LEB128. Sections are chunked so the server can stream one without knowing its length up
+ * front. The section types are:
+ * <ul>
+ * <li>ACKS: ids of the usage logs the server has stored, as UTF-8 text one per line. The name is unused.</li>
+ * <li>KEYWORDS: the keyword update, exactly as the keywords request would have returned it (JSON or binary snapshot,
+ * possibly compressed). The name is unused.</li>
+ * <li>IMAGE: one image from the update's image manifest, named by its image id.</li>
+ * </ul>
+ * Readers skip section types they don't know, so new ones can be added without a new format version.
+ */
+public final class SyncEnvelopeFormat {
+    /** what the server names this format */
+    public static final String FORMAT_NAME = "sync-envelope-1";
+
+    static final byte[] MAGIC = { 'S', 'Y', 'E' };
+    static final int FORMAT_VERSION = 1;
+
+    public static final int SECTION_END = 0x00;
+    public static final int SECTION_ACKS = 0x01;
+    public static final int SECTION_KEYWORDS = 0x02;
+    public static final int SECTION_IMAGE = 0x03;
+
+    /** largest chunk a writer emits */
+    static final int MAX_CHUNK_LENGTH = 8 * 1024;
+
+    /** longest section name we accept, so a corrupt envelope can't make us allocate much */
+    static final int MAX_NAME_LENGTH = 1024;
+
+    private SyncEnvelopeFormat() {
+    }
+
+    static int readVarint(InputStream inputStream) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int next = inputStream.read();
+            if (next < 0) {
+                throw new EOFException("Sync envelope ended in the middle of a number");
+            }
+            value |= (next & 0x7f) << shift;
+            if ((next & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed number in sync envelope");
+    }
+
+    static void writeVarint(OutputStream outputStream, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            outputStream.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        outputStream.write(value);
+    }
+}
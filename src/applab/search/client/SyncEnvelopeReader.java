@@ -0,0 +1,196 @@
+/**
+ * Copyright (C) 2010 Grameen Foundation
+Licensed under the Apache License, Version 2.0 (the "License"); you may not
+use this file except in compliance with the License. You may obtain a copy of
+the License at http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations under
+the License.
+ */
+
+package applab.search.client;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads a sync envelope (see SyncEnvelopeFormat) one section at a time, straight off the response stream.
+ *
+ * Each section's content is exposed as a stream of its own, so a keyword update can be fed to the parser while it is
+ * still downloading. Moving on to the next section skips whatever of the current one wasn't read.
+ */
+public class SyncEnvelopeReader {
+    private final InputStream inputStream;
+    private boolean headerRead;
+    private boolean finished;
+
+    private int sectionType = -1;
+    private String sectionName;
+    private SectionInputStream sectionStream;
+
+    public SyncEnvelopeReader(InputStream inputStream) {
+        this.inputStream = inputStream;
+    }
+
+    /**
+     * Checks that the stream starts with an envelope of a version we understand. Returns false if it doesn't, e.g.
+     * because the server answered with something else.
+     */
+    public boolean readHeader() throws IOException {
+        if (!this.headerRead) {
+            for (int i = 0; i < SyncEnvelopeFormat.MAGIC.length; i++) {
+                if (this.inputStream.read() != SyncEnvelopeFormat.MAGIC[i]) {
+                    return false;
+                }
+            }
+            if (this.inputStream.read() != SyncEnvelopeFormat.FORMAT_VERSION) {
+                return false;
+            }
+            this.headerRead = true;
+        }
+        return true;
+    }
+
+    /**
+     * Moves on to the next section, skipping the rest of the current one. Returns false at the end of the envelope.
+     */
+    public boolean nextSection() throws IOException {
+        if (this.finished) {
+            return false;
+        }
+        if (!readHeader()) {
+            throw new IOException("Not a sync envelope");
+        }
+        if (this.sectionStream != null) {
+            this.sectionStream.close();
+            this.sectionStream = null;
+        }
+
+        int type = this.inputStream.read();
+        if (type < 0) {
+            throw new EOFException("Sync envelope ended without an end marker");
+        }
+        if (type == SyncEnvelopeFormat.SECTION_END) {
+            this.finished = true;
+            this.sectionType = -1;
+            this.sectionName = null;
+            return false;
+        }
+
+        this.sectionType = type;
+        this.sectionName = readName();
+        this.sectionStream = new SectionInputStream();
+        return true;
+    }
+
+    public int getSectionType() {
+        return this.sectionType;
+    }
+
+    /**
+     * The current section's name, which is empty for sections that don't use one
+     */
+    public String getSectionName() {
+        return this.sectionName;
+    }
+
+    /**
+     * The current section's content. Closing it skips to the end of the section, not the envelope.
+     */
+    public InputStream getSectionStream() {
+        return this.sectionStream;
+    }
+
+    private String readName() throws IOException {
+        int length = SyncEnvelopeFormat.readVarint(this.inputStream);
+        if (length > SyncEnvelopeFormat.MAX_NAME_LENGTH) {
+            throw new IOException("Sync envelope section name is " + length + " bytes long");
+        }
+        byte[] name = new byte[length];
+        int count = 0;
+        while (count < length) {
+            int read = this.inputStream.read(name, count, length - count);
+            if (read < 0) {
+                throw new EOFException("Sync envelope ended in a section name");
+            }
+            count += read;
+        }
+        return new String(name, "UTF-8");
+    }
+
+    /**
+     * The content of one section, reassembled from its chunks
+     */
+    private class SectionInputStream extends InputStream {
+        private int chunkRemaining;
+        private boolean ended;
+
+        @Override
+        public int read() throws IOException {
+            if (!nextChunk()) {
+                return -1;
+            }
+            int value = inputStream.read();
+            if (value < 0) {
+                throw new EOFException("Sync envelope ended in the middle of a section");
+            }
+            this.chunkRemaining--;
+            return value;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (!nextChunk()) {
+                return -1;
+            }
+            int count = inputStream.read(buffer, offset, Math.min(length, this.chunkRemaining));
+            if (count < 0) {
+                throw new EOFException("Sync envelope ended in the middle of a section");
+            }
+            this.chunkRemaining -= count;
+            return count;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return Math.min(this.chunkRemaining, inputStream.available());
+        }
+
+        /**
+         * Skips the rest of the section. The envelope itself stays open.
+         */
+        @Override
+        public void close() throws IOException {
+            while (nextChunk()) {
+                long skipped = inputStream.skip(this.chunkRemaining);
+                if (skipped <= 0) {
+                    if (inputStream.read() < 0) {
+                        throw new EOFException("Sync envelope ended in the middle of a section");
+                    }
+                    skipped = 1;
+                }
+                this.chunkRemaining -= skipped;
+            }
+        }
+
+        /**
+         * Makes sure there is something left in the current chunk, reading the next chunk length if not. Returns false
+         * at the end of the section.
+         */
+        private boolean nextChunk() throws IOException {
+            if (this.chunkRemaining == 0 && !this.ended) {
+                this.chunkRemaining = SyncEnvelopeFormat.readVarint(inputStream);
+                if (this.chunkRemaining == 0) {
+                    this.ended = true;
+                }
+            }
+            return !this.ended;
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/**
+ * Copyright (C) 2010 Grameen Foundation
+Licensed under the Apache License, Version 2.0 (the "License"); you may not
+use this file except in compliance with the License. You may obtain a copy of
+the License at http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations under
+the License.
+ */
+
+package applab.search.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Writes a sync envelope (see SyncEnvelopeFormat). Used by SyncEnvelopeServer under tools/, and a reference for the
+ * server side.
+ *
+ * A section is opened with beginSection() and written through the stream it returns; closing that stream ends the
+ * section. Content goes out in chunks of up to MAX_CHUNK_LENGTH bytes as it is written, so sections of any size can
+ * be streamed.
+ */
+public class SyncEnvelopeWriter {
+    private final OutputStream outputStream;
+    private SectionOutputStream currentSection;
+
+    /**
+     * Writes the envelope header to outputStream
+     */
+    public SyncEnvelopeWriter(OutputStream outputStream) throws IOException {
+        this.outputStream = outputStream;
+        this.outputStream.write(SyncEnvelopeFormat.MAGIC);
+        this.outputStream.write(SyncEnvelopeFormat.FORMAT_VERSION);
+    }
+
+    /**
+     * Starts a section. The previous section must have been closed.
+     */
+    public OutputStream beginSection(int type, String name) throws IOException {
+        if (this.currentSection != null) {
+            throw new IllegalStateException("The previous section is still open");
+        }
+        if (type <= SyncEnvelopeFormat.SECTION_END || type > 0xff) {
+            throw new IllegalArgumentException("Invalid section type " + type);
+        }
+        byte[] nameBytes = (name == null ? "" : name).getBytes("UTF-8");
+        this.outputStream.write(type);
+        SyncEnvelopeFormat.writeVarint(this.outputStream, nameBytes.length);
+        this.outputStream.write(nameBytes);
+        this.currentSection = new SectionOutputStream();
+        return this.currentSection;
+    }
+
+    public void writeSection(int type, String name, byte[] content) throws IOException {
+        OutputStream section = beginSection(type, name);
+        section.write(content);
+        section.close();
+    }
+
+    /**
+     * Copies content into a section of its own, without closing content
+     */
+    public void writeSection(int type, String name, InputStream content) throws IOException {
+        OutputStream section = beginSection(type, name);
+        byte[] buffer = new byte[SyncEnvelopeFormat.MAX_CHUNK_LENGTH];
+        int count;
+        while ((count = content.read(buffer)) >= 0) {
+            section.write(buffer, 0, count);
+        }
+        section.close();
+    }
+
+    /**
+     * Writes the end marker and flushes. The underlying stream is left open.
+     */
+    public void finish() throws IOException {
+        if (this.currentSection != null) {
+            throw new IllegalStateException("The last section is still open");
+        }
+        this.outputStream.write(SyncEnvelopeFormat.SECTION_END);
+        this.outputStream.flush();
+    }
+
+    /**
+     * Buffers section content into chunks
+     */
+    private class SectionOutputStream extends OutputStream {
+        private final byte[] chunk = new byte[SyncEnvelopeFormat.MAX_CHUNK_LENGTH];
+        private int chunkLength;
+        private boolean closed;
+
+        @Override
+        public void write(int value) throws IOException {
+            if (this.chunkLength == this.chunk.length) {
+                writeChunk();
+            }
+            this.chunk[this.chunkLength++] = (byte)value;
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            if (this.closed) {
+                throw new IOException("Section already closed");
+            }
+            while (length > 0) {
+                if (this.chunkLength == this.chunk.length) {
+                    writeChunk();
+                }
+                int count = Math.min(length, this.chunk.length - this.chunkLength);
+                System.arraycopy(buffer, offset, this.chunk, this.chunkLength, count);
+                this.chunkLength += count;
+                offset += count;
+                length -= count;
+            }
+        }
+
+        /**
+         * Sends what has been written so far, so the reader isn't kept waiting for a full chunk
+         */
+        @Override
+        public void flush() throws IOException {
+            writeChunk();
+            outputStream.flush();
+        }
+
+        /**
+         * Ends the section
+         */
+        @Override
+        public void close() throws IOException {
+            if (this.closed) {
+                return;
+            }
+            writeChunk();
+            SyncEnvelopeFormat.writeVarint(outputStream, 0);
+            this.closed = true;
+            currentSection = null;
+        }
+
+        private void writeChunk() throws IOException {
+            if (this.chunkLength > 0) {
+                SyncEnvelopeFormat.writeVarint(outputStream, this.chunkLength);
+                outputStream.write(this.chunk, 0, this.chunkLength);
+                this.chunkLength = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,288 @@
+/**
+ * Copyright (C) 2010 Grameen Foundation
+Licensed under the Apache License, Version 2.0 (the "License"); you may not
+use this file except in compliance with the License. You may obtain a copy of
+the License at http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations under
+the License.
+ */
+
+package applab.search.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+
+/**
+ * Runs the phases of one synchronization episode and times them.
+ *
+ * Phases handed to submit() run on a small pool of worker threads, at most maxConcurrency at a time, while the caller
+ * is free to run another phase itself with run(). A phase that throws is recorded as failed without affecting the
+ * others. With a maxConcurrency of 0 submit() runs the phase inline, so the same code drives a sequential episode.
+ *
+ * With a RetryPolicy set, a phase that fails in a way that may heal by itself is run again after a backoff, until it
+ * succeeds, the policy gives up or the episode is stopped. Only the last failure counts.
+ *
+ * awaitCompletion() waits for every submitted phase and logs how long each took next to the wall clock time of the
+ * whole episode, which shows how much overlapping the phases saved.
+ */
+public class SyncPhaseRunner {
+    private static final String LOG_TAG = "SyncPhaseRunner";
+
+    /**
+     * One unit of synchronization work
+     */
+    public interface Phase {
+        void run() throws Exception;
+    }
+
+    /**
+     * How a phase went
+     */
+    public static class Result {
+        private final String name;
+        private long duration;
+        private int attempts;
+        private Throwable failure;
+
+        Result(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return this.name;
+        }
+
+        public long getDurationMilliseconds() {
+            return this.duration;
+        }
+
+        /**
+         * How many times the phase was run, retries included
+         */
+        public int getAttempts() {
+            return this.attempts;
+        }
+
+        public boolean isSuccessful() {
+            return this.failure == null;
+        }
+
+        /**
+         * The exception the phase threw, or null if it succeeded
+         */
+        public Throwable getFailure() {
+            return this.failure;
+        }
+    }
+
+    private final ExecutorService executor;
+    private final List<Result> results = new ArrayList<Result>();
+    private final List<Future<?>> pending = new ArrayList<Future<?>>();
+    private final long startTime;
+    private long elapsedTime;
+
+    private RetryPolicy retryPolicy = RetryPolicy.NONE;
+    private SyncEngine syncEngine;
+
+    /**
+     * @param maxConcurrency
+     *            the most submitted phases to run at once, or 0 to run them inline on the calling thread
+     */
+    public SyncPhaseRunner(int maxConcurrency) {
+        this.executor = (maxConcurrency > 0) ? Executors.newFixedThreadPool(maxConcurrency, new PhaseThreadFactory())
+                : null;
+        this.startTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Retries failed phases under the given policy. Waits between attempts end early, and no more attempts are made,
+     * once syncEngine (which may be null) is stopped.
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy, SyncEngine syncEngine) {
+        this.retryPolicy = retryPolicy;
+        this.syncEngine = syncEngine;
+    }
+
+    /**
+     * Queues the phase on a worker thread, or runs it straight away if this runner is sequential
+     */
+    public Result submit(String name, final Phase phase) {
+        final Result result = addResult(name);
+        if (this.executor == null) {
+            runPhase(result, phase);
+        }
+        else {
+            this.pending.add(this.executor.submit(new Runnable() {
+                public void run() {
+                    runPhase(result, phase);
+                }
+            }));
+        }
+        return result;
+    }
+
+    /**
+     * Runs the phase on the calling thread, e.g. because it needs the sync thread's Looper or database transaction
+     */
+    public Result run(String name, Phase phase) {
+        Result result = addResult(name);
+        runPhase(result, phase);
+        return result;
+    }
+
+    /**
+     * Waits for all submitted phases to finish and logs the timings. Returns false if any phase failed.
+     */
+    public boolean awaitCompletion() {
+        boolean interrupted = false;
+        for (Future<?> future : this.pending) {
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                }
+                catch (InterruptedException e) {
+                    // the phases are already running, so finish waiting for them and pass the interrupt on afterwards
+                    interrupted = true;
+                }
+                catch (ExecutionException e) {
+                    // runPhase() records failures itself
+                    break;
+                }
+            }
+        }
+        if (this.executor != null) {
+            this.executor.shutdown();
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        this.elapsedTime = System.currentTimeMillis() - this.startTime;
+        logTimings();
+
+        for (Result result : getResults()) {
+            if (!result.isSuccessful()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Wall clock time from creating the runner to the end of awaitCompletion()
+     */
+    public long getElapsedMilliseconds() {
+        return this.elapsedTime;
+    }
+
+    public List<Result> getResults() {
+        synchronized (this.results) {
+            return new ArrayList<Result>(this.results);
+        }
+    }
+
+    private Result addResult(String name) {
+        Result result = new Result(name);
+        synchronized (this.results) {
+            this.results.add(result);
+        }
+        return result;
+    }
+
+    private void runPhase(Result result, Phase phase) {
+        long phaseStart = System.currentTimeMillis();
+        try {
+            while (true) {
+                result.attempts++;
+                try {
+                    phase.run();
+                    result.failure = null;
+                    return;
+                }
+                catch (Throwable e) {
+                    result.failure = e;
+                    if (!canRetry(result.attempts, e)) {
+                        if (Trace.isEnabled(Trace.SYNC, Trace.WARN)) {
+                            Trace.w(Trace.SYNC, LOG_TAG, "Sync phase " + result.getName() + " failed: " + e);
+                        }
+                        return;
+                    }
+                    if (Trace.isEnabled(Trace.SYNC, Trace.INFO)) {
+                        Trace.i(Trace.SYNC, LOG_TAG, "Sync phase " + result.getName() + " failed: " + e);
+                    }
+                    if (!waitBeforeRetry(result.attempts)) {
+                        return;
+                    }
+                }
+            }
+        }
+        finally {
+            result.duration = System.currentTimeMillis() - phaseStart;
+        }
+    }
+
+    /**
+     * Backs off before the next attempt. Nothing is downloaded while we wait, so the watchdog's stall check is held
+     * off until the wait is over.
+     */
+    private boolean waitBeforeRetry(int attempts) {
+        if (this.syncEngine == null) {
+            return this.retryPolicy.waitBeforeRetry(attempts, null);
+        }
+        this.syncEngine.suspendStallCheck();
+        try {
+            return this.retryPolicy.waitBeforeRetry(attempts, this.syncEngine);
+        }
+        finally {
+            this.syncEngine.resumeStallCheck();
+        }
+    }
+
+    private boolean canRetry(int attempts, Throwable failure) {
+        if (this.syncEngine != null && this.syncEngine.isStopRequested()) {
+            return false;
+        }
+        return this.retryPolicy.shouldRetry(attempts, failure);
+    }
+
+    private void logTimings() {
+        if (!Trace.isEnabled(Trace.SYNC, Trace.INFO)) {
+            return;
+        }
+        StringBuilder message = new StringBuilder();
+        long totalPhaseTime = 0;
+        for (Result result : getResults()) {
+            totalPhaseTime += result.getDurationMilliseconds();
+            message.append(", ").append(result.getName()).append(' ').append(result.getDurationMilliseconds())
+                    .append("ms");
+            if (result.getAttempts() > 1) {
+                message.append(" (").append(result.getAttempts()).append(" attempts)");
+            }
+            if (!result.isSuccessful()) {
+                message.append(" (failed)");
+            }
+        }
+        Trace.i(Trace.SYNC, LOG_TAG, "Sync finished in " + this.elapsedTime + "ms, phases took " + totalPhaseTime
+                + "ms in total" + message);
+    }
+
+    private static class PhaseThreadFactory implements ThreadFactory {
+        private int count;
+
+        public synchronized Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "SyncPhase-" + (++this.count));
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/**
+ * Copyright (C) 2010 Grameen Foundation
+Licensed under the Apache License, Version 2.0 (the "License"); you may not
+use this file except in compliance with the License. You may obtain a copy of
+the License at http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations under
+the License.
+ */
+
+package applab.search.client;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.Handler;
+import android.os.Message;
+import android.os.SystemClock;
+
+/**
+ * Counts synchronization progress on the worker threads and publishes it to a Handler in coalesced updates, at most
+ * once every minIntervalMillis or whenever another minPercentStep percent of the total has been processed.
+ *
+ * Updates are sent as GlobalConstants.KEYWORD_PARSE_PROGRESS messages with the level in arg1 and the total in arg2,
+ * so no Bundle is shared between threads. Safe to call from any thread.
+ */
+public class SyncProgressReporter {
+    private static final String LOG_TAG = "SyncProgressReporter";
+    public static final int DEFAULT_MIN_INTERVAL_MILLIS = 250;
+    public static final int DEFAULT_MIN_PERCENT_STEP = 1;
+
+    private final Handler handler;
+    private final int minIntervalMillis;
+    private final int minPercentStep;
+
+    private final AtomicInteger level = new AtomicInteger();
+    private final AtomicInteger publishedLevel = new AtomicInteger();
+    private volatile int total;
+    private volatile long lastPublishTime;
+
+    public SyncProgressReporter(Handler handler) {
+        this(handler, DEFAULT_MIN_INTERVAL_MILLIS, DEFAULT_MIN_PERCENT_STEP);
+    }
+
+    public SyncProgressReporter(Handler handler, int minIntervalMillis, int minPercentStep) {
+        this.handler = handler;
+        this.minIntervalMillis = minIntervalMillis;
+        this.minPercentStep = minPercentStep;
+        this.lastPublishTime = SystemClock.uptimeMillis();
+    }
+
+    public void setTotal(int total) {
+        this.total = total;
+    }
+
+    public int getTotal() {
+        return this.total;
+    }
+
+    public int getLevel() {
+        return this.level.get();
+    }
+
+    public void increment() {
+        add(1);
+    }
+
+    /**
+     * Adds count to the progress level, publishing it if enough time or progress has passed since the last update
+     */
+    public void add(int count) {
+        int currentLevel = this.level.addAndGet(count);
+        int lastPublished = this.publishedLevel.get();
+        if (currentLevel <= lastPublished) {
+            return;
+        }
+
+        long now = SystemClock.uptimeMillis();
+        int currentTotal = this.total;
+        boolean isDue = (now - this.lastPublishTime >= this.minIntervalMillis)
+                || (currentTotal > 0 && currentLevel >= currentTotal)
+                || (currentTotal > 0 && (long)(currentLevel - lastPublished) * 100 >= (long)this.minPercentStep * currentTotal);
+
+        // only one thread gets to publish a given update
+        if (isDue && this.publishedLevel.compareAndSet(lastPublished, currentLevel)) {
+            this.lastPublishTime = now;
+            publish(currentLevel, currentTotal);
+        }
+    }
+
+    /**
+     * Publishes the current level if it hasn't been published yet, e.g. at the end of a phase
+     */
+    public void flush() {
+        int currentLevel = this.level.get();
+        int lastPublished = this.publishedLevel.get();
+        if (currentLevel > lastPublished && this.publishedLevel.compareAndSet(lastPublished, currentLevel)) {
+            this.lastPublishTime = SystemClock.uptimeMillis();
+            publish(currentLevel, this.total);
+        }
+    }
+
+    private void publish(int currentLevel, int currentTotal) {
+        if (Trace.isEnabled(Trace.PARSER, Trace.DEBUG)) {
+            Trace.d(Trace.PARSER, LOG_TAG, "Processed : " + currentLevel + " of " + currentTotal);
+        }
+        if (this.handler != null) {
+            Message.obtain(this.handler, GlobalConstants.KEYWORD_PARSE_PROGRESS, currentLevel, currentTotal).sendToTarget();
+        }
+    }
+}
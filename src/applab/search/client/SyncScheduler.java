@@ -0,0 +1,294 @@
+/**
+ * Copyright (C) 2010 Grameen Foundation
+Licensed under the Apache License, Version 2.0 (the "License"); you may not
+use this file except in compliance with the License. You may obtain a copy of
+the License at http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations under
+the License.
+ */
+
+package applab.search.client;
+
+import java.util.Random;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.util.Log;
+import applab.client.PropertyStorage;
+
+/**
+ * Decides when background synchronization runs. Replaces the in-process 12 hour Timer, whose schedule was lost every
+ * time the process died.
+ *
+ * The time of the last successful sync and the run of failures since then are kept in PropertyStorage, and the next
+ * check is an AlarmManager alarm that starts ApplabSearchService, so the schedule survives the process. A sync is due
+ * SYNCHRONIZATION_INTERVAL after the last success; after a failure it is retried sooner, backing off exponentially.
+ *
+ * A due sync only starts when the device is online and either charging or not low on battery. Otherwise nothing is
+ * attempted, so no failure is counted, and SyncConditionsReceiver tries again once connectivity or power comes back.
+ * The alarm is inexact (RTC), so it never wakes the device up just to sync: it fires the next time the device is
+ * awake anyway.
+ *
+ * So that a district's handsets don't all hit the server together when they come back on after a power cut, every
+ * device gets a fixed jitter fraction, picked at random once and kept in PropertyStorage. It spreads the first sync
+ * after start-up, the regular interval, the retries and the wait after connectivity returns across their windows,
+ * and always puts the same device at the same point in each. The server can also push syncs back by sending
+ * NextSyncAfter (in seconds) in the keyword response; a sync is never scheduled before that.
+ */
+public class SyncScheduler {
+    private static final String LOG_TAG = "SyncScheduler";
+
+    /** set on the service intent the alarm sends */
+    public static final String EXTRA_SYNCHRONIZE = "applab.search.client.synchronize";
+
+    private static final String SERVICE_ACTION = "applab.search.client.service.ApplabSearchService";
+
+    /* Retry backoff: 15 minutes after the first failure, doubling up to the normal interval */
+    private static final long MIN_RETRY_INTERVAL = 15 * 60 * 1000;
+    private static final long MAX_RETRY_INTERVAL = SynchronizationManager.SYNCHRONIZATION_INTERVAL;
+
+    /** how soon to look again when a sync is due but conditions aren't right, in case we miss the broadcast */
+    private static final long CONDITIONS_RECHECK_INTERVAL = 60 * 60 * 1000;
+
+    /* Jitter windows: how far past the nominal time a device may be pushed */
+    private static final long START_JITTER_WINDOW = 30 * 60 * 1000;
+    private static final long INTERVAL_JITTER_WINDOW = 2 * 60 * 60 * 1000;
+    private static final long RECONNECT_JITTER_WINDOW = 15 * 60 * 1000;
+
+    private static double jitterFraction = -1;
+
+    /** below this battery level, and not charging, we wait */
+    private static int minimumBatteryPercent = 30;
+
+    private static boolean listening;
+
+    /**
+     * Starts tracking sync results and schedules the next check. Called when the service starts.
+     */
+    public static synchronized void start(Context context) {
+        if (!listening) {
+            SynchronizationManager.addSynchronizationListener(new ResultListener(context.getApplicationContext()));
+            listening = true;
+        }
+        scheduleNext(context);
+    }
+
+    /**
+     * Runs a background sync if one is due and the device is in a fit state for it, and schedules the next check
+     */
+    public static void synchronizeIfDue(Context context) {
+        long now = System.currentTimeMillis();
+        if (now < getNextSynchronizationTime()) {
+            scheduleNext(context);
+            return;
+        }
+
+        if (!isOnline(context) || !hasEnoughPower(context)) {
+            Log.i(LOG_TAG, "Synchronization is due, waiting for connectivity or power");
+            scheduleAt(context, now + CONDITIONS_RECHECK_INTERVAL);
+            return;
+        }
+
+        Log.i(LOG_TAG, "Starting scheduled synchronization");
+        new TimedSynchronizationTask().run();
+    }
+
+    /**
+     * True if a sync is due now. Cheap enough to call from broadcast receivers.
+     */
+    public static boolean isDue() {
+        return System.currentTimeMillis() >= getNextSynchronizationTime();
+    }
+
+    /**
+     * Called when connectivity or power comes back. Rather than every waiting device syncing at once, each checks
+     * again at its own point in the reconnect window.
+     */
+    public static void onConditionsChanged(Context context) {
+        if (isDue()) {
+            scheduleAt(context, System.currentTimeMillis() + jitter(RECONNECT_JITTER_WINDOW));
+        }
+    }
+
+    /**
+     * Server backpressure: don't sync in the background again for the given number of seconds
+     */
+    public static void setNextSyncAfter(int seconds) {
+        if (seconds <= 0) {
+            return;
+        }
+        Log.i(LOG_TAG, "Server asked us not to sync for " + seconds + " seconds");
+        setLong(GlobalConstants.SYNC_NOT_BEFORE_KEY, System.currentTimeMillis() + seconds * 1000L);
+    }
+
+    /**
+     * The time the server asked us not to sync in the background before, or 0
+     */
+    public static long getNotBefore() {
+        return getLong(GlobalConstants.SYNC_NOT_BEFORE_KEY, 0);
+    }
+
+    /**
+     * Puts background syncs off until at least the given time, keeping a later time if one is already set. Restores a
+     * NextSyncAfter that a resumed ingest skips over.
+     */
+    public static void setNotBefore(long time) {
+        if (time > getNotBefore()) {
+            setLong(GlobalConstants.SYNC_NOT_BEFORE_KEY, time);
+        }
+    }
+
+    /**
+     * When the next sync is due: the normal interval after the last success, or the backoff interval after the last
+     * failed attempt
+     */
+    public static long getNextSynchronizationTime() {
+        long nextTime;
+        int failures = (int)getLong(GlobalConstants.SYNC_FAILURE_COUNT_KEY, 0);
+        if (failures > 0) {
+            // up to half as long again, so that clients that failed together don't all retry together
+            long retryInterval = getRetryInterval(failures);
+            nextTime = getLong(GlobalConstants.LAST_SYNC_ATTEMPT_KEY, 0) + retryInterval + jitter(retryInterval / 2);
+        }
+        else {
+            // a device that has never synced is due straight away; scheduleNext() keeps that from colliding with the
+            // app starting up
+            long lastSuccess = getLong(GlobalConstants.LAST_SYNC_SUCCESS_KEY, 0);
+            nextTime = lastSuccess + SynchronizationManager.SYNCHRONIZATION_INTERVAL + jitter(INTERVAL_JITTER_WINDOW);
+        }
+        return Math.max(nextTime, getLong(GlobalConstants.SYNC_NOT_BEFORE_KEY, 0));
+    }
+
+    /**
+     * Sets the battery level below which a background sync waits for the charger
+     */
+    public static void setMinimumBatteryPercent(int minimumBatteryPercent) {
+        SyncScheduler.minimumBatteryPercent = minimumBatteryPercent;
+    }
+
+    static long getRetryInterval(int failures) {
+        long interval = MIN_RETRY_INTERVAL;
+        for (int i = 1; i < failures && interval < MAX_RETRY_INTERVAL; i++) {
+            interval *= 2;
+        }
+        return Math.min(interval, MAX_RETRY_INTERVAL);
+    }
+
+    private static void scheduleNext(Context context) {
+        long nextTime = Math.max(getNextSynchronizationTime(), System.currentTimeMillis()
+                + SynchronizationManager.SYNCHRONIZATION_START_INTERVAL + jitter(START_JITTER_WINDOW));
+        scheduleAt(context, nextTime);
+    }
+
+    /**
+     * This device's share of the given window
+     */
+    static long jitter(long window) {
+        return (long)(getJitterFraction() * window);
+    }
+
+    private static synchronized double getJitterFraction() {
+        if (jitterFraction < 0) {
+            String value = PropertyStorage.getLocal().getValue(GlobalConstants.SYNC_JITTER_KEY, null);
+            try {
+                jitterFraction = (value == null) ? -1 : Double.parseDouble(value);
+            }
+            catch (NumberFormatException e) {
+                jitterFraction = -1;
+            }
+            if (jitterFraction < 0 || jitterFraction >= 1) {
+                jitterFraction = new Random().nextDouble();
+                PropertyStorage.getLocal().setValue(GlobalConstants.SYNC_JITTER_KEY, Double.toString(jitterFraction));
+            }
+        }
+        return jitterFraction;
+    }
+
+    private static void scheduleAt(Context context, long time) {
+        AlarmManager alarmManager = (AlarmManager)context.getSystemService(Context.ALARM_SERVICE);
+        PendingIntent operation = PendingIntent.getService(context, 0, getServiceIntent(),
+                PendingIntent.FLAG_UPDATE_CURRENT);
+        alarmManager.set(AlarmManager.RTC, time, operation);
+        Log.d(LOG_TAG, "Next synchronization check in " + ((time - System.currentTimeMillis()) / 60000) + " minutes");
+    }
+
+    private static Intent getServiceIntent() {
+        Intent intent = new Intent(SERVICE_ACTION);
+        intent.putExtra(EXTRA_SYNCHRONIZE, true);
+        return intent;
+    }
+
+    private static boolean isOnline(Context context) {
+        ConnectivityManager connectivityManager = (ConnectivityManager)context
+                .getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo network = (connectivityManager == null) ? null : connectivityManager.getActiveNetworkInfo();
+        return network != null && network.isConnected();
+    }
+
+    private static boolean hasEnoughPower(Context context) {
+        // ACTION_BATTERY_CHANGED is sticky, so this returns the last battery status without registering anything
+        Intent battery = context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (battery == null) {
+            return true;
+        }
+        // the BatteryManager.EXTRA_* names only arrived in API 5, but the broadcast has always used these keys
+        if (battery.getIntExtra("plugged", 0) != 0) {
+            return true;
+        }
+        int level = battery.getIntExtra("level", -1);
+        int scale = battery.getIntExtra("scale", -1);
+        return level < 0 || scale <= 0 || level * 100 / scale >= minimumBatteryPercent;
+    }
+
+    private static long getLong(String key, long defaultValue) {
+        String value = PropertyStorage.getLocal().getValue(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        }
+        catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    private static void setLong(String key, long value) {
+        PropertyStorage.getLocal().setValue(key, Long.toString(value));
+    }
+
+    /**
+     * Records how every episode ends, foreground ones included, and moves the schedule on accordingly
+     */
+    private static class ResultListener implements SyncEngine.Listener {
+        private final Context context;
+
+        ResultListener(Context context) {
+            this.context = context;
+        }
+
+        public void onStateChanged(int oldState, int newState) {
+            if (newState == SyncEngine.DONE) {
+                setLong(GlobalConstants.LAST_SYNC_SUCCESS_KEY, System.currentTimeMillis());
+                setLong(GlobalConstants.SYNC_FAILURE_COUNT_KEY, 0);
+            }
+            else if (newState == SyncEngine.FAILED) {
+                setLong(GlobalConstants.LAST_SYNC_ATTEMPT_KEY, System.currentTimeMillis());
+                setLong(GlobalConstants.SYNC_FAILURE_COUNT_KEY, getLong(GlobalConstants.SYNC_FAILURE_COUNT_KEY, 0) + 1);
+            }
+            else {
+                // a cancelled episode isn't the network's fault; the existing schedule stands
+                return;
+            }
+            scheduleNext(this.context);
+        }
+    }
+}
@@ -11,15 +11,19 @@ the License.
  */
 package applab.search.client;
 
-import java.io.File;
-import java.io.FileInputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PushbackInputStream;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
 
 import org.apache.http.entity.AbstractHttpEntity;
 import org.apache.http.entity.StringEntity;
@@ -30,9 +34,7 @@ import android.content.Context;
 import android.content.DialogInterface;
 import android.database.SQLException;
 import android.os.Handler;
-import android.os.Looper;
 import android.os.Message;
-import android.util.Log;
 import android.widget.Toast;
 import applab.client.ApplabActivity;
 import applab.client.HttpHelpers;
@@ -63,13 +65,61 @@ public class SynchronizationManager {
     private final static String REQUEST_ELEMENT_NAME = "GetKeywordsRequest";
     private final static String VERSION_ELEMENT_NAME = "localKeywordsVersion";
     private final static String CURRENT_MENU_IDS = "menuIds";
-    public Timer timer;
-    private boolean isSynchronizing;
-    private static Boolean synchronizeNow; // This tells us to start sync
+    private final static String ACCEPT_ENCODING_ELEMENT_NAME = "acceptEncoding";
+    private final static String ACCEPT_FORMAT_ELEMENT_NAME = "acceptFormat";
+    private final static String SYNC_REQUEST_ELEMENT_NAME = "SyncRequest";
+    private final static String USAGE_LOGS_ELEMENT_NAME = "usageLogs";
+    private final static String USAGE_LOG_ELEMENT_NAME = "usageLog";
+    private final static String PAGE_SIZE_ELEMENT_NAME = "pageSize";
+    private final static String CONTINUATION_TOKEN_ELEMENT_NAME = "continuationToken";
+    private final static String LOG_TAG = "SynchronizationManager";
+    private final static int KEYWORD_STREAM_BUFFER_SIZE = 8 * 1024;
+    private final static int BACKGROUND_PROGRESS_INTERVAL = 5 * 1000;
+    private final static int BACKGROUND_PROGRESS_PERCENT_STEP = 10;
+    private final static String DEFAULT_KEYWORDS_VERSION = "2010-04-04 00:00:00";
+
+    // when set, keyword ingest keeps a checkpoint so an interrupted sync can resume where it left off
+    private static boolean checkpointIngest = true;
+
+    // when set, the keywords request tells the server we can take a gzip or deflate compressed response
+    private static boolean requestCompressedKeywords = false;
+
+    // when set, the keywords request tells the server we can take a binary keyword snapshot instead of JSON
+    private static boolean requestBinaryKeywords = false;
+
+    // socket timeout for the keywords request; the SyncEngine watchdog covers slow but not silent connections
+    private static int networkTimeout = 5 * 60 * 1000;
+
+    // when set, the upload phases of a sync run alongside the keyword update instead of before it
+    private static boolean concurrentSyncPhases = false;
+    private static int maxConcurrentSyncPhases = 2;
+
+    // when set, usage logs and the keywords request go up together and everything comes back in one sync envelope
+    private static boolean useSyncEnvelope = false;
+
+    // when set, the keyword update is fetched and committed a page at a time, see KeywordPageSizer
+    private static boolean pagedKeywords = false;
+
     private Handler completionCallback;
     private Context currentContext;
     private Handler progressMessageHandler;
-    private Thread backgroundThread;
+
+    /** runs synchronization episodes and tracks which phase we are in */
+    private final SyncEngine engine = new SyncEngine();
+
+    /** set on the sync thread once the keyword update has been applied */
+    private boolean keywordUpdateSucceeded;
+
+    /** what to tell the user if the keyword update still fails once the retry policy gives up, or 0 */
+    private int keywordFailure;
+
+    /** set on the sync thread when a page of a paged keyword update has been ingested and the next should be fetched */
+    private boolean keywordPagePending;
+
+    /* While reading a sync envelope, the keyword parser leaves the update's images to us */
+    private boolean deferImages;
+    private List<String> deferredImages;
+    private List<String> deferredDeletedImages;
 
     /** Search database */
     private static Storage searchDatabase;
@@ -77,7 +127,7 @@ public class SynchronizationManager {
     // used for getting messages from the download and parsing threads
     private Handler internalMessageHandler;
 
-    private Boolean launchedFromTimer = false;
+    private volatile boolean launchedFromTimer;
 
     private SynchronizationManager() {
     }
@@ -86,12 +136,50 @@ public class SynchronizationManager {
      * performs an unsynchronized check that can be used for dirty read purposes such as UI enablement checks, etc.
      */
     public static boolean isSynchronizing() {
-        return SynchronizationManager.singleton.isSynchronizing;
+        return !SynchronizationManager.singleton.engine.isIdle();
+    }
+
+    /**
+     * True if a synchronization episode the user is waiting on is running
+     */
+    public static boolean isSynchronizingInForeground() {
+        SynchronizationManager manager = SynchronizationManager.singleton;
+        return SyncEngine.isActive(manager.engine.getState()) && !manager.launchedFromTimer;
+    }
+
+    /**
+     * Stops the running synchronization episode. The download and ingest stop at the next read or record, the open
+     * ingest transaction is rolled back and staged keyword changes are dropped, leaving the keywords as they were.
+     * Returns false if there was nothing to cancel.
+     */
+    public static boolean cancelSynchronization() {
+        SynchronizationManager manager = SynchronizationManager.singleton;
+        if (!manager.engine.cancel()) {
+            return false;
+        }
+
+        // the episode unwinds in the background; as far as the UI is concerned it is over
+        manager.sendInternalMessage(GlobalConstants.KEYWORD_SYNC_CANCELLED);
+        return true;
+    }
+
+    /**
+     * Returns the SyncEngine state of the current synchronization episode
+     */
+    public static int getSynchronizationState() {
+        return SynchronizationManager.singleton.engine.getState();
+    }
+
+    /**
+     * Registers a listener to be told whenever a synchronization episode changes phase. Listeners are called on the
+     * sync thread.
+     */
+    public static void addSynchronizationListener(SyncEngine.Listener listener) {
+        SynchronizationManager.singleton.engine.addListener(listener);
     }
 
-    // TOOD: hook this up to isSynchronizing
-    private boolean isRunning() {
-        return this.backgroundThread != null && this.backgroundThread.isAlive();
+    public static void removeSynchronizationListener(SyncEngine.Listener listener) {
+        SynchronizationManager.singleton.engine.removeListener(listener);
     }
 
     /**
@@ -118,83 +206,47 @@ public class SynchronizationManager {
 
     /**
      * Check if it's okay to proceed with a synchronization episode. isModal determines if this is a foreground or
-     * background synchronization.
+     * background synchronization. Requests that arrive while an episode is under way are folded into it rather than
+     * starting another.
      */
     private static void synchronize(Context context, Handler completionCallback, boolean isModal, boolean launchedFromTimer) {
-        boolean processAlreadyRunning = false;
-        synchronizeNow = isModal || launchedFromTimer;
+        SynchronizationManager manager = SynchronizationManager.singleton;
 
-        synchronized (SynchronizationManager.singleton) {
-            // if we don't have a timer, set that up
-            // Moving this to a service
-            // SynchronizationManager.singleton.ensureTimerIsScheduled();
-
-            // Now check if we are in the middle of a synchronization episode
-            // and if so, we should attach to the UI
-            // TODO: check isRunning instead?
-            if (SynchronizationManager.isSynchronizing()) {
-                processAlreadyRunning = true;
-            }
-            else {
-                // check if we have any keywords cached locally. If not, we have to become
-                // modal and initialize our local store.
-                if (!StorageManager.hasKeywords()) {
-                    synchronizeNow = true;
-                }
-            }
+        // check if we have any keywords cached locally. If not, we have to become
+        // modal and initialize our local store.
+        if (manager.engine.isIdle() && !isModal && !launchedFromTimer && StorageManager.hasKeywords()) {
+            return;
+        }
 
-            if (synchronizeNow && (!processAlreadyRunning)) {
-                SynchronizationManager.singleton.launchedFromTimer = launchedFromTimer;
-                if (isModal) {
-                    // start a modal synchronization episode
-                    ProgressDialogManager.silentMode = false;
-                }
+        if (!manager.engine.tryStart()) {
+            // We are in the middle of a synchronization episode, which covers this request too
+            if (!launchedFromTimer) {
+                Toast notification = Toast.makeText(context,
+                        context.getResources().getString(R.string.keywords_updating),
+                        Toast.LENGTH_LONG);
+                notification.show();
             }
+            return;
         }
 
-        if (processAlreadyRunning) {
-            // SynchronizationManager.singleton.attachActivity(context, completionCallback);
-            Toast notification = Toast.makeText(context,
-            		context.getResources().getString(R.string.keywords_updating),
-                    Toast.LENGTH_LONG);
-            notification.show();
-        }
-        else if (synchronizeNow) {
-            SynchronizationManager.singleton.startSynchronization(context, completionCallback);
+        manager.launchedFromTimer = launchedFromTimer;
+        if (isModal) {
+            // start a modal synchronization episode
+            ProgressDialogManager.silentMode = false;
         }
+        manager.startSynchronization(context, completionCallback);
     }
 
     /**
-     * completes a synchronization task by releasing associated locks
+     * Releases a synchronization episode that has finished, e.g. one that failed and was waiting for the user to
+     * retry. An episode that is still running is left alone.
      */
     public static void completeSynchronization() {
-        synchronized (SynchronizationManager.singleton) {
-            SynchronizationManager.singleton.isSynchronizing = false;
-            SynchronizationManager.singleton.launchedFromTimer = false; // Reset this
-        }
+        SynchronizationManager.singleton.engine.release();
     }
 
     /**
-     * Make sure our background timer is scheduled. Assumes that it's called under a lock.
-     * 
-     * Returns true if we allocated the timer
-     */
-    public boolean ensureTimerIsScheduled() {
-        boolean scheduledTimer = false;
-        if (this.timer == null) {
-            this.timer = new Timer();
-            // TODO: should we kick off a synchronization episode immediately? If so, change the first parameter here
-            // and modify the caller appropriately
-            this.timer.scheduleAtFixedRate(new TimedSynchronizationTask(), SYNCHRONIZATION_START_INTERVAL,
-                    SYNCHRONIZATION_INTERVAL);
-            scheduledTimer = true;
-        }
-
-        return scheduledTimer;
-    }
-
-    /**
-     * By the time this method is called, we know that no synchronization is in progress, so it's our job to kick it off
+     * By the time this method is called we have claimed the sync engine, so it's our job to kick the episode off
      */
     private void startSynchronization(Context context, Handler completionCallback) {
         this.currentContext = context;
@@ -215,16 +267,7 @@ public class SynchronizationManager {
             this.internalMessageHandler = completionCallback;
         }
 
-        BackgroundSynchronizationTask task = new BackgroundSynchronizationTask(this, true);
-        if (this.launchedFromTimer) {
-            // Timer already has it's own thread, so just run the task
-            task.run();
-        }
-        else {
-            // Start a new thread
-            this.backgroundThread = new Thread(task);
-            this.backgroundThread.start();
-        }
+        this.engine.execute(new BackgroundSynchronizationTask());
     }
 
     /**
@@ -259,16 +302,8 @@ public class SynchronizationManager {
     private static Handler createProgressMessageHandler() {
         return new Handler() {
             public void handleMessage(Message message) {
-                // Level
-                int level = message.getData().getInt("node");
-                if (level > 0) {
-                    ProgressDialogManager.setProgress(level);
-                }
-
-                // Max
-                int max = message.getData().getInt("max");
-                if (max > 0) {
-                    ProgressDialogManager.setMax(max);
+                if (message.what == GlobalConstants.KEYWORD_PARSE_PROGRESS) {
+                    ProgressDialogManager.updateProgress(message.arg1, message.arg2);
                 }
             }
         };
@@ -287,7 +322,9 @@ public class SynchronizationManager {
         DialogInterface.OnClickListener onClickRetry = new DialogInterface.OnClickListener() {
             public void onClick(DialogInterface dialog, int id) {
                 dialog.cancel();
-                startSynchronization(currentContext, completionCallback);
+                if (engine.retry()) {
+                    startSynchronization(currentContext, completionCallback);
+                }
             }
         };
 
@@ -312,7 +349,7 @@ public class SynchronizationManager {
                 // TODO: Can we do this on the UI thread before we offload the process into the background?
                 // it would cleanup the code, allow us to easily thread in Global.SETUP_DIALOG when Storage is empty,
                 // and avoid a few extra thread switches
-                if (!this.launchedFromTimer) {
+                if (showsProgress()) {
                     ProgressDialogManager.displayProgressDialog(GlobalConstants.UPDATE_DIALOG, this.currentContext);
                 }
                 break;
@@ -337,7 +374,7 @@ public class SynchronizationManager {
                 break;
             case GlobalConstants.KEYWORD_PARSE_GOT_NODE_TOTAL:
                 int nodeCount = message.getData().getInt("nodeCount");
-                if (!this.launchedFromTimer) {
+                if (showsProgress()) {
                     ProgressDialogManager.displayProgressDialog(GlobalConstants.PARSE_DIALOG, this.currentContext, nodeCount);
                 }
                 break;
@@ -361,6 +398,31 @@ public class SynchronizationManager {
             case GlobalConstants.DISMISS_WAIT_DIALOG:
                 ProgressDialogManager.tryDestroyProgressDialog();
                 break;
+            case GlobalConstants.KEYWORD_SYNC_TIMED_OUT:
+                ProgressDialogManager.tryDestroyProgressDialog();
+                if (!this.launchedFromTimer) {
+                    showErrorDialog(R.string.sync_timed_out);
+                }
+                break;
+            case GlobalConstants.KEYWORD_SYNC_STALLED:
+                ProgressDialogManager.tryDestroyProgressDialog();
+                if (!this.launchedFromTimer) {
+                    showErrorDialog(R.string.sync_stalled);
+                }
+                break;
+            case GlobalConstants.KEYWORD_SYNC_CANCELLED:
+                ProgressDialogManager.tryDestroyProgressDialog();
+                if (!this.launchedFromTimer) {
+                    Toast cancelToast = Toast.makeText(this.currentContext,
+                            this.currentContext.getString(R.string.sync_cancelled), Toast.LENGTH_LONG);
+                    cancelToast.show();
+                }
+                break;
+            case GlobalConstants.KEYWORD_PARSE_PROGRESS:
+                if (showsProgress()) {
+                    ProgressDialogManager.updateProgress(message.arg1, message.arg2);
+                }
+                break;
         }
 
         if (this.completionCallback != null) {
@@ -369,55 +431,125 @@ public class SynchronizationManager {
     }
 
     /**
-     * Called by our background or timer thread to perform the actual synchronization tasks from a separate thread.
-     * 
-     * @throws XmlPullParserException
+     * False once the user has nothing to watch: timer episodes never show progress, and a cancelled episode stops
+     * showing it straight away even though it takes a moment to unwind
      */
-    private void performBackgroundSynchronization() throws XmlPullParserException {
-        Boolean setupLooper = true;
-        if (this.launchedFromTimer) {
-            setupLooper = false;
-        }
+    private boolean showsProgress() {
+        return !this.launchedFromTimer && !this.engine.isStopRequested();
+    }
 
-        if (setupLooper) {
-            // we may want to associate UI with this task, so create
-            // a looper to setup the message pump (by default, background threads
-            // don't have a message pump)
+    /**
+     * Called on the sync engine's thread to perform the actual synchronization tasks, moving the engine through the
+     * phases of the episode as it goes.
+     *
+     * Normally the phases run one after the other and a failure stops the episode. With concurrent sync phases on,
+     * the uploads run on worker threads alongside the keyword update, and a failed upload no longer holds up the
+     * keywords. With the sync envelope on, the usage logs go up with the keywords request instead of on their own.
+     *
+     * Phases that fail for reasons that may heal by themselves, a dropped connection say, are retried under the sync
+     * RetryPolicy. Connection errors are only shown once that has given up.
+     */
+    private void performBackgroundSynchronization() {
+        this.keywordUpdateSucceeded = false;
+        boolean awaitRetry = !this.launchedFromTimer;
+        boolean concurrent = concurrentSyncPhases;
+        final boolean envelope = useSyncEnvelope;
+        SyncPhaseRunner phases = new SyncPhaseRunner(concurrent ? maxConcurrentSyncPhases : 0);
+        phases.setRetryPolicy(RetryPolicy.getSyncPolicy(), this.engine);
+        this.keywordFailure = 0;
+
+        sendInternalMessage(GlobalConstants.KEYWORD_DOWNLOAD_STARTING); // We send this so that the dialog shows up
+                                                                        // immediately
+
+        // First submit pending farmer registrations and get latest registration form
+        SyncPhaseRunner.Result result = phases.submit("registrations", new SyncPhaseRunner.Phase() {
+            public void run() throws Exception {
+                uploadFarmerRegistrations();
+            }
+        });
 
-            Looper.prepare();
+        // Then submit pending usage logs and incomplete searches
+        if (!envelope && (concurrent || result.isSuccessful()) && !this.engine.isStopRequested()) {
+            if (!concurrent) {
+                this.engine.advance(SyncEngine.UPLOADING_LOGS);
+            }
+            result = phases.submit("usage-logs", new SyncPhaseRunner.Phase() {
+                public void run() throws Exception {
+                    uploadUsageLogs();
+                }
+            });
         }
 
-        try {
-            sendInternalMessage(GlobalConstants.KEYWORD_DOWNLOAD_STARTING); // We send this so that the dialog shows up
-                                                                            // immediately
-            SynchronizationManager.singleton.isSynchronizing = true;
-
-            // First submit pending farmer registrations and get latest registration form
-            String serverUrl = Settings.getServerUrl();
-            FarmerRegistrationController farmerRegController = new FarmerRegistrationController();
-            farmerRegController.postFarmerRegistrationData(serverUrl);
-            farmerRegController.fetchAndStoreRegistrationForm(serverUrl);
-
-            // Then submit pending usage logs and incomplete searches
-            InboxAdapter inboxAdapter = new InboxAdapter(ApplabActivity.getGlobalContext());
-            inboxAdapter.open();
-            submitPendingUsageLogs(inboxAdapter);
+        // Finally update keywords. This always runs here on the sync thread, which owns the ingest's database
+        // transaction
+        if ((concurrent || result.isSuccessful()) && !this.engine.isStopRequested()) {
+            this.engine.advance(SyncEngine.DOWNLOADING);
+            result = phases.run(envelope ? "envelope" : "keywords", new SyncPhaseRunner.Phase() {
+                public void run() throws Exception {
+                    keywordFailure = 0;
+                    if (envelope) {
+                        exchangeSyncEnvelope();
+                    }
+                    else {
+                        updateKeywords();
+                    }
+                    if (keywordFailure != 0) {
+                        // hand it to the retry policy; a resumed ingest picks up from its checkpoint
+                        throw new IOException("Keyword update failed with error " + keywordFailure);
+                    }
+                }
+            });
+        }
+        phases.awaitCompletion();
 
-            inboxAdapter.close();
+        boolean failureReported = false;
+        if (!this.keywordUpdateSucceeded && this.keywordFailure != 0 && !this.engine.isStopRequested()) {
+            // the retry policy has given up, so now it's over to the user
+            sendInternalMessage(this.keywordFailure);
+            failureReported = true;
+        }
+        if (!result.isSuccessful() && !failureReported) {
+            // nobody is shown an error dialog for this, so there is nothing to wait for
+            awaitRetry = false;
+        }
 
-            // Finally update keywords
-            updateKeywords();
+        if (this.keywordUpdateSucceeded) {
+            // a cancel that came too late to stop the update doesn't undo it
+            this.engine.succeed();
         }
-        catch (Exception e) {
-            e.printStackTrace();
-            completeSynchronization();
+        else if (this.engine.isCancelRequested()) {
+            this.engine.abandon();
         }
+        else {
+            // the watchdog stops slow episodes without telling the user, so say why here. The error dialog offers
+            // a retry, which resumes from the ingest checkpoint
+            int stopReason = this.engine.getStopReason();
+            if (stopReason == SyncEngine.STOP_TIMED_OUT || stopReason == SyncEngine.STOP_STALLED) {
+                sendInternalMessage(stopReason == SyncEngine.STOP_TIMED_OUT ? GlobalConstants.KEYWORD_SYNC_TIMED_OUT
+                        : GlobalConstants.KEYWORD_SYNC_STALLED);
+                awaitRetry = !this.launchedFromTimer;
+            }
 
-        if (setupLooper) {
-            // TODO: Looper.loop is problematic here. This should be restructured
-            Looper.loop();
-            Looper looper = Looper.getMainLooper();
-            looper.quit();
+            // a foreground episode stays FAILED until the user picks Retry or Cancel in the error dialog
+            this.engine.fail(awaitRetry);
+        }
+    }
+
+    private void uploadFarmerRegistrations() throws Exception {
+        String serverUrl = Settings.getServerUrl();
+        FarmerRegistrationController farmerRegController = new FarmerRegistrationController();
+        farmerRegController.postFarmerRegistrationData(serverUrl);
+        farmerRegController.fetchAndStoreRegistrationForm(serverUrl);
+    }
+
+    private void uploadUsageLogs() {
+        InboxAdapter inboxAdapter = new InboxAdapter(ApplabActivity.getGlobalContext());
+        inboxAdapter.open();
+        try {
+            submitPendingUsageLogs(inboxAdapter);
+        }
+        finally {
+            inboxAdapter.close();
         }
     }
 
@@ -428,17 +560,97 @@ public class SynchronizationManager {
      * @throws UnsupportedEncodingException
      */
     static AbstractHttpEntity getRequestEntity() throws UnsupportedEncodingException {
-        String keywordsVersion = PropertyStorage.getLocal().getValue(GlobalConstants.KEYWORDS_VERSION_KEY, "2010-04-04 00:00:00");
+        return getRequestEntity(getLocalKeywordsVersion(), getMenuIds());
+    }
+
+    /**
+     * Builds the update request for the given local version and menu ids, so that an interrupted ingest can repeat
+     * the exact request it was working on
+     */
+    static AbstractHttpEntity getRequestEntity(String keywordsVersion, String menuIds) throws UnsupportedEncodingException {
         XmlEntityBuilder xmlRequest = new XmlEntityBuilder();
         xmlRequest.writeStartElement(REQUEST_ELEMENT_NAME, XML_NAME_SPACE);
+        writeKeywordsRequest(xmlRequest, keywordsVersion, menuIds, requestBinaryKeywords);
+        xmlRequest.writeEndElement();
+        return xmlRequest.getEntity();
+    }
+
+    /**
+     * Builds the request for the page of a paged update the checkpoint is at. Every page is asked for relative to the
+     * version the update started from. Binary snapshots aren't checkpointed, so they aren't asked for.
+     */
+    static AbstractHttpEntity getPageRequestEntity(IngestCheckpoint checkpoint) throws UnsupportedEncodingException {
+        XmlEntityBuilder xmlRequest = new XmlEntityBuilder();
+        xmlRequest.writeStartElement(REQUEST_ELEMENT_NAME, XML_NAME_SPACE);
+        writeKeywordsRequest(xmlRequest, checkpoint.getBaseVersion(), checkpoint.getMenuIds(), false);
+        writeElement(xmlRequest, PAGE_SIZE_ELEMENT_NAME, Integer.toString(checkpoint.getPageSize()));
+        writeElement(xmlRequest, CONTINUATION_TOKEN_ELEMENT_NAME, checkpoint.getContinuationToken());
+        xmlRequest.writeEndElement();
+        return xmlRequest.getEntity();
+    }
+
+    /**
+     * Builds the combined sync request: the keywords request, for the given checkpoint if we are resuming one, plus
+     * the pending usage logs
+     */
+    static AbstractHttpEntity getSyncRequestEntity(IngestCheckpoint checkpoint,
+            List<InboxAdapter.SearchUsage> pendingSearches) throws UnsupportedEncodingException {
+        XmlEntityBuilder xmlRequest = new XmlEntityBuilder();
+        xmlRequest.writeStartElement(SYNC_REQUEST_ELEMENT_NAME, XML_NAME_SPACE);
+        if (checkpoint == null) {
+            writeKeywordsRequest(xmlRequest, getLocalKeywordsVersion(), getMenuIds(), requestBinaryKeywords);
+        }
+        else {
+            writeKeywordsRequest(xmlRequest, checkpoint.getBaseVersion(), checkpoint.getMenuIds(), requestBinaryKeywords);
+        }
+
+        xmlRequest.writeStartElement(USAGE_LOGS_ELEMENT_NAME);
+        for (InboxAdapter.SearchUsage pendingSearch : pendingSearches) {
+            SearchRequest searchRequest = pendingSearch.getSearchRequest();
+            xmlRequest.writeStartElement(USAGE_LOG_ELEMENT_NAME);
+            writeElement(xmlRequest, "id", Long.toString(pendingSearch.getSearchTableId()));
+            writeElement(xmlRequest, "submissionTime", searchRequest.getSubmissionTime());
+            writeElement(xmlRequest, "intervieweeId", searchRequest.getFarmerId());
+            writeElement(xmlRequest, "keyword", searchRequest.getKeyword());
+            writeElement(xmlRequest, "location", searchRequest.getLocation());
+            writeElement(xmlRequest, "category", searchRequest.getCategory());
+            xmlRequest.writeEndElement();
+        }
+        xmlRequest.writeEndElement();
+
+        xmlRequest.writeEndElement();
+        return xmlRequest.getEntity();
+    }
+
+    private static void writeElement(XmlEntityBuilder xmlRequest, String name, String value) {
+        if (value != null) {
+            xmlRequest.writeStartElement(name);
+            xmlRequest.writeText(value);
+            xmlRequest.writeEndElement();
+        }
+    }
+
+    /**
+     * Writes what the server needs to work out our keyword update
+     */
+    private static void writeKeywordsRequest(XmlEntityBuilder xmlRequest, String keywordsVersion, String menuIds,
+            boolean acceptBinary) {
         xmlRequest.writeStartElement(VERSION_ELEMENT_NAME);
         xmlRequest.writeText(keywordsVersion);
         xmlRequest.writeEndElement();
         xmlRequest.writeStartElement(CURRENT_MENU_IDS);
-        xmlRequest.writeText(getMenuIds());
-        xmlRequest.writeEndElement();
+        xmlRequest.writeText(menuIds);
         xmlRequest.writeEndElement();
-        return xmlRequest.getEntity();
+        if (requestCompressedKeywords) {
+            xmlRequest.writeStartElement(ACCEPT_ENCODING_ELEMENT_NAME);
+            xmlRequest.writeText(ContentDecoder.GZIP + ", " + ContentDecoder.DEFLATE);
+            xmlRequest.writeEndElement();
+        }
+        if (acceptBinary) {
+            xmlRequest.writeStartElement(ACCEPT_FORMAT_ELEMENT_NAME);
+            xmlRequest.writeText(KeywordBinaryFormat.FORMAT_NAME);
+            xmlRequest.writeEndElement();
+        }
     }
 
     /**
@@ -448,6 +660,10 @@ public class SynchronizationManager {
     private void submitPendingUsageLogs(InboxAdapter inboxAdapter) {
         List<InboxAdapter.SearchUsage> pendingSearches = inboxAdapter.getLocalSearches();
         for (InboxAdapter.SearchUsage pendingSearch : pendingSearches) {
+            if (this.engine.isStopRequested()) {
+                // whatever is left stays queued for the next sync
+                break;
+            }
             String searchResult = pendingSearch.submitSearch();
             if (searchResult != null) {
                 inboxAdapter.deleteRecord(InboxAdapter.ACCESS_LOG_DATABASE_TABLE, pendingSearch.getSearchTableId());
@@ -468,121 +684,629 @@ public class SynchronizationManager {
         }
     }
 
-    private void parseKeywords(InputStream keywordStream) throws XmlPullParserException, ParseException {
+    private static String getLocalKeywordsVersion() {
+        return PropertyStorage.getLocal().getValue(GlobalConstants.KEYWORDS_VERSION_KEY, DEFAULT_KEYWORDS_VERSION);
+    }
+
+    private void parseKeywords(InputStream keywordStream, boolean binaryPayload, IngestCheckpoint checkpoint,
+            Checksum checksum) throws XmlPullParserException, ParseException {
         // Call KeywordParser to parse the keywords result and store the contents in our
         // local database
         // TODO: integrate this code into our synchronization manager?
-        JsonSimpleParser keywordParser = new JsonSimpleParser(this.progressMessageHandler, this.internalMessageHandler, keywordStream);
+        // Nobody is watching progress during timer syncs, so report it far less often
+        SyncProgressReporter progressReporter = this.launchedFromTimer
+                ? new SyncProgressReporter(this.progressMessageHandler, BACKGROUND_PROGRESS_INTERVAL, BACKGROUND_PROGRESS_PERCENT_STEP)
+                : new SyncProgressReporter(this.progressMessageHandler);
+        JsonSimpleParser keywordParser = new JsonSimpleParser(progressReporter, this.internalMessageHandler, keywordStream);
+        keywordParser.setBinaryPayload(binaryPayload);
+        keywordParser.setSyncEngine(this.engine);
+        if (checkpoint != null) {
+            keywordParser.setCheckpoint(checkpoint, checksum);
+        }
+        keywordParser.setDeferImages(this.deferImages);
+        keywordParser.setReportDownloadFailure(false);
         keywordParser.run();
+        this.keywordUpdateSucceeded = keywordParser.isSuccessful();
+        this.keywordPagePending = keywordParser.hasMorePages();
+        if (keywordParser.isDownloadFailed()) {
+            reportKeywordFailure(GlobalConstants.KEYWORD_DOWNLOAD_FAILURE);
+        }
+        if (this.deferImages) {
+            this.deferredImages = keywordParser.updatedImages;
+            this.deferredDeletedImages = keywordParser.deletedImages;
+        }
     }
 
     /**
-     * Called by our background thread to try and claim the lock. This may fail if for example, a Refresh happens
-     * concurrently with our timer firing. In that case we will let the timer fail gracefully
+     * One synchronization episode, run on the sync engine's thread. In the on-demand case we may interact with UI
+     * through the message pump.
      */
-    private boolean tryStartSynchronization() {
-        if (isSynchronizing()) {
-            return false;
+    private class BackgroundSynchronizationTask implements Runnable {
+        public void run() {
+            performBackgroundSynchronization();
         }
+    }
 
-        synchronized (this) {
-            if (isSynchronizing()) {
-                return false;
-            }
+    /**
+     * Downloads the keyword update and parses it as it arrives, so that parsing and database writes overlap with the
+     * (usually slow) download instead of waiting for it to finish. Nothing is written to flash besides the keywords
+     * themselves.
+     * 
+     * Compressed (gzip or deflate) responses are inflated on the fly on their way into the parser.
+     * 
+     * If an earlier ingest was interrupted, its request is repeated and, provided the response starts with the same
+     * bytes, ingest resumes after the last record it committed. Otherwise the update starts over. If the interrupted
+     * response came with a validator, the repeated request asks for only the bytes after the checkpoint (see
+     * KeywordRequest), and the bytes before it aren't downloaded again.
+     * 
+     * With paged keywords on, or when carrying on with an unfinished paged update, the update comes a page at a time
+     * instead (see updateKeywordsInPages()).
+     * 
+     * @throws XmlPullParserException
+     * @throws ParseException
+     */
+    public void updateKeywords() throws XmlPullParserException, ParseException {
+        String url = Settings.getNewServerUrl()
+                + ApplabActivity.getGlobalContext().getString(
+                        R.string.update_path);
 
-            synchronizeNow = true;
-            return true;
+        IngestCheckpoint checkpoint = startIngestCheckpoint();
+        if (checkpoint != null && (pagedKeywords || checkpoint.getPageSize() > 0)) {
+            updateKeywordsInPages(url, checkpoint);
+            return;
+        }
+
+        if (!downloadAndParseKeywords(url, checkpoint, null) && !this.engine.isStopRequested()) {
+            Trace.i(Trace.SYNC, LOG_TAG, "Keyword payload has changed since the last checkpoint, starting over");
+            discardIngestCheckpoint();
+            downloadAndParseKeywords(url, startIngestCheckpoint(), null);
         }
     }
 
     /**
-     * handler that we use to schedule synchronization tasks on a separate thread
-     * 
-     * Used both on-demand and timer-based synchronization. In the on-demand case, we may interact with UI through the
-     * message pump
+     * Fetches and ingests the keyword update one page at a time. Each page is committed along with a checkpoint that
+     * holds the token for the next one, so a dropped page only costs what arrived since its last commit: the retry
+     * asks for the same page again and resumes within it. Nothing is applied until the last page is in.
      * 
+     * Page sizes follow the throughput and latency of the pages so far, see KeywordPageSizer. The size settled on is
+     * kept for the next update.
      */
-    private class BackgroundSynchronizationTask implements Runnable {
-        private SynchronizationManager synchronizationManager;
+    private void updateKeywordsInPages(String url, IngestCheckpoint checkpoint) throws XmlPullParserException,
+            ParseException {
+        KeywordPageSizer pageSizer = new KeywordPageSizer(getSavedPageSize());
+        boolean pageRestarted = false;
+        do {
+            this.keywordPagePending = false;
+            if (!downloadAndParseKeywords(url, checkpoint, pageSizer) && !this.engine.isStopRequested()) {
+                if (!pageRestarted && checkpoint.getContinuationToken() != null) {
+                    // keep the earlier pages and apply this one again from the top
+                    Trace.i(Trace.SYNC, LOG_TAG,
+                            "Keyword page has changed since the last checkpoint, fetching all of it again");
+                    checkpoint.restartPage();
+                    pageRestarted = true;
+                }
+                else {
+                    Trace.i(Trace.SYNC, LOG_TAG,
+                            "Keyword payload has changed since the last checkpoint, starting over");
+                    discardIngestCheckpoint();
+                    checkpoint = startIngestCheckpoint();
+                }
+                this.keywordPagePending = true;
+            }
+        } while (this.keywordPagePending && !this.engine.isStopRequested());
+        PropertyStorage.getLocal().setValue(GlobalConstants.KEYWORD_PAGE_SIZE_KEY,
+                Integer.toString(pageSizer.getPageSize()));
+    }
 
-        // true if we already have the synchronization lock
-        private boolean hasLock;
+    /**
+     * Requests the keyword update, or the page of it the checkpoint is at if pageSizer is given, and ingests it.
+     * Returns false, without ingesting anything, if we were resuming from a checkpoint and the response no longer
+     * matches it.
+     */
+    private boolean downloadAndParseKeywords(String url, IngestCheckpoint checkpoint, KeywordPageSizer pageSizer)
+            throws XmlPullParserException, ParseException {
+        // each attempt and each page gets the full response deadline, whichever phase the last one got to
+        this.engine.restartPhase(SyncEngine.DOWNLOADING);
+        long requestTime = System.currentTimeMillis();
+        KeywordRequest request = null;
+        InputStream keywordStream;
+        try {
+            AbstractHttpEntity requestEntity;
+            if (pageSizer != null) {
+                // an interrupted page is asked for again as it was, so that it can be resumed
+                if (!checkpoint.canResume() || checkpoint.getPageSize() <= 0) {
+                    checkpoint.setPageSize(pageSizer.getPageSize());
+                }
+                requestEntity = getPageRequestEntity(checkpoint);
+            }
+            else {
+                requestEntity = (checkpoint == null) ? getRequestEntity()
+                        : getRequestEntity(checkpoint.getBaseVersion(), checkpoint.getMenuIds());
+            }
+            request = new KeywordRequest(url, requestEntity, networkTimeout);
+            request.setSyncEngine(this.engine);
+            if (checkpoint != null && checkpoint.canResume() && checkpoint.getPayloadValidator() != null) {
+                request.setResumeFrom(checkpoint.getByteOffset(), checkpoint.getPayloadValidator());
+            }
+            keywordStream = request.open();
+        }
+        catch (IOException e) {
+            if (request != null) {
+                request.disconnect();
+            }
+            reportKeywordFailure(GlobalConstants.CONNECTION_ERROR);
+            onPageFailed(pageSizer);
+            return true;
+        }
+        if (keywordStream == null) {
+            request.disconnect();
+            reportKeywordFailure(GlobalConstants.KEYWORD_DOWNLOAD_FAILURE);
+            onPageFailed(pageSizer);
+            return true;
+        }
 
-        public BackgroundSynchronizationTask(SynchronizationManager synchronizationManager,
-                boolean hasLock) {
-            this.synchronizationManager = synchronizationManager;
-            this.hasLock = hasLock;
+        // A cancel or stop breaks the download off, even in the middle of a read
+        long responseTime = System.currentTimeMillis();
+        int recordCount = (checkpoint == null) ? 0 : checkpoint.getRecordCount();
+        boolean matched;
+        try {
+            matched = ingestKeywords(new CancellableInputStream(keywordStream, this.engine), checkpoint, request);
+        }
+        finally {
+            request.disconnect();
+        }
+        if (pageSizer != null && matched) {
+            if (this.keywordPagePending || this.keywordUpdateSucceeded) {
+                pageSizer.onPageCompleted(checkpoint.getRecordCount() - recordCount, responseTime - requestTime,
+                        System.currentTimeMillis() - responseTime);
+            }
+            else {
+                onPageFailed(pageSizer);
+            }
         }
+        return matched;
+    }
 
-        @Override
-        public void run() {
-            boolean doSynchronization;
+    /**
+     * Shrinks the pages after one that didn't make it, and remembers that for the retry. Does nothing if the update
+     * isn't paged or the episode was stopped rather than the page failing.
+     */
+    private void onPageFailed(KeywordPageSizer pageSizer) {
+        if (pageSizer != null && !this.engine.isStopRequested()) {
+            pageSizer.onPageFailed();
+            PropertyStorage.getLocal().setValue(GlobalConstants.KEYWORD_PAGE_SIZE_KEY,
+                    Integer.toString(pageSizer.getPageSize()));
+        }
+    }
+
+    private static int getSavedPageSize() {
+        String pageSize = PropertyStorage.getLocal().getValue(GlobalConstants.KEYWORD_PAGE_SIZE_KEY,
+                Integer.toString(KeywordPageSizer.INITIAL_PAGE_SIZE));
+        try {
+            return Integer.parseInt(pageSize);
+        }
+        catch (NumberFormatException e) {
+            return KeywordPageSizer.INITIAL_PAGE_SIZE;
+        }
+    }
+
+    /**
+     * Ingests a keyword update as it arrives, whether it came on its own or as part of a sync envelope, and closes
+     * the stream. Returns false, without ingesting anything, if we were resuming from a checkpoint and the payload no
+     * longer matches it.
+     */
+    private boolean ingestKeywords(InputStream payloadStream, IngestCheckpoint checkpoint)
+            throws XmlPullParserException, ParseException {
+        return ingestKeywords(payloadStream, checkpoint, null);
+    }
 
-            // first determine if there is already a synchronization episode in-progress
-            if (this.hasLock) {
-                assert (SynchronizationManager.isSynchronizing()) : "if we have the lock, isSynchronizing must be true";
-                doSynchronization = true;
+    /**
+     * Ingests a keyword update that came on its own, from the request that fetched it. If the request resumed the
+     * response, the stream starts at the checkpoint.
+     */
+    private boolean ingestKeywords(InputStream payloadStream, IngestCheckpoint checkpoint, KeywordRequest request)
+            throws XmlPullParserException, ParseException {
+        // count what actually comes over the wire, before any decompression
+        CountingInputStream wireStream = new CountingInputStream(payloadStream);
+        InputStream keywordStream = new BufferedInputStream(wireStream, KEYWORD_STREAM_BUFFER_SIZE);
+        CountingInputStream decodedStream = null;
+        String encoding = null;
+        try {
+            encoding = ContentDecoder.detectEncoding(keywordStream);
+            if (encoding != null) {
+                decodedStream = new CountingInputStream(ContentDecoder.decode(keywordStream, encoding));
+                keywordStream = decodedStream;
             }
-            else {
-                doSynchronization = this.synchronizationManager.tryStartSynchronization();
+
+            // the server may have answered with a binary snapshot if we asked for one. Those aren't checkpointed, so
+            // a checkpoint left by an earlier JSON ingest means starting over
+            PushbackInputStream pushbackStream = new PushbackInputStream(keywordStream, KeywordBinaryFormat.MAGIC.length);
+            keywordStream = pushbackStream;
+            boolean binaryPayload = KeywordBinaryFormat.isBinaryPayload(pushbackStream);
+            if (binaryPayload && checkpoint != null) {
+                if (checkpoint.isInProgress()) {
+                    return false;
+                }
+                checkpoint = null;
             }
 
-            // and if not, start the heavy lifting from our background thread
-            if (doSynchronization) {
-                try {
-                    this.synchronizationManager.performBackgroundSynchronization();
+            Checksum checksum = null;
+            if (checkpoint != null) {
+                if (request != null && request.isResumed()) {
+                    // the server only sent what comes after the checkpoint
+                    checksum = new ContinuedCrc32(checkpoint.getChecksum());
                 }
-                catch (Exception e) {
-                    e.printStackTrace();
-                    ProgressDialogManager.tryDestroyProgressDialog(); // Just in case it was showing
+                else {
+                    checksum = new CRC32();
+                    if (checkpoint.canResume() && !skipCheckpointedBytes(keywordStream, checkpoint, checksum)) {
+                        return false;
+                    }
                 }
+
+                // checkpoint offsets count decoded bytes, so only an uncompressed response can be resumed by range
+                checkpoint.setPayloadValidator((request != null && encoding == null) ? request.getValidator() : null);
             }
+
+            // The response has started arriving, parse it as it comes in
+            this.engine.advance(SyncEngine.INGESTING);
+            sendInternalMessage(GlobalConstants.KEYWORD_DOWNLOAD_SUCCESS);
+            parseKeywords(keywordStream, binaryPayload, checkpoint, checksum);
+        }
+        catch (IOException e) {
+            reportKeywordFailure(GlobalConstants.CONNECTION_ERROR);
+        }
+        finally {
+            try {
+                keywordStream.close();
+            }
+            catch (IOException e) {
+                Trace.w(Trace.SYNC, LOG_TAG, "Failed to close keyword stream: ", e);
+            }
+            logTransferStatistics(encoding, wireStream, decodedStream);
         }
+        return true;
     }
 
     /**
-     * @throws XmlPullParserException
-     * @throws ParseException
+     * Sends the pending usage logs along with the keywords request and reads the sync envelope that comes back (see
+     * SyncEnvelopeFormat) as it arrives: acknowledged logs are deleted, the keyword update is ingested and the images
+     * sent with it are saved, all over one connection. Images the envelope left out are then fetched one by one as
+     * usual.
+     *
+     * A server that doesn't answer with an envelope gets the usage logs and keywords request separately instead.
      */
-    public void updateKeywords() throws XmlPullParserException, ParseException {
+    private void exchangeSyncEnvelope() throws XmlPullParserException, ParseException {
         String url = Settings.getNewServerUrl()
-                + ApplabActivity.getGlobalContext().getString(
-                        R.string.update_path);
+                + ApplabActivity.getGlobalContext().getString(R.string.sync_path);
+        IngestCheckpoint checkpoint = startIngestCheckpoint();
+        if (checkpoint != null && checkpoint.getPageSize() > 0) {
+            // envelopes aren't paged, so an unfinished paged update starts over
+            discardIngestCheckpoint();
+            checkpoint = startIngestCheckpoint();
+        }
+        InboxAdapter inboxAdapter = new InboxAdapter(ApplabActivity.getGlobalContext());
+        inboxAdapter.open();
+        try {
+            List<InboxAdapter.SearchUsage> pendingSearches = inboxAdapter.getLocalSearches();
+            Set<Long> sentUsageLogIds = new HashSet<Long>();
+            for (InboxAdapter.SearchUsage pendingSearch : pendingSearches) {
+                sentUsageLogIds.add(pendingSearch.getSearchTableId());
+            }
 
-        int networkTimeout = 5 * 60 * 1000;
+            // each attempt gets the full response deadline, whichever phase the last one got to
+            this.engine.restartPhase(SyncEngine.DOWNLOADING);
+            InputStream responseStream = null;
+            try {
+                responseStream = HttpHelpers.postJsonRequestAndGetStream(url,
+                        (StringEntity)getSyncRequestEntity(checkpoint, pendingSearches), networkTimeout);
+            }
+            catch (IOException e) {
+                Trace.w(Trace.SYNC, LOG_TAG, "Sync request failed: ", e);
+            }
 
-        InputStream keywordStream;
-        try {
+            if (responseStream != null) {
+                SyncEnvelopeReader envelope = new SyncEnvelopeReader(new BufferedInputStream(
+                        new CancellableInputStream(responseStream, this.engine), KEYWORD_STREAM_BUFFER_SIZE));
+                Set<String> inlineImageIds = new HashSet<String>();
+                this.deferredImages = null;
+                this.deferredDeletedImages = null;
+                boolean keywordsPending;
+                try {
+                    if (!envelope.readHeader()) {
+                        throw new IOException("Response is not a sync envelope");
+                    }
+                    keywordsPending = readSyncEnvelope(envelope, inboxAdapter, sentUsageLogIds, checkpoint,
+                            inlineImageIds);
+                }
+                catch (IOException e) {
+                    if (!this.keywordUpdateSucceeded) {
+                        reportKeywordFailure(GlobalConstants.CONNECTION_ERROR);
+                        return;
+                    }
+                    // the keywords are in, which is what matters; the images it didn't get to are fetched below
+                    Trace.w(Trace.SYNC, LOG_TAG, "Sync envelope broke off after the keyword update: ", e);
+                    keywordsPending = false;
+                }
+                finally {
+                    try {
+                        responseStream.close();
+                    }
+                    catch (IOException e) {
+                        Trace.w(Trace.SYNC, LOG_TAG, "Failed to close sync envelope: ", e);
+                    }
+                }
+
+                if (this.keywordUpdateSucceeded && this.deferredImages != null) {
+                    updateDeferredImages(inlineImageIds);
+                }
+                else if (keywordsPending && !this.engine.isStopRequested()) {
+                    // no keyword update in the envelope, or it didn't match the checkpoint we asked to resume from
+                    updateKeywords();
+                }
+                return;
+            }
+
+            if (!this.engine.isStopRequested()) {
+                Trace.i(Trace.SYNC, LOG_TAG,
+                        "No sync envelope from the server, sending usage logs and keywords request separately");
+                submitPendingUsageLogs(inboxAdapter);
+                updateKeywords();
+            }
+        }
+        finally {
+            inboxAdapter.close();
+        }
+    }
 
-            keywordStream = HttpHelpers.postJsonRequestAndGetStream(url,
-                    (StringEntity)getRequestEntity(), networkTimeout);
+    /**
+     * Reads the sections of a sync envelope as they arrive. Returns true if the keyword update still has to be
+     * fetched separately.
+     */
+    private boolean readSyncEnvelope(SyncEnvelopeReader envelope, InboxAdapter inboxAdapter,
+            Set<Long> sentUsageLogIds, IngestCheckpoint checkpoint, Set<String> inlineImageIds) throws IOException,
+            XmlPullParserException, ParseException {
+        boolean keywordsPending = true;
+        while (envelope.nextSection()) {
+            switch (envelope.getSectionType()) {
+                case SyncEnvelopeFormat.SECTION_ACKS:
+                    deleteAcknowledgedUsageLogs(envelope.getSectionStream(), inboxAdapter, sentUsageLogIds);
+                    break;
+
+                case SyncEnvelopeFormat.SECTION_KEYWORDS:
+                    this.deferImages = true;
+                    try {
+                        keywordsPending = !ingestKeywords(envelope.getSectionStream(), checkpoint);
+                    }
+                    finally {
+                        this.deferImages = false;
+                    }
+                    if (!keywordsPending && !this.keywordUpdateSucceeded) {
+                        // the ingest failed and has recorded why; the rest of the envelope is no use without it
+                        return false;
+                    }
+                    if (this.keywordUpdateSucceeded) {
+                        this.engine.advance(SyncEngine.IMAGES);
+                    }
+                    break;
+
+                case SyncEnvelopeFormat.SECTION_IMAGE:
+                    String imageId = envelope.getSectionName();
+                    if (!ImageFilesUtility.isPlainFileName(imageId)) {
+                        // the id becomes a file name, so anything that could leave the image folder is refused
+                        Trace.w(Trace.IMAGES, LOG_TAG, "Skipping sync envelope image with invalid id: ", imageId);
+                        break;
+                    }
+                    Trace.d(Trace.IMAGES, LOG_TAG, "Saving image from the sync envelope: ", imageId);
+                    ImageFilesUtility.writeFile(imageId + ".jpg", envelope.getSectionStream());
+                    inlineImageIds.add(imageId);
+                    break;
+
+                default:
+                    // something newer servers send that we don't know about yet
+                    Trace.d(Trace.PARSER, LOG_TAG, "Skipping sync envelope section of type ", envelope.getSectionType());
+                    break;
+            }
+        }
+        return keywordsPending;
+    }
 
-            // Write the keywords to disk, and then open a FileStream
-            String filePath = ApplabActivity.getGlobalContext().getCacheDir()
-                    + "/keywords.tmp";
-            Boolean downloadSuccessful = HttpHelpers.writeStreamToTempFile(keywordStream, filePath);
-            keywordStream.close();
-            File file = new File(filePath);
-            FileInputStream inputStream = new FileInputStream(file);
+    /**
+     * Deletes the usage logs the server says it has stored. Only logs we sent are deleted, whatever the server says.
+     */
+    private static void deleteAcknowledgedUsageLogs(InputStream acksStream, InboxAdapter inboxAdapter,
+            Set<Long> sentUsageLogIds) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(acksStream, "UTF-8"));
+        int acknowledged = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if (line.length() == 0) {
+                continue;
+            }
+            try {
+                Long id = Long.valueOf(line);
+                if (sentUsageLogIds.remove(id)
+                        && inboxAdapter.deleteRecord(InboxAdapter.ACCESS_LOG_DATABASE_TABLE, id.longValue())) {
+                    acknowledged++;
+                }
+            }
+            catch (NumberFormatException e) {
+                Trace.w(Trace.STORAGE, LOG_TAG, "Ignoring malformed usage log acknowledgement: ", line);
+            }
+        }
+        Trace.i(Trace.STORAGE, LOG_TAG, "Server acknowledged " + acknowledged + " usage logs, "
+                + sentUsageLogIds.size() + " stay queued");
+    }
 
-            if (downloadSuccessful && inputStream != null) {
-                sendInternalMessage(GlobalConstants.KEYWORD_DOWNLOAD_SUCCESS);
-                parseKeywords(inputStream);
+    /**
+     * Applies the image changes of a keyword update that came in a sync envelope, fetching whichever new images the
+     * envelope didn't carry
+     */
+    private void updateDeferredImages(Set<String> inlineImageIds) {
+        List<String> remainingImages = new ArrayList<String>();
+        for (String imageId : this.deferredImages) {
+            if (inlineImageIds.contains(imageId)) {
+                JsonSimpleParser.incrementProgressLevel();
             }
             else {
-                sendInternalMessage(GlobalConstants.KEYWORD_DOWNLOAD_FAILURE);
+                remainingImages.add(imageId);
             }
+        }
+        Trace.i(Trace.IMAGES, LOG_TAG, "Sync envelope carried " + inlineImageIds.size() + " images, fetching "
+                + remainingImages.size() + " more");
+        ImageManager.updatePhoneImages(remainingImages, this.deferredDeletedImages, this.engine);
+        this.deferredImages = null;
+        this.deferredDeletedImages = null;
+    }
 
-            if (inputStream != null) {
-                inputStream.close();
-                file.delete();
+    /**
+     * Records why the keyword update failed. The user hears about it only if the retry policy gives up, and not at
+     * all if the episode was stopped, since cancelling and the watchdog report that themselves.
+     */
+    private void reportKeywordFailure(int what) {
+        if (!this.engine.isStopRequested()) {
+            this.keywordFailure = what;
+        }
+    }
+
+    /**
+     * Logs the bytes that came over the wire and, for compressed responses, how much we saved and roughly what
+     * inflating cost (the time spent reading decompressed bytes less the time spent waiting on the network)
+     */
+    private static void logTransferStatistics(String encoding, CountingInputStream wireStream,
+            CountingInputStream decodedStream) {
+        if (!Trace.isEnabled(Trace.SYNC, Trace.INFO)) {
+            return;
+        }
+        if (decodedStream == null) {
+            Trace.i(Trace.SYNC, LOG_TAG, "Keyword payload: " + wireStream.getCount() + " bytes, uncompressed");
+            return;
+        }
+
+        long wireBytes = wireStream.getCount();
+        long decodedBytes = decodedStream.getCount();
+        long savedPercent = decodedBytes > 0 ? 100 - (wireBytes * 100 / decodedBytes) : 0;
+        long inflateMilliseconds = decodedStream.getReadMilliseconds() - wireStream.getReadMilliseconds();
+        Trace.i(Trace.SYNC, LOG_TAG, "Keyword payload: " + wireBytes + " bytes " + encoding + " for " + decodedBytes
+                + " bytes of JSON (" + savedPercent + "% saved), inflating took about " + inflateMilliseconds + "ms");
+    }
+
+    /**
+     * Returns the checkpoint to ingest with: the one left by an interrupted ingest of the same keywords version if
+     * there is one, otherwise a fresh one. Returns null if checkpoints are turned off.
+     */
+    private static IngestCheckpoint startIngestCheckpoint() {
+        if (!checkpointIngest || !JsonSimpleParser.supportsCheckpoints()) {
+            return null;
+        }
+
+        String keywordsVersion = getLocalKeywordsVersion();
+        Storage storage = new Storage(ApplabActivity.getGlobalContext());
+        storage.open();
+        try {
+            IngestCheckpoint savedCheckpoint = storage.getIngestCheckpoint();
+            if (savedCheckpoint != null) {
+                if (savedCheckpoint.isInProgress() && keywordsVersion.equals(savedCheckpoint.getBaseVersion())) {
+                    return savedCheckpoint;
+                }
+                storage.clearIngestCheckpoint();
             }
         }
-        catch (IOException e) {
-            sendInternalMessage(GlobalConstants.CONNECTION_ERROR);
+        finally {
+            storage.close();
+        }
+        return new IngestCheckpoint(keywordsVersion, getMenuIds());
+    }
+
+    private static void discardIngestCheckpoint() {
+        Storage storage = new Storage(ApplabActivity.getGlobalContext());
+        storage.open();
+        try {
+            storage.clearIngestCheckpoint();
+        }
+        finally {
+            storage.close();
         }
     }
 
+    /**
+     * Reads the part of the payload that was ingested before the checkpoint, adding it to checksum. Returns true if
+     * it matches what the checkpoint saw, leaving the stream positioned at the first record still to be ingested.
+     */
+    private static boolean skipCheckpointedBytes(InputStream keywordStream, IngestCheckpoint checkpoint, Checksum checksum)
+            throws IOException {
+        byte[] buffer = new byte[KEYWORD_STREAM_BUFFER_SIZE];
+        long remaining = checkpoint.getByteOffset();
+        while (remaining > 0) {
+            int count = keywordStream.read(buffer, 0, (int)Math.min(buffer.length, remaining));
+            if (count < 0) {
+                return false;
+            }
+            checksum.update(buffer, 0, count);
+            remaining -= count;
+        }
+        return checksum.getValue() == checkpoint.getChecksum();
+    }
+
+    /**
+     * Makes the keywords request advertise that we accept gzip and deflate compressed responses. Compressed responses
+     * are always understood; this only controls whether we ask for them.
+     */
+    public static void setRequestCompressedKeywords(boolean requestCompressedKeywords) {
+        SynchronizationManager.requestCompressedKeywords = requestCompressedKeywords;
+    }
+
+    /**
+     * Makes the keywords request advertise that we accept the binary keyword snapshot format. Binary responses are
+     * always understood; this only controls whether we ask for them.
+     */
+    public static void setRequestBinaryKeywords(boolean requestBinaryKeywords) {
+        SynchronizationManager.requestBinaryKeywords = requestBinaryKeywords;
+    }
+
+    /**
+     * Sets the connect and read timeout of the keywords request
+     */
+    public static void setNetworkTimeout(int networkTimeout) {
+        SynchronizationManager.networkTimeout = networkTimeout;
+    }
+
+    /**
+     * Turns on running the registration and usage log uploads on worker threads while the keywords are updated
+     */
+    public static void setConcurrentSyncPhases(boolean concurrentSyncPhases) {
+        SynchronizationManager.concurrentSyncPhases = concurrentSyncPhases;
+    }
+
+    /**
+     * Sets how many upload phases may run at once when concurrent sync phases are on
+     */
+    public static void setMaxConcurrentSyncPhases(int maxConcurrentSyncPhases) {
+        SynchronizationManager.maxConcurrentSyncPhases = Math.max(1, maxConcurrentSyncPhases);
+    }
+
+    /**
+     * Turns on the combined sync request: usage logs go up with the keywords request, and the acknowledgements,
+     * keyword update and images come back in one sync envelope
+     */
+    public static void setUseSyncEnvelope(boolean useSyncEnvelope) {
+        SynchronizationManager.useSyncEnvelope = useSyncEnvelope;
+    }
+
+    /**
+     * Turns paged keyword updates on or off. Paging needs checkpointed ingest, so it is ignored while that is off.
+     */
+    public static void setPagedKeywords(boolean pagedKeywords) {
+        SynchronizationManager.pagedKeywords = pagedKeywords;
+    }
+
+    /**
+     * Turns checkpointed (resumable) keyword ingest on or off
+     */
+    public static void setCheckpointIngest(boolean checkpointIngest) {
+        SynchronizationManager.checkpointIngest = checkpointIngest;
+    }
+
     private static String getMenuIds() {
         ArrayList<String> menuIds = new ArrayList<String>();
         if (searchDatabase == null) {
@@ -0,0 +1,165 @@
+/**
+ * Copyright (C) 2010 Grameen Foundation
+Licensed under the Apache License, Version 2.0 (the "License"); you may not
+use this file except in compliance with the License. You may obtain a copy of
+the License at http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations under
+the License.
+ */
+
+package applab.search.client;
+
+import android.util.Log;
+
+/**
+ * Logging for code on the sync and navigation hot paths. Each category has its own level, so a disabled call costs
+ * one array lookup and a compare, and messages are only put together once we know they will be written: pass the
+ * variable part as the argument rather than concatenating it yourself.
+ *
+ * Levels start out from the Android log properties of each category's tag, e.g.
+ * 
+ * <pre>
+ * adb shell setprop log.tag.ckw.parser VERBOSE
+ * </pre>
+ * 
+ * followed by refreshLevels(), and can also be set with setLevel(). By default that means info and above. Debug and
+ * verbose messages can be sampled, writing only one in every n, for categories that would otherwise flood the log.
+ */
+public final class Trace {
+    /* Categories */
+    public static final int PARSER = 0;
+    public static final int IMAGES = 1;
+    public static final int STORAGE = 2;
+    public static final int SYNC = 3;
+    private static final String[] CATEGORY_TAGS = { "ckw.parser", "ckw.images", "ckw.storage", "ckw.sync" };
+
+    /* Levels, the same as android.util.Log's */
+    public static final int VERBOSE = Log.VERBOSE;
+    public static final int DEBUG = Log.DEBUG;
+    public static final int INFO = Log.INFO;
+    public static final int WARN = Log.WARN;
+    public static final int ERROR = Log.ERROR;
+    public static final int OFF = Log.ERROR + 1;
+
+    private static final int[] levels = new int[CATEGORY_TAGS.length];
+    private static final int[] sampleIntervals = new int[CATEGORY_TAGS.length];
+
+    /** not synchronized; an occasional lost count just shifts which message is sampled */
+    private static final int[] sampleCounts = new int[CATEGORY_TAGS.length];
+
+    static {
+        for (int category = 0; category < CATEGORY_TAGS.length; category++) {
+            sampleIntervals[category] = 1;
+        }
+        refreshLevels();
+    }
+
+    private Trace() {
+    }
+
+    /**
+     * Reads each category's level from the log.tag.* system properties
+     */
+    public static void refreshLevels() {
+        for (int category = 0; category < CATEGORY_TAGS.length; category++) {
+            int level = OFF;
+            for (int candidate = VERBOSE; candidate <= ERROR; candidate++) {
+                if (Log.isLoggable(CATEGORY_TAGS[category], candidate)) {
+                    level = candidate;
+                    break;
+                }
+            }
+            levels[category] = level;
+        }
+    }
+
+    /**
+     * Sets the lowest level written for a category; OFF silences it
+     */
+    public static void setLevel(int category, int level) {
+        levels[category] = level;
+    }
+
+    /**
+     * Writes only one in every interval debug and verbose messages for a category. 1 writes them all.
+     */
+    public static void setSampleInterval(int category, int interval) {
+        sampleIntervals[category] = Math.max(1, interval);
+    }
+
+    public static boolean isEnabled(int category, int level) {
+        return level >= levels[category];
+    }
+
+    public static void v(int category, String tag, String message) {
+        if (VERBOSE >= levels[category]) {
+            write(VERBOSE, category, tag, message, null, false);
+        }
+    }
+
+    public static void v(int category, String tag, String message, Object argument) {
+        if (VERBOSE >= levels[category]) {
+            write(VERBOSE, category, tag, message, argument, true);
+        }
+    }
+
+    public static void d(int category, String tag, String message) {
+        if (DEBUG >= levels[category]) {
+            write(DEBUG, category, tag, message, null, false);
+        }
+    }
+
+    public static void d(int category, String tag, String message, Object argument) {
+        if (DEBUG >= levels[category]) {
+            write(DEBUG, category, tag, message, argument, true);
+        }
+    }
+
+    public static void i(int category, String tag, String message) {
+        if (INFO >= levels[category]) {
+            write(INFO, category, tag, message, null, false);
+        }
+    }
+
+    public static void i(int category, String tag, String message, Object argument) {
+        if (INFO >= levels[category]) {
+            write(INFO, category, tag, message, argument, true);
+        }
+    }
+
+    public static void w(int category, String tag, String message) {
+        if (WARN >= levels[category]) {
+            write(WARN, category, tag, message, null, false);
+        }
+    }
+
+    public static void w(int category, String tag, String message, Object argument) {
+        if (WARN >= levels[category]) {
+            write(WARN, category, tag, message, argument, true);
+        }
+    }
+
+    public static void e(int category, String tag, String message) {
+        if (ERROR >= levels[category]) {
+            write(ERROR, category, tag, message, null, false);
+        }
+    }
+
+    public static void e(int category, String tag, String message, Object argument) {
+        if (ERROR >= levels[category]) {
+            write(ERROR, category, tag, message, argument, true);
+        }
+    }
+
+    private static void write(int level, int category, String tag, String message, Object argument,
+            boolean hasArgument) {
+        int interval = sampleIntervals[category];
+        if (level <= DEBUG && interval > 1 && ++sampleCounts[category] % interval != 0) {
+            return;
+        }
+        Log.println(level, tag, hasArgument ? message + argument : String.valueOf(message));
+    }
+}
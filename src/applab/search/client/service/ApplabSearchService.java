@@ -1,14 +1,10 @@
 package applab.search.client.service;
 
-import java.util.Timer;
-
-import android.content.Context;
 import android.content.Intent;
 import android.os.IBinder;
 import android.util.Log;
 import applab.client.service.ApplabService;
-import applab.search.client.SynchronizationManager;
-import applab.search.client.TimedSynchronizationTask;
+import applab.search.client.SyncScheduler;
 
 /**
  * Needed to create ApplabSearchService mainly to handle synchronization. TODO: Should consider moving
@@ -31,9 +27,8 @@ public class ApplabSearchService extends ApplabService {
     public void onCreate() {
         super.onCreate();
         
-        synchronized(SynchronizationManager.singleton) {
-            SynchronizationManager.singleton.ensureTimerIsScheduled();
-        }
+        // background synchronization runs off a persistent alarm rather than an in-process timer
+        SyncScheduler.start(this);
 
         Log.v(TAG, "ApplabSearchService Created");
     }
@@ -43,6 +38,10 @@ public class ApplabSearchService extends ApplabService {
         super.onStart(intent, startId);
 
         Log.v(TAG, "ApplabSearchService -- onStart()");
+
+        if (intent != null && intent.getBooleanExtra(SyncScheduler.EXTRA_SYNCHRONIZE, false)) {
+            SyncScheduler.synchronizeIfDue(this);
+        }
     }
 
     @Override
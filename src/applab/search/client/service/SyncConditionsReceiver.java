@@ -0,0 +1,18 @@
+package applab.search.client.service;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import applab.search.client.SyncScheduler;
+
+/**
+ * Gets notified when connectivity changes or the charger is plugged in. If a background synchronization has been
+ * waiting for either, we ask our service to run it shortly.
+ */
+public class SyncConditionsReceiver extends BroadcastReceiver {
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        SyncScheduler.onConditionsChanged(context);
+    }
+}
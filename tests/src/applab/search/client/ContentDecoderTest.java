@@ -0,0 +1,119 @@
+/**
+ * Copyright (C) 2010 Grameen Foundation
+Licensed under the Apache License, Version 2.0 (the "License"); you may not
+use this file except in compliance with the License. You may obtain a copy of
+the License at http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations under
+the License.
+ */
+
+package applab.search.client;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import junit.framework.TestCase;
+
+public class ContentDecoderTest extends TestCase {
+    private byte[] body;
+
+    @Override
+    protected void setUp() throws Exception {
+        StringBuilder json = new StringBuilder("{ \"Version\": \"2010-09-01 10:00:00\", \"MenuItems\": [");
+        for (int i = 0; i < 500; i++) {
+            json.append(i == 0 ? "" : ",").append("{ \"id\": \"").append(i).append("\", \"label\": \"Maize \u00f1\" }");
+        }
+        json.append("] }");
+        this.body = json.toString().getBytes("UTF-8");
+    }
+
+    public void testLeavesPlainBodiesAlone() throws Exception {
+        assertNull(detect("{ \"Version\": 1 }".getBytes("UTF-8")));
+        assertNull(detect(" \r\n{}".getBytes("UTF-8")));
+        assertNull(detect(new byte[] { 0x1f }));
+        assertNull(detect(new byte[0]));
+
+        InputStream input = new ByteArrayInputStream(this.body);
+        assertSame(input, ContentDecoder.decode(input, null));
+    }
+
+    public void testGzip() throws Exception {
+        byte[] compressed = compress(this.body, true);
+        assertEquals(ContentDecoder.GZIP, detect(compressed));
+        assertTrue(Arrays.equals(this.body, decodeOneByteAtATime(compressed, compressed.length)));
+    }
+
+    public void testDeflate() throws Exception {
+        byte[] compressed = compress(this.body, false);
+        assertEquals(ContentDecoder.DEFLATE, detect(compressed));
+        assertTrue(Arrays.equals(this.body, decodeOneByteAtATime(compressed, compressed.length)));
+    }
+
+    /**
+     * A compressed body that is cut short anywhere must fail rather than pass for a shorter body
+     */
+    public void testTruncatedStream() throws Exception {
+        assertTruncationFails(compress(this.body, true));
+        assertTruncationFails(compress(this.body, false));
+    }
+
+    private void assertTruncationFails(byte[] compressed) throws Exception {
+        for (int length = 2; length < compressed.length; length++) {
+            try {
+                decodeOneByteAtATime(compressed, length);
+                fail("body cut at byte " + length + " of " + compressed.length + " was accepted");
+            }
+            catch (IOException e) {
+                // expected
+            }
+        }
+    }
+
+    private static String detect(byte[] bytes) throws IOException {
+        InputStream input = new BufferedInputStream(new ByteArrayInputStream(bytes));
+        String encoding = ContentDecoder.detectEncoding(input);
+
+        // detection mustn't consume anything
+        for (int i = 0; i < bytes.length; i++) {
+            assertEquals(bytes[i] & 0xff, input.read());
+        }
+        return encoding;
+    }
+
+    /**
+     * Detects the encoding and decodes the first length bytes of a body that arrives and is read one byte at a time
+     */
+    private static byte[] decodeOneByteAtATime(byte[] compressed, int length) throws IOException {
+        InputStream input = new BufferedInputStream(new TrickleInputStream(compressed, length));
+        input = ContentDecoder.decode(input, ContentDecoder.detectEncoding(input));
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try {
+            int value;
+            while ((value = input.read()) >= 0) {
+                output.write(value);
+            }
+        }
+        finally {
+            input.close();
+        }
+        return output.toByteArray();
+    }
+
+    private static byte[] compress(byte[] bytes, boolean gzip) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        OutputStream output = gzip ? new GZIPOutputStream(compressed) : new DeflaterOutputStream(compressed);
+        output.write(bytes);
+        output.close();
+        return compressed.toByteArray();
+    }
+}
@@ -0,0 +1,66 @@
+/**
+ * Copyright (C) 2010 Grameen Foundation
+Licensed under the Apache License, Version 2.0 (the "License"); you may not
+use this file except in compliance with the License. You may obtain a copy of
+the License at http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations under
+the License.
+ */
+
+package applab.search.client;
+
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import junit.framework.TestCase;
+
+public class ContinuedCrc32Test extends TestCase {
+    private byte[] bytes;
+
+    @Override
+    protected void setUp() throws Exception {
+        this.bytes = new byte[1000];
+        new Random(20100901L).nextBytes(this.bytes);
+    }
+
+    public void testMatchesCrc32() {
+        CRC32 expected = new CRC32();
+        expected.update(this.bytes, 0, this.bytes.length);
+        ContinuedCrc32 crc = new ContinuedCrc32(0);
+        crc.update(this.bytes, 0, this.bytes.length);
+        assertEquals(expected.getValue(), crc.getValue());
+    }
+
+    /**
+     * Wherever the bytes are split, carrying on from CRC32's value for the first part gives CRC32's value for all of
+     * them
+     */
+    public void testCarriesOnFromEarlierValue() {
+        CRC32 expected = new CRC32();
+        expected.update(this.bytes, 0, this.bytes.length);
+        for (int split = 0; split <= this.bytes.length; split++) {
+            CRC32 prefix = new CRC32();
+            prefix.update(this.bytes, 0, split);
+            ContinuedCrc32 crc = new ContinuedCrc32(prefix.getValue());
+            if (split % 2 == 0) {
+                crc.update(this.bytes, split, this.bytes.length - split);
+            }
+            else {
+                for (int i = split; i < this.bytes.length; i++) {
+                    crc.update(this.bytes[i]);
+                }
+            }
+            assertEquals("split at byte " + split, expected.getValue(), crc.getValue());
+        }
+    }
+
+    public void testResetGoesBackToInitialValue() {
+        ContinuedCrc32 crc = new ContinuedCrc32(0x12345678L);
+        crc.update(this.bytes, 0, 10);
+        crc.reset();
+        assertEquals(0x12345678L, crc.getValue());
+    }
+}
@@ -0,0 +1,126 @@
+/**
+ * Copyright (C) 2010 Grameen Foundation
+Licensed under the Apache License, Version 2.0 (the "License"); you may not
+use this file except in compliance with the License. You may obtain a copy of
+the License at http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations under
+the License.
+ */
+
+package applab.search.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import junit.framework.TestCase;
+
+import org.json.simple.parser.ParseException;
+
+/**
+ * Round trips keyword payloads through KeywordBinaryEncoder and KeywordBinaryDecoder, checking that the decoder hands
+ * out exactly what the JSON tokenizer reads from the same payload
+ */
+public class KeywordBinaryFormatTest extends TestCase {
+    private byte[] json;
+    private RecordingListener expected;
+
+    @Override
+    protected void setUp() throws Exception {
+        // menu ids and parents repeat, so they go through the string table; labels and content carry escapes and
+        // characters outside ASCII
+        StringBuilder payload = new StringBuilder("{ \"Version\": \"2010-09-01 10:00:00\", \"Total\": 61,");
+        payload.append(" \"NextSyncAfter\": 7200, \"Continuation\": \"page \\\"2\\\"\", \"Menus\": [");
+        payload.append("{ \"id\": \"m1\", \"label\": \"Crops\" } ], \"MenuItems\": [");
+        for (int i = 0; i < 60; i++) {
+            payload.append(i == 0 ? "" : ", ").append("{ \"id\": \"").append(i).append("\", \"menu_id\": \"m1\"");
+            payload.append(", \"parent_id\": \"").append(i / 10).append("\", \"position\": ").append(i % 10);
+            payload.append(", \"label\": \"Maize \\u00f1 \\\\ ").append(i).append("\", \"content\": \"Line one\\nLine");
+            payload.append(" two\\t\\u4e2d \\ud83c\\udf3d\\u0000\" }");
+        }
+        payload.append("], \"DeletedMenuItems\": [ { \"id\": \"9\" } ], \"Images\": [ { \"id\": \"img1\" } ],");
+        payload.append(" \"DeletedImages\": [ { \"id\": \"img0\" } ] }");
+        this.json = payload.toString().getBytes("UTF-8");
+
+        this.expected = new RecordingListener();
+        new KeywordJsonTokenizer(new ByteArrayInputStream(this.json)).parse(this.expected, new KeywordRecord());
+    }
+
+    public void testRoundTrip() throws Exception {
+        byte[] snapshot = encode(this.json);
+        assertSameAsJson(decode(new ByteArrayInputStream(snapshot)));
+        assertTrue("snapshot of " + snapshot.length + " bytes isn't smaller than the JSON",
+                snapshot.length < this.json.length);
+    }
+
+    public void testOneByteReads() throws Exception {
+        assertSameAsJson(decode(new TrickleInputStream(encode(this.json))));
+    }
+
+    public void testEmptyStrings() throws Exception {
+        byte[] snapshot = encode("{ \"Version\": \"\", \"Menus\": [ { \"id\": \"\", \"label\": null } ] }"
+                .getBytes("UTF-8"));
+        RecordingListener listener = decode(new TrickleInputStream(snapshot));
+        assertEquals("", listener.version);
+        assertEquals(1, listener.records.size());
+        assertEquals("1 0= 1=", listener.records.get(0));
+    }
+
+    /**
+     * However the snapshot is cut short, the decoder reports it as a parse error, never as a complete payload, and
+     * only hands out records it has read in full
+     */
+    public void testTruncatedStream() throws Exception {
+        byte[] snapshot = encode(this.json);
+        for (int length = 0; length < snapshot.length; length++) {
+            RecordingListener listener = new RecordingListener();
+            try {
+                new KeywordBinaryDecoder(new TrickleInputStream(snapshot, length)).parse(listener, new KeywordRecord());
+                fail("snapshot cut at byte " + length + " was accepted");
+            }
+            catch (ParseException e) {
+                // expected
+            }
+            for (int i = 0; i < listener.records.size(); i++) {
+                assertEquals("snapshot cut at byte " + length, this.expected.records.get(i), listener.records.get(i));
+            }
+        }
+    }
+
+    public void testRejectsJson() throws Exception {
+        try {
+            decode(new ByteArrayInputStream(this.json));
+            fail("decoded JSON as a snapshot");
+        }
+        catch (ParseException e) {
+            // expected
+        }
+    }
+
+    private void assertSameAsJson(RecordingListener listener) {
+        assertEquals(this.expected.version, listener.version);
+        assertEquals(this.expected.total, listener.total);
+        assertEquals(this.expected.nextSyncAfter, listener.nextSyncAfter);
+        assertEquals(this.expected.continuation, listener.continuation);
+        assertEquals(this.expected.records.size(), listener.records.size());
+        for (int i = 0; i < listener.records.size(); i++) {
+            assertEquals(this.expected.records.get(i), listener.records.get(i));
+        }
+    }
+
+    private static byte[] encode(byte[] json) throws IOException, ParseException {
+        ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+        KeywordBinaryEncoder.transcode(new ByteArrayInputStream(json), snapshot);
+        return snapshot.toByteArray();
+    }
+
+    private static RecordingListener decode(InputStream input) throws IOException, ParseException {
+        RecordingListener listener = new RecordingListener();
+        new KeywordBinaryDecoder(input).parse(listener, new KeywordRecord());
+        return listener;
+    }
+}
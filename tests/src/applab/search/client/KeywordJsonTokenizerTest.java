@@ -0,0 +1,135 @@
+/**
+ * Copyright (C) 2010 Grameen Foundation
+Licensed under the Apache License, Version 2.0 (the "License"); you may not
+use this file except in compliance with the License. You may obtain a copy of
+the License at http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations under
+the License.
+ */
+
+package applab.search.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import junit.framework.TestCase;
+
+import org.json.simple.parser.ParseException;
+
+public class KeywordJsonTokenizerTest extends TestCase {
+    /** a label with two-, three- and four-byte UTF-8 characters in it */
+    private static final String LABEL = "Ma\u00efze \u4e2d \ud83c\udf3d";
+
+    private static final String PAYLOAD = "{ \"Version\": \"2010-09-01 10:00:00\", \"Total\": 4,"
+            + " \"NextSyncAfter\": 3600, \"Continuation\": \"page-2\",\r\n"
+            + " \"Unknown\": { \"nested\": [1, 2, {\"a\": \"b\"}] },\r\n"
+            + " \"Menus\": [ { \"id\": \"m1\", \"label\": \"Crops\" } ],\n"
+            + " \"MenuItems\": [ { \"id\": \"7\", \"label\": \"" + LABEL + "\", \"menu_id\": \"m1\","
+            + " \"parent_id\": null, \"position\": 3, \"content\": \"Plant at the onset of the rains\","
+            + " \"extra\": [1] } ],\n"
+            + " \"DeletedMenuItems\": [ { \"id\": \"9\" } ],\t\"Images\": [ { \"id\": \"img1\" } ] }";
+
+    private static final String[] RECORDS = { "1 0=m1 1=Crops",
+            "2 0=7 1=" + LABEL + " 2=m1 3= 4=3 5=Plant at the onset of the rains", "3 0=9", "4 0=img1" };
+
+    public void testReadsPayload() throws Exception {
+        assertPayload(parse(new ByteArrayInputStream(getPayloadBytes()), KeywordJsonTokenizer.DEFAULT_BUFFER_SIZE));
+    }
+
+    public void testOneByteReads() throws Exception {
+        assertPayload(parse(new TrickleInputStream(getPayloadBytes()), KeywordJsonTokenizer.DEFAULT_BUFFER_SIZE));
+    }
+
+    public void testOneByteBuffer() throws Exception {
+        assertPayload(parse(new TrickleInputStream(getPayloadBytes()), 1));
+    }
+
+    public void testEscapes() throws Exception {
+        String json = "{ \"Menus\": [ { \"id\": \"a\\\"b\",\n"
+                + " \"label\": \"\\\" \\\\ \\/ \\b\\f\\n\\r\\t \\u00e9\\u4E2D\" } ] }";
+        RecordingListener listener = parse(new TrickleInputStream(json.getBytes("UTF-8")), 1);
+        assertEquals(1, listener.records.size());
+        assertEquals("1 0=a\"b 1=\" \\ / \b\f\n\r\t \u00e9\u4e2d", listener.records.get(0));
+    }
+
+    /**
+     * Numbers come out the way json-simple prints the Long or Double it parses them into, as KeywordParseHandler did
+     */
+    public void testNumbersRenderLikeJsonSimple() throws Exception {
+        String json = "{ \"MenuItems\": [ { \"id\": 12, \"label\": -5, \"menu_id\": 1.0, \"parent_id\": 1e3,"
+                + " \"position\": -0, \"content\": 007 }, { \"id\": 2.50, \"label\": 1E-2, \"menu_id\": true,"
+                + " \"parent_id\": null, \"position\": 0, \"content\": -1.5e2 } ] }";
+        RecordingListener listener = parse(new TrickleInputStream(json.getBytes("UTF-8")), 1);
+        assertEquals(2, listener.records.size());
+        assertEquals("2 0=12 1=-5 2=1.0 3=1000.0 4=0 5=7", listener.records.get(0));
+        assertEquals("2 0=2.5 1=0.01 2=true 3= 4=0 5=-150.0", listener.records.get(1));
+    }
+
+    public void testBadEscapeFails() throws Exception {
+        assertParseFails("{ \"Menus\": [ { \"id\": \"a\\qb\" } ] }".getBytes("UTF-8"));
+        assertParseFails("{ \"Menus\": [ { \"id\": \"\\u00g1\" } ] }".getBytes("UTF-8"));
+    }
+
+    public void testMalformedUtf8BecomesReplacementCharacter() throws Exception {
+        byte[] bytes = { '{', '"', 'M', 'e', 'n', 'u', 's', '"', ':', '[', '{', '"', 'i', 'd', '"', ':', '"', 'a',
+                (byte)0xC3, '"', '}', ']', '}' };
+        RecordingListener listener = parse(new ByteArrayInputStream(bytes), KeywordJsonTokenizer.DEFAULT_BUFFER_SIZE);
+        assertEquals("1 0=a\ufffd", listener.records.get(0));
+    }
+
+    /**
+     * However the stream is cut short, the tokenizer reports it as a parse error, never as a complete payload, and
+     * only hands out records it has read in full
+     */
+    public void testTruncatedStream() throws Exception {
+        byte[] bytes = getPayloadBytes();
+        for (int length = 0; length < bytes.length; length++) {
+            RecordingListener listener = new RecordingListener();
+            try {
+                new KeywordJsonTokenizer(new TrickleInputStream(bytes, length), 1).parse(listener, new KeywordRecord());
+                fail("payload cut at byte " + length + " was accepted");
+            }
+            catch (ParseException e) {
+                // expected
+            }
+            for (int i = 0; i < listener.records.size(); i++) {
+                assertEquals("payload cut at byte " + length, RECORDS[i], listener.records.get(i));
+            }
+        }
+    }
+
+    private static byte[] getPayloadBytes() throws IOException {
+        return PAYLOAD.getBytes("UTF-8");
+    }
+
+    private static RecordingListener parse(InputStream input, int bufferSize) throws IOException, ParseException {
+        RecordingListener listener = new RecordingListener();
+        new KeywordJsonTokenizer(input, bufferSize).parse(listener, new KeywordRecord());
+        return listener;
+    }
+
+    private static void assertPayload(RecordingListener listener) {
+        assertEquals("2010-09-01 10:00:00", listener.version);
+        assertEquals(4, listener.total);
+        assertEquals(3600, listener.nextSyncAfter);
+        assertEquals("page-2", listener.continuation);
+        assertEquals(RECORDS.length, listener.records.size());
+        for (int i = 0; i < RECORDS.length; i++) {
+            assertEquals(RECORDS[i], listener.records.get(i));
+        }
+    }
+
+    private static void assertParseFails(byte[] bytes) throws IOException {
+        try {
+            parse(new ByteArrayInputStream(bytes), KeywordJsonTokenizer.DEFAULT_BUFFER_SIZE);
+            fail("accepted " + new String(bytes, "UTF-8"));
+        }
+        catch (ParseException e) {
+            // expected
+        }
+    }
+}
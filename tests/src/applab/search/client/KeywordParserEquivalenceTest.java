@@ -0,0 +1,150 @@
+/**
+ * Copyright (C) 2010 Grameen Foundation
+Licensed under the Apache License, Version 2.0 (the "License"); you may not
+use this file except in compliance with the License. You may obtain a copy of
+the License at http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations under
+the License.
+ */
+
+package applab.search.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Handler;
+import android.os.Looper;
+import android.test.RenamingDelegatingContext;
+import applab.client.ApplabActivity;
+import applab.client.PropertyStorage;
+
+/**
+ * Ingests the same payloads with the json-simple parser and with the keyword tokenizer, and checks that both leave
+ * the same menu and menu_item rows behind.
+ *
+ * Runs against a database and files directory of its own, so the live keywords are left alone. The keywords version
+ * each ingest stores is put back afterwards, if there was one.
+ */
+public class KeywordParserEquivalenceTest extends TestCase {
+    private static final String PAYLOAD = "{ \"Version\": \"2010-09-02 08:00:00\", \"Total\": 9,"
+            + " \"Menus\": [ { \"id\": \"m1\", \"label\": \"Crops\" }, { \"id\": \"m2\", \"label\": null },"
+            + " { \"id\": 3, \"label\": 1.0 } ],"
+            + " \"MenuItems\": [ { \"id\": \"1\", \"menu_id\": \"m1\", \"label\": \"Maize \\u00f1\","
+            + " \"parent_id\": null, \"position\": 1, \"content\": \"Plant at the onset\\nof the rains\" },"
+            + " { \"id\": 2, \"menu_id\": \"m1\", \"label\": 1e3, \"parent_id\": \"1\", \"position\": -0,"
+            + " \"content\": null },"
+            + " { \"id\": \"3\", \"menu_id\": \"m1\", \"label\": -0, \"parent_id\": \"1\", \"position\": 1.0,"
+            + " \"content\": true, \"attachment_id\": \"img1\" },"
+            + " { \"id\": \"4\", \"menu_id\": \"m2\", \"label\": 2.50, \"parent_id\": null, \"position\": 1E-2,"
+            + " \"content\": false },"
+            + " { \"id\": \"5\", \"menu_id\": \"m2\", \"label\": -1.5e2, \"parent_id\": 4, \"position\": 007,"
+            + " \"content\": 12345678901 },"
+            + " { \"id\": \"6\", \"menu_id\": 3, \"label\": \"\", \"position\": -7,"
+            + " \"extra\": [ 1, { \"a\": null } ] } ],"
+            + " \"DeletedMenuItems\": [ { \"id\": \"99\" } ] }";
+
+    private Context context;
+    private Handler handler;
+    private String keywordsVersion;
+
+    @Override
+    protected void setUp() throws Exception {
+        this.handler = new Handler(Looper.getMainLooper());
+        this.context = new TestContext(ApplabActivity.getGlobalContext());
+        this.keywordsVersion = PropertyStorage.getLocal().getValue(GlobalConstants.KEYWORDS_VERSION_KEY, null);
+
+        // apply each update on this thread, straight to the live tables
+        JsonSimpleParser.setUsePipelinedIngest(false);
+        JsonSimpleParser.setUseStagingTables(false);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        JsonSimpleParser.setUseGenericJsonParser(false);
+        JsonSimpleParser.setUsePipelinedIngest(Runtime.getRuntime().availableProcessors() > 1);
+        JsonSimpleParser.setUseStagingTables(true);
+        if (this.keywordsVersion != null) {
+            PropertyStorage.getLocal().setValue(GlobalConstants.KEYWORDS_VERSION_KEY, this.keywordsVersion);
+        }
+        this.context.deleteDatabase(Storage.DATABASE_NAME);
+    }
+
+    public void testSameRows() throws Exception {
+        ArrayList<String> generic = ingest(true);
+        ArrayList<String> tokenizer = ingest(false);
+        assertEquals(9, generic.size());
+        assertEquals(generic.size(), tokenizer.size());
+        for (int i = 0; i < generic.size(); i++) {
+            assertEquals(generic.get(i), tokenizer.get(i));
+        }
+    }
+
+    /**
+     * Ingests PAYLOAD into an empty database and returns its menu and menu_item rows
+     */
+    private ArrayList<String> ingest(boolean useGenericJsonParser) throws Exception {
+        this.context.deleteDatabase(Storage.DATABASE_NAME);
+        JsonSimpleParser.setUseGenericJsonParser(useGenericJsonParser);
+        JsonSimpleParser parser = new JsonSimpleParser(this.handler, this.handler,
+                new ByteArrayInputStream(PAYLOAD.getBytes("UTF-8")));
+        parser.setContext(this.context);
+        parser.setReportDownloadFailure(false);
+        parser.setDeferImages(true);
+        parser.run();
+        assertTrue(parser.isSuccessful());
+
+        ArrayList<String> rows = new ArrayList<String>();
+        SQLiteDatabase database = this.context.openOrCreateDatabase(Storage.DATABASE_NAME, Context.MODE_PRIVATE, null);
+        try {
+            readRows(database, GlobalConstants.MENU_TABLE_NAME, rows);
+            readRows(database, GlobalConstants.MENU_ITEM_TABLE_NAME, rows);
+        }
+        finally {
+            database.close();
+        }
+        return rows;
+    }
+
+    /**
+     * Describes each row of the table as its values in column order, e.g. "menu_item 1|m1|Maize"
+     */
+    private static void readRows(SQLiteDatabase database, String table, ArrayList<String> rows) {
+        Cursor cursor = database.query(table, null, null, null, null, null, Storage.MENU_ITEM_ROWID_COLUMN + " ASC");
+        try {
+            while (cursor.moveToNext()) {
+                StringBuilder row = new StringBuilder(table);
+                for (int column = 0; column < cursor.getColumnCount(); column++) {
+                    row.append(column == 0 ? " " : "|").append(cursor.getString(column));
+                }
+                rows.add(row.toString());
+            }
+        }
+        finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Prefixes the database name and keeps content files in a directory of their own
+     */
+    private static class TestContext extends RenamingDelegatingContext {
+        TestContext(Context context) {
+            super(context, "test.");
+        }
+
+        @Override
+        public File getFilesDir() {
+            File directory = new File(super.getFilesDir(), "test");
+            directory.mkdirs();
+            return directory;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/**
+ * Copyright (C) 2010 Grameen Foundation
+Licensed under the Apache License, Version 2.0 (the "License"); you may not
+use this file except in compliance with the License. You may obtain a copy of
+the License at http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations under
+the License.
+ */
+
+package applab.search.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+
+import junit.framework.TestCase;
+import android.os.Handler;
+import android.os.Looper;
+import applab.client.ApplabActivity;
+
+/**
+ * Interrupts the first page of a paged keyword update part way through and resumes it, checking that the resumed
+ * ingest still knows there are more pages to fetch even though it never reads the top of the page again.
+ *
+ * Runs against the app's own database. The update is staged, and the staging tables and checkpoint are dropped
+ * afterwards, so the live keywords are left alone.
+ */
+public class PagedIngestResumeTest extends TestCase {
+    private static final String PAGE = "{ \"Version\": \"2010-09-02 08:00:00\", \"Total\": 3,"
+            + " \"Continuation\": \"page-2\","
+            + " \"Menus\": [ { \"id\": \"test-menu\", \"label\": \"Test\" } ],"
+            + " \"MenuItems\": [ { \"id\": \"test-item-1\", \"menu_id\": \"test-menu\", \"label\": \"One\","
+            + " \"position\": 1 },"
+            + " { \"id\": \"test-item-2\", \"menu_id\": \"test-menu\", \"label\": \"Two\", \"position\": 2 } ] }";
+
+    private Storage storage;
+    private Handler handler;
+
+    @Override
+    protected void setUp() throws Exception {
+        this.handler = new Handler(Looper.getMainLooper());
+        this.storage = new Storage(ApplabActivity.getGlobalContext());
+        this.storage.open();
+        this.storage.clearIngestCheckpoint();
+        this.storage.discardStagedTables();
+
+        // commit after every record, on this thread, in the staging tables
+        JsonSimpleParser.setIngestBatchSize(1);
+        JsonSimpleParser.setUsePipelinedIngest(false);
+        JsonSimpleParser.setStagingThreshold(0);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        JsonSimpleParser.setIngestBatchSize(KeywordBatchWriter.DEFAULT_BATCH_SIZE);
+        JsonSimpleParser.setUsePipelinedIngest(Runtime.getRuntime().availableProcessors() > 1);
+        JsonSimpleParser.setStagingThreshold(KeywordBatchWriter.DEFAULT_BATCH_SIZE);
+        this.storage.clearIngestCheckpoint();
+        this.storage.discardStagedTables();
+        this.storage.close();
+    }
+
+    public void testResumedPageStillHasMorePages() throws Exception {
+        byte[] page = PAGE.getBytes("UTF-8");
+
+        // the connection drops just after the first menu item
+        int cut = PAGE.indexOf('}', PAGE.indexOf("test-item-1")) + 1;
+        IngestCheckpoint checkpoint = new IngestCheckpoint("2010-09-01 10:00:00", "");
+        checkpoint.setPageSize(KeywordPageSizer.INITIAL_PAGE_SIZE);
+        JsonSimpleParser parser = createParser(new BrokenInputStream(page, cut));
+        parser.setCheckpoint(checkpoint, new CRC32());
+        parser.run();
+        assertTrue(parser.isDownloadFailed());
+
+        IngestCheckpoint stored = this.storage.getIngestCheckpoint();
+        assertNotNull(stored);
+        assertTrue(stored.canResume());
+        assertTrue("resumed after byte " + stored.getByteOffset(), stored.getByteOffset() > PAGE.indexOf("MenuItems"));
+        assertEquals("page-2", stored.getNextContinuationToken());
+
+        // resume the way SynchronizationManager does: skip what was committed, checking it is the same payload
+        InputStream input = new ByteArrayInputStream(page);
+        CRC32 checksum = new CRC32();
+        for (long i = 0; i < stored.getByteOffset(); i++) {
+            checksum.update(input.read());
+        }
+        assertEquals(stored.getChecksum(), checksum.getValue());
+
+        parser = createParser(input);
+        parser.setCheckpoint(stored, checksum);
+        parser.run();
+        assertFalse(parser.isDownloadFailed());
+        assertTrue("resumed page was taken for the last one", parser.hasMorePages());
+        assertFalse(parser.isSuccessful());
+
+        // the checkpoint now asks for the next page, from its start
+        IngestCheckpoint next = this.storage.getIngestCheckpoint();
+        assertNotNull(next);
+        assertEquals("page-2", next.getContinuationToken());
+        assertFalse(next.canResume());
+        assertNull(next.getNextContinuationToken());
+        assertEquals(3, next.getRecordCount());
+    }
+
+    private JsonSimpleParser createParser(InputStream input) {
+        JsonSimpleParser parser = new JsonSimpleParser(this.handler, this.handler, input);
+        parser.setReportDownloadFailure(false);
+        parser.setDeferImages(true);
+        return parser;
+    }
+
+    /**
+     * Serves the first length bytes and then fails, like a connection that drops
+     */
+    private static class BrokenInputStream extends InputStream {
+        private final InputStream input;
+
+        BrokenInputStream(byte[] bytes, int length) {
+            this.input = new ByteArrayInputStream(bytes, 0, length);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int value = this.input.read();
+            if (value < 0) {
+                throw new IOException("Connection reset");
+            }
+            return value;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int count = this.input.read(buffer, offset, length);
+            if (count < 0) {
+                throw new IOException("Connection reset");
+            }
+            return count;
+        }
+    }
+}
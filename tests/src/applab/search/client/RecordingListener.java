@@ -0,0 +1,61 @@
+/**
+ * Copyright (C) 2010 Grameen Foundation
+Licensed under the Apache License, Version 2.0 (the "License"); you may not
+use this file except in compliance with the License. You may obtain a copy of
+the License at http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations under
+the License.
+ */
+
+package applab.search.client;
+
+import java.util.ArrayList;
+
+/**
+ * Collects everything a KeywordRecordSource reports, with each record written out as text so tests can compare them
+ */
+public class RecordingListener implements KeywordRecordSource.Listener {
+    public String version;
+    public int total = -1;
+    public int nextSyncAfter = -1;
+    public String continuation;
+    public final ArrayList<String> records = new ArrayList<String>();
+
+    public void onVersion(String version) {
+        this.version = version;
+    }
+
+    public void onTotal(int total) {
+        this.total = total;
+    }
+
+    public void onNextSyncAfter(int seconds) {
+        this.nextSyncAfter = seconds;
+    }
+
+    public void onContinuation(String token) {
+        this.continuation = token;
+    }
+
+    public KeywordRecord onRecord(KeywordRecord record) {
+        this.records.add(describe(record));
+        return record;
+    }
+
+    /**
+     * The record's type followed by each slot it has, by slot number, e.g. "2 0=7 1=Maize"
+     */
+    public static String describe(KeywordRecord record) {
+        StringBuilder description = new StringBuilder();
+        description.append(record.getType());
+        for (int slot = 0; slot < KeywordRecord.SLOT_COUNT; slot++) {
+            if (record.has(slot)) {
+                description.append(' ').append(slot).append('=').append(record.get(slot));
+            }
+        }
+        return description.toString();
+    }
+}
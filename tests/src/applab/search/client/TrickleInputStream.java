@@ -0,0 +1,49 @@
+/**
+ * Copyright (C) 2010 Grameen Foundation
+Licensed under the Apache License, Version 2.0 (the "License"); you may not
+use this file except in compliance with the License. You may obtain a copy of
+the License at http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations under
+the License.
+ */
+
+package applab.search.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Hands out at most one byte per read, the way a slow connection can, so readers have to cope with every value
+ * straddling a refill
+ */
+public class TrickleInputStream extends InputStream {
+    private final InputStream input;
+
+    public TrickleInputStream(byte[] bytes) {
+        this(bytes, bytes.length);
+    }
+
+    /**
+     * Ends the stream after the first length bytes, as if the connection had dropped there
+     */
+    public TrickleInputStream(byte[] bytes, int length) {
+        this.input = new ByteArrayInputStream(bytes, 0, length);
+    }
+
+    @Override
+    public int read() throws IOException {
+        return this.input.read();
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        return this.input.read(buffer, offset, 1);
+    }
+}
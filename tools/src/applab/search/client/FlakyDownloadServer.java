@@ -0,0 +1,182 @@
+/**
+ * Copyright (C) 2010 Grameen Foundation
+Licensed under the Apache License, Version 2.0 (the "License"); you may not
+use this file except in compliance with the License. You may obtain a copy of
+the License at http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations under
+the License.
+ */
+
+package applab.search.client;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Random;
+
+/**
+ * A stand-in download server for trying ResumableDownload and KeywordRequest out on a bad connection. It answers every
+ * request, GET or POST, with the same pseudo-random resource and an ETag, honours Range and If-Range requests unless
+ * told not to, and cuts the connection at a random offset in cutPercent percent of the responses.
+ *
+ * Run from the desktop with:
+ *
+ * <pre>
+ * java applab.search.client.FlakyDownloadServer [port [length [cutPercent [ranges]]]]
+ * </pre>
+ *
+ * where ranges is true or false, and point the phone's server URL at it.
+ */
+public class FlakyDownloadServer {
+    private static final int DEFAULT_PORT = 8889;
+    private static final int DEFAULT_LENGTH = 256 * 1024;
+    private static final int DEFAULT_CUT_PERCENT = 50;
+    private static final long SEED = 20100901L;
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private final byte[] content;
+    private final String eTag;
+    private final int cutPercent;
+    private final boolean supportsRanges;
+    private final Random random = new Random();
+
+    public FlakyDownloadServer(int length, int cutPercent, boolean supportsRanges) {
+        this.content = new byte[length];
+        new Random(SEED).nextBytes(this.content);
+        this.eTag = "\"" + SEED + "-" + length + "\"";
+        this.cutPercent = cutPercent;
+        this.supportsRanges = supportsRanges;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length >= 1 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        int length = args.length >= 2 ? Integer.parseInt(args[1]) : DEFAULT_LENGTH;
+        int cutPercent = args.length >= 3 ? Integer.parseInt(args[2]) : DEFAULT_CUT_PERCENT;
+        boolean supportsRanges = args.length >= 4 ? Boolean.valueOf(args[3]).booleanValue() : true;
+
+        FlakyDownloadServer server = new FlakyDownloadServer(length, cutPercent, supportsRanges);
+        ServerSocket serverSocket = new ServerSocket(port);
+        System.out.println("Serving " + length + " bytes on port " + port + ", cutting " + cutPercent
+                + "% of responses" + (supportsRanges ? "" : ", ignoring ranges"));
+        while (true) {
+            Socket socket = serverSocket.accept();
+            try {
+                server.handle(socket.getInputStream(), socket.getOutputStream());
+            }
+            catch (IOException e) {
+                System.out.println("Request failed: " + e);
+            }
+            finally {
+                socket.close();
+            }
+        }
+    }
+
+    /**
+     * The resource every request gets, for checking downloads against
+     */
+    public byte[] getContent() {
+        return this.content;
+    }
+
+    /**
+     * Reads one HTTP request and writes the response, which may stop short
+     */
+    public void handle(InputStream input, OutputStream output) throws IOException {
+        String range = null;
+        String ifRange = null;
+        int contentLength = 0;
+        String line;
+        while ((line = readLine(input)) != null && line.length() > 0) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                String name = line.substring(0, colon).trim();
+                if (name.equalsIgnoreCase("Range")) {
+                    range = line.substring(colon + 1).trim();
+                }
+                else if (name.equalsIgnoreCase("If-Range")) {
+                    ifRange = line.substring(colon + 1).trim();
+                }
+                else if (name.equalsIgnoreCase("Content-Length")) {
+                    contentLength = Integer.parseInt(line.substring(colon + 1).trim());
+                }
+            }
+        }
+
+        // read a request body through, so closing the connection doesn't reset it before the client has the response
+        while (contentLength > 0 && input.read() >= 0) {
+            contentLength--;
+        }
+
+        int start = 0;
+        if (this.supportsRanges && range != null && (ifRange == null || ifRange.equals(this.eTag))) {
+            start = getRangeStart(range);
+        }
+        output = new BufferedOutputStream(output, BUFFER_SIZE);
+        if (start >= this.content.length) {
+            output.write(("HTTP/1.0 416 Requested Range Not Satisfiable\r\nContent-Range: bytes */"
+                    + this.content.length + "\r\nConnection: close\r\n\r\n").getBytes("US-ASCII"));
+            output.flush();
+            System.out.println("Range " + range + " not satisfiable");
+            return;
+        }
+
+        StringBuilder headers = new StringBuilder();
+        if (start > 0) {
+            headers.append("HTTP/1.0 206 Partial Content\r\n");
+            headers.append("Content-Range: bytes " + start + "-" + (this.content.length - 1) + "/"
+                    + this.content.length + "\r\n");
+        }
+        else {
+            headers.append("HTTP/1.0 200 OK\r\n");
+        }
+        headers.append("Content-Type: image/jpeg\r\nContent-Length: " + (this.content.length - start) + "\r\n");
+        headers.append("ETag: " + this.eTag + "\r\nConnection: close\r\n\r\n");
+        output.write(headers.toString().getBytes("US-ASCII"));
+
+        int end = this.content.length;
+        if (this.random.nextInt(100) < this.cutPercent) {
+            end = start + this.random.nextInt(this.content.length - start);
+        }
+        output.write(this.content, start, end - start);
+        output.flush();
+        System.out.println("Sent bytes " + start + " to " + end + " of " + this.content.length
+                + (end < this.content.length ? ", then cut the connection" : ""));
+    }
+
+    /**
+     * The first byte position of a "bytes=first-" range, or 0 for anything else
+     */
+    private static int getRangeStart(String range) {
+        if (!range.startsWith("bytes=") || !range.endsWith("-")) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(range.substring("bytes=".length(), range.length() - 1).trim());
+        }
+        catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static String readLine(InputStream input) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int value;
+        while ((value = input.read()) >= 0 && value != '\n') {
+            if (value != '\r') {
+                line.write(value);
+            }
+        }
+        if (value < 0 && line.size() == 0) {
+            return null;
+        }
+        return line.toString("US-ASCII");
+    }
+}
@@ -0,0 +1,383 @@
+/**
+ * Copyright (C) 2010 Grameen Foundation
+Licensed under the Apache License, Version 2.0 (the "License"); you may not
+use this file except in compliance with the License. You may obtain a copy of
+the License at http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations under
+the License.
+ */
+
+package applab.search.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.lang.reflect.Method;
+
+import org.json.simple.parser.ContentHandler;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * Measures the keyword sync hot path on a synthetic payload from KeywordPayloadGenerator: tokenizing, record assembly,
+ * the generic json-simple parser, binary snapshot decoding and ingest into an in-memory SQLite database.
+ *
+ * Each benchmark is warmed up and then timed over a number of iterations, and reported as payloads per second, records
+ * per second, input MB per second and bytes allocated per payload. Allocation is read from the JVM's per-thread
+ * counters where available (not on Android), and ingest needs a real SQLite, so it only runs on a device.
+ *
+ * Run from the desktop with:
+ * 
+ * <pre>
+ * java applab.search.client.KeywordIngestBenchmark [menus depth fanOut contentLength [iterations]]
+ * </pre>
+ * 
+ * or add tools/src to a debug build and call run() on the phone.
+ */
+public class KeywordIngestBenchmark {
+    private static final int DEFAULT_MENUS = 20;
+    private static final int DEFAULT_DEPTH = 3;
+    private static final int DEFAULT_FAN_OUT = 8;
+    private static final int DEFAULT_CONTENT_LENGTH = 400;
+    private static final int DEFAULT_ITERATIONS = 20;
+    private static final long SEED = 20100901L;
+
+    /**
+     * One thing to measure. Returns the number of records it processed.
+     */
+    private interface Benchmark {
+        String getName();
+
+        int run(byte[] payload) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int menus = DEFAULT_MENUS;
+        int depth = DEFAULT_DEPTH;
+        int fanOut = DEFAULT_FAN_OUT;
+        int contentLength = DEFAULT_CONTENT_LENGTH;
+        int iterations = DEFAULT_ITERATIONS;
+        if (args.length >= 4) {
+            menus = Integer.parseInt(args[0]);
+            depth = Integer.parseInt(args[1]);
+            fanOut = Integer.parseInt(args[2]);
+            contentLength = Integer.parseInt(args[3]);
+        }
+        if (args.length >= 5) {
+            iterations = Integer.parseInt(args[4]);
+        }
+
+        run(new KeywordPayloadGenerator(menus, depth, fanOut, contentLength, SEED), iterations, System.out);
+    }
+
+    /**
+     * Runs every benchmark against the generated payload, printing results to out
+     */
+    public static void run(KeywordPayloadGenerator generator, int iterations, PrintStream out) throws Exception {
+        byte[] json = generator.generate();
+        ByteArrayOutputStream binaryOutput = new ByteArrayOutputStream();
+        KeywordBinaryEncoder.transcode(new ByteArrayInputStream(json), binaryOutput);
+        byte[] binary = binaryOutput.toByteArray();
+
+        out.println("Payload: " + generator.getRecordCount() + " records, " + json.length + " bytes JSON, "
+                + binary.length + " bytes binary");
+        out.println(pad("benchmark", 16) + pad("ops/s", 10) + pad("records/s", 12) + pad("MB/s", 8)
+                + pad("alloc/op", 12) + "alloc MB/s");
+
+        report(new TokenizeBenchmark(false), json, iterations, out);
+        report(new TokenizeBenchmark(true), json, iterations, out);
+        report(new JsonSimpleBenchmark(), json, iterations, out);
+        report(new BinaryDecodeBenchmark(), binary, iterations, out);
+
+        IngestBenchmark ingest = new IngestBenchmark();
+        if (ingest.isAvailable()) {
+            report(ingest, json, Math.max(1, iterations / 4), out);
+        }
+        else {
+            out.println(pad(ingest.getName(), 16) + "skipped, needs Android's SQLite");
+        }
+    }
+
+    private static void report(Benchmark benchmark, byte[] payload, int iterations, PrintStream out) throws Exception {
+        // warm up, so the JIT has compiled the hot path before we time it
+        for (int i = 0; i < Math.max(2, iterations / 2); i++) {
+            benchmark.run(payload);
+        }
+
+        long allocatedBefore = getAllocatedBytes();
+        long startTime = System.nanoTime();
+        long records = 0;
+        for (int i = 0; i < iterations; i++) {
+            records += benchmark.run(payload);
+        }
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        long allocatedAfter = getAllocatedBytes();
+
+        String allocationPerOp = "n/a";
+        String allocationRate = "n/a";
+        if (allocatedBefore >= 0 && allocatedAfter >= 0) {
+            long allocated = allocatedAfter - allocatedBefore;
+            allocationPerOp = formatBytes(allocated / iterations);
+            allocationRate = format(allocated / seconds / (1024 * 1024));
+        }
+
+        out.println(pad(benchmark.getName(), 16) + pad(format(iterations / seconds), 10)
+                + pad(format(records / seconds), 12) + pad(format((double)payload.length * iterations / seconds
+                        / (1024 * 1024)), 8) + pad(allocationPerOp, 12) + allocationRate);
+    }
+
+    /**
+     * Bytes allocated by the current thread so far, or -1 if the JVM can't tell us. Looked up reflectively since
+     * neither java.lang.management nor the com.sun extension exists on Android.
+     */
+    private static long getAllocatedBytes() {
+        try {
+            Object threadBean = Class.forName("java.lang.management.ManagementFactory").getMethod("getThreadMXBean")
+                    .invoke(null);
+            Method getThreadAllocatedBytes = Class.forName("com.sun.management.ThreadMXBean").getMethod(
+                    "getThreadAllocatedBytes", long.class);
+            return ((Long)getThreadAllocatedBytes.invoke(threadBean, Long.valueOf(Thread.currentThread().getId())))
+                    .longValue();
+        }
+        catch (Exception e) {
+            return -1;
+        }
+        catch (LinkageError e) {
+            return -1;
+        }
+    }
+
+    private static String format(double value) {
+        if (value >= 100) {
+            return Long.toString(Math.round(value));
+        }
+        return Double.toString(Math.round(value * 10) / 10.0);
+    }
+
+    private static String formatBytes(long bytes) {
+        if (bytes >= 1024 * 1024) {
+            return format(bytes / (1024.0 * 1024)) + "M";
+        }
+        return format(bytes / 1024.0) + "K";
+    }
+
+    private static String pad(String value, int width) {
+        StringBuilder padded = new StringBuilder(value);
+        do {
+            padded.append(' ');
+        } while (padded.length() < width);
+        return padded.toString();
+    }
+
+    /**
+     * Counts records from the KeywordJsonTokenizer. With assemble set, every value is also turned into a String, as
+     * the batch writer does when binding a record.
+     */
+    private static class TokenizeBenchmark implements Benchmark, KeywordRecordSource.Listener {
+        private final boolean assemble;
+        private int records;
+
+        TokenizeBenchmark(boolean assemble) {
+            this.assemble = assemble;
+        }
+
+        public String getName() {
+            return this.assemble ? "assemble" : "tokenize";
+        }
+
+        public int run(byte[] payload) throws IOException, ParseException {
+            this.records = 0;
+            new KeywordJsonTokenizer(new ByteArrayInputStream(payload)).parse(this, new KeywordRecord());
+            return this.records;
+        }
+
+        public void onVersion(String version) {
+        }
+
+        public void onTotal(int total) {
+        }
+
+        public void onNextSyncAfter(int seconds) {
+        }
+
+        public void onContinuation(String token) {
+        }
+
+        public KeywordRecord onRecord(KeywordRecord record) {
+            if (this.assemble) {
+                assemble(record);
+            }
+            this.records++;
+            return record;
+        }
+    }
+
+    /**
+     * The generic parser, for comparison. Counts objects inside the record arrays.
+     */
+    private static class JsonSimpleBenchmark implements Benchmark, ContentHandler {
+        private int depth;
+        private int records;
+
+        public String getName() {
+            return "json-simple";
+        }
+
+        public int run(byte[] payload) throws IOException, ParseException {
+            this.depth = 0;
+            this.records = 0;
+            new JSONParser().parse(new InputStreamReader(new ByteArrayInputStream(payload), "UTF-8"), this, false);
+            return this.records;
+        }
+
+        public void startJSON() {
+        }
+
+        public void endJSON() {
+        }
+
+        public boolean startObject() {
+            // the root object is depth 1, records sit in arrays under it
+            if (++this.depth == 3) {
+                this.records++;
+            }
+            return true;
+        }
+
+        public boolean endObject() {
+            this.depth--;
+            return true;
+        }
+
+        public boolean startObjectEntry(String key) {
+            return true;
+        }
+
+        public boolean endObjectEntry() {
+            return true;
+        }
+
+        public boolean startArray() {
+            this.depth++;
+            return true;
+        }
+
+        public boolean endArray() {
+            this.depth--;
+            return true;
+        }
+
+        public boolean primitive(Object value) {
+            return true;
+        }
+    }
+
+    /**
+     * Decodes the same payload as a binary snapshot, assembling every value
+     */
+    private static class BinaryDecodeBenchmark implements Benchmark, KeywordRecordSource.Listener {
+        private int records;
+
+        public String getName() {
+            return "decode-binary";
+        }
+
+        public int run(byte[] payload) throws IOException, ParseException {
+            this.records = 0;
+            new KeywordBinaryDecoder(new ByteArrayInputStream(payload)).parse(this, new KeywordRecord());
+            return this.records;
+        }
+
+        public void onVersion(String version) {
+        }
+
+        public void onTotal(int total) {
+        }
+
+        public void onNextSyncAfter(int seconds) {
+        }
+
+        public void onContinuation(String token) {
+        }
+
+        public KeywordRecord onRecord(KeywordRecord record) {
+            assemble(record);
+            this.records++;
+            return record;
+        }
+    }
+
+    /**
+     * Tokenizes the payload and writes it through KeywordBatchWriter into a fresh in-memory database each time
+     */
+    private static class IngestBenchmark implements Benchmark, KeywordRecordSource.Listener {
+        private KeywordBatchWriter batchWriter;
+        private int records;
+
+        public String getName() {
+            return "ingest";
+        }
+
+        boolean isAvailable() {
+            try {
+                SQLiteDatabase.create(null).close();
+                return true;
+            }
+            catch (RuntimeException e) {
+                // the desktop android.jar only has stubs that throw
+                return false;
+            }
+        }
+
+        public int run(byte[] payload) throws IOException, ParseException {
+            SQLiteDatabase database = SQLiteDatabase.create(null);
+            try {
+                Storage.createMenuTables(database);
+                this.batchWriter = new KeywordBatchWriter(database, KeywordBatchWriter.DEFAULT_BATCH_SIZE,
+                        GlobalConstants.MENU_TABLE_NAME, GlobalConstants.MENU_ITEM_TABLE_NAME);
+                this.records = 0;
+                try {
+                    new KeywordJsonTokenizer(new ByteArrayInputStream(payload)).parse(this, new KeywordRecord());
+                }
+                finally {
+                    this.batchWriter.close();
+                }
+                return this.records;
+            }
+            finally {
+                database.close();
+            }
+        }
+
+        public void onVersion(String version) {
+        }
+
+        public void onTotal(int total) {
+        }
+
+        public void onNextSyncAfter(int seconds) {
+        }
+
+        public void onContinuation(String token) {
+        }
+
+        public KeywordRecord onRecord(KeywordRecord record) {
+            this.batchWriter.write(record);
+            this.records++;
+            return record;
+        }
+    }
+
+    private static void assemble(KeywordRecord record) {
+        for (int slot = 0; slot < KeywordRecord.SLOT_COUNT; slot++) {
+            record.get(slot);
+        }
+    }
+}
@@ -0,0 +1,212 @@
+/**
+ * Copyright (C) 2010 Grameen Foundation
+Licensed under the Apache License, Version 2.0 (the "License"); you may not
+use this file except in compliance with the License. You may obtain a copy of
+the License at http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations under
+the License.
+ */
+
+package applab.search.client;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Random;
+
+/**
+ * Generates synthetic keyword payloads shaped like the ones the server sends: each menu holds a tree of menu items
+ * fanOut wide and depth deep, leaf items carry content, and a few items have attachments. Output is deterministic for a
+ * given seed, so benchmark runs can be compared.
+ */
+public class KeywordPayloadGenerator {
+    private static final String VERSION = "2010-09-01 10:00:00";
+    private static final String[] WORDS = { "maize", "beans", "plant", "rains", "spacing", "weeding", "harvest",
+            "fertilizer", "market", "price", "kg", "seedlings", "pests", "spray", "dry", "store", "bags", "shillings",
+            "season", "acre", "the", "and", "at", "of", "after", "before", "kawo", "matooke", "ente", "caf\u00e9" };
+
+    private final int menuCount;
+    private final int depth;
+    private final int fanOut;
+    private final int contentLength;
+    private final long seed;
+
+    private Random random;
+    private int nextId;
+
+    /**
+     * @param menuCount
+     *            number of top level menus
+     * @param depth
+     *            levels of menu items under each menu
+     * @param fanOut
+     *            children per menu item, and top level items per menu
+     * @param contentLength
+     *            approximate number of characters of content on each leaf item
+     */
+    public KeywordPayloadGenerator(int menuCount, int depth, int fanOut, int contentLength, long seed) {
+        this.menuCount = menuCount;
+        this.depth = depth;
+        this.fanOut = fanOut;
+        this.contentLength = contentLength;
+        this.seed = seed;
+    }
+
+    /**
+     * Number of menu items the payload will contain
+     */
+    public int getMenuItemCount() {
+        int itemsPerMenu = 0;
+        int levelSize = 1;
+        for (int level = 0; level < this.depth; level++) {
+            levelSize *= this.fanOut;
+            itemsPerMenu += levelSize;
+        }
+        return this.menuCount * itemsPerMenu;
+    }
+
+    /**
+     * Number of records of every type the payload will contain
+     */
+    public int getRecordCount() {
+        return this.menuCount + getMenuItemCount() + getDeletedItemCount() + 2 * getImageCount();
+    }
+
+    public byte[] generate() throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        write(output);
+        return output.toByteArray();
+    }
+
+    public void write(OutputStream output) throws IOException {
+        this.random = new Random(this.seed);
+        this.nextId = 0;
+        Writer writer = new BufferedWriter(new OutputStreamWriter(output, "UTF-8"), 8 * 1024);
+
+        writer.write("{\"Version\":\"" + VERSION + "\",\"Total\":" + (this.menuCount + getMenuItemCount()));
+
+        writer.write(",\"Menus\":[");
+        for (int menu = 0; menu < this.menuCount; menu++) {
+            if (menu > 0) {
+                writer.write(',');
+            }
+            writer.write("{\"id\":\"" + getMenuId(menu) + "\",\"label\":\"Menu " + menu + "\"}");
+        }
+
+        writer.write("],\"MenuItems\":[");
+        boolean first = true;
+        for (int menu = 0; menu < this.menuCount; menu++) {
+            first = writeItems(writer, getMenuId(menu), "", 1, first);
+        }
+
+        writer.write("],\"DeletedMenuItems\":[");
+        for (int i = 0; i < getDeletedItemCount(); i++) {
+            writer.write((i > 0 ? "," : "") + "{\"id\":\"" + getItemId(Integer.MAX_VALUE / 2 + i) + "\"}");
+        }
+        writer.write("],\"Images\":[");
+        for (int i = 0; i < getImageCount(); i++) {
+            writer.write((i > 0 ? "," : "") + "{\"id\":\"" + getImageId(i) + "\"}");
+        }
+        writer.write("],\"DeletedImages\":[");
+        for (int i = 0; i < getImageCount(); i++) {
+            writer.write((i > 0 ? "," : "") + "{\"id\":\"" + getImageId(getImageCount() + i) + "\"}");
+        }
+        writer.write("]}");
+        writer.flush();
+    }
+
+    /**
+     * Writes fanOut items under parentId, and recursively their children, returning whether nothing has been written
+     * to the array yet
+     */
+    private boolean writeItems(Writer writer, String menuId, String parentId, int level, boolean first)
+            throws IOException {
+        for (int position = 0; position < this.fanOut; position++) {
+            String id = getItemId(this.nextId++);
+            boolean isLeaf = level == this.depth;
+
+            writer.write(first ? "{" : ",{");
+            first = false;
+            writer.write("\"id\":\"" + id + "\",\"label\":\"" + getWords(2 + this.random.nextInt(3))
+                    + "\",\"menu_id\":\"" + menuId + "\",\"parent_id\":\"" + parentId + "\",\"position\":" + position);
+            if (isLeaf) {
+                writer.write(",\"content\":\"");
+                writeContent(writer);
+                writer.write('"');
+            }
+            if (isLeaf && this.random.nextInt(10) == 0) {
+                writer.write(",\"attachment_id\":\"" + getImageId(this.random.nextInt(Math.max(1, getImageCount())))
+                        + "\"");
+            }
+            writer.write('}');
+
+            if (!isLeaf) {
+                first = writeItems(writer, menuId, id, level + 1, first);
+            }
+        }
+        return first;
+    }
+
+    private void writeContent(Writer writer) throws IOException {
+        int written = 0;
+        while (written < this.contentLength) {
+            String word = WORDS[this.random.nextInt(WORDS.length)];
+            writer.write(word);
+            written += word.length();
+            if (this.random.nextInt(12) == 0) {
+                // escapes show up in real content, so the tokenizer's slow path gets exercised too
+                writer.write(".\\n");
+                written += 2;
+            }
+            else {
+                writer.write(' ');
+                written++;
+            }
+        }
+    }
+
+    private String getWords(int count) {
+        StringBuilder words = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                words.append(' ');
+            }
+            words.append(WORDS[this.random.nextInt(WORDS.length)]);
+        }
+        return words.toString();
+    }
+
+    private int getDeletedItemCount() {
+        return getMenuItemCount() / 100;
+    }
+
+    int getImageCount() {
+        return getMenuItemCount() / 50;
+    }
+
+    private static String getMenuId(int index) {
+        return "a0D" + padId(index);
+    }
+
+    private static String getItemId(int index) {
+        return "a0C" + padId(index);
+    }
+
+    static String getImageId(int index) {
+        return "a0I" + padId(index);
+    }
+
+    /** ids look like 15 character Salesforce ids */
+    private static String padId(int index) {
+        String digits = Integer.toString(index);
+        StringBuilder id = new StringBuilder("800000000000");
+        id.replace(id.length() - digits.length(), id.length(), digits);
+        return id.toString();
+    }
+}
@@ -0,0 +1,179 @@
+/**
+ * Copyright (C) 2010 Grameen Foundation
+Licensed under the Apache License, Version 2.0 (the "License"); you may not
+use this file except in compliance with the License. You may obtain a copy of
+the License at http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations under
+the License.
+ */
+
+package applab.search.client;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A stand-in for the server side of the combined sync request, for trying the envelope out against a desktop instead
+ * of the real search server. It answers every POST with an envelope that acknowledges all the usage logs in the
+ * request, carries a synthetic keyword update from KeywordPayloadGenerator and inlines the first few images of its
+ * manifest (as placeholder bytes), leaving the rest for the client to fetch separately.
+ *
+ * Run from the desktop with:
+ *
+ * <pre>
+ * java applab.search.client.SyncEnvelopeServer [port [menus depth fanOut contentLength]]
+ * </pre>
+ *
+ * and point the phone's server URL at it.
+ */
+public class SyncEnvelopeServer {
+    private static final int DEFAULT_PORT = 8888;
+    private static final int DEFAULT_MENUS = 5;
+    private static final int DEFAULT_DEPTH = 3;
+    private static final int DEFAULT_FAN_OUT = 6;
+    private static final int DEFAULT_CONTENT_LENGTH = 400;
+    private static final long SEED = 20100901L;
+
+    /** how many manifest images go inline */
+    private static final int INLINE_IMAGE_COUNT = 3;
+
+    private static final int MAX_REQUEST_LENGTH = 1024 * 1024;
+    private static final Pattern USAGE_LOG_ID = Pattern.compile("<usageLog>\\s*<id>([^<]*)</id>");
+
+    private final KeywordPayloadGenerator generator;
+
+    public SyncEnvelopeServer(KeywordPayloadGenerator generator) {
+        this.generator = generator;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = DEFAULT_PORT;
+        int menus = DEFAULT_MENUS;
+        int depth = DEFAULT_DEPTH;
+        int fanOut = DEFAULT_FAN_OUT;
+        int contentLength = DEFAULT_CONTENT_LENGTH;
+        if (args.length >= 1) {
+            port = Integer.parseInt(args[0]);
+        }
+        if (args.length >= 5) {
+            menus = Integer.parseInt(args[1]);
+            depth = Integer.parseInt(args[2]);
+            fanOut = Integer.parseInt(args[3]);
+            contentLength = Integer.parseInt(args[4]);
+        }
+
+        SyncEnvelopeServer server = new SyncEnvelopeServer(new KeywordPayloadGenerator(menus, depth, fanOut,
+                contentLength, SEED));
+        ServerSocket serverSocket = new ServerSocket(port);
+        System.out.println("Serving sync envelopes on port " + port);
+        while (true) {
+            Socket socket = serverSocket.accept();
+            try {
+                server.handle(socket.getInputStream(), socket.getOutputStream());
+            }
+            catch (IOException e) {
+                System.out.println("Request failed: " + e);
+            }
+            finally {
+                socket.close();
+            }
+        }
+    }
+
+    /**
+     * Reads one HTTP request and writes the envelope response
+     */
+    public void handle(InputStream input, OutputStream output) throws IOException {
+        String request = readRequestBody(input);
+        output = new BufferedOutputStream(output, SyncEnvelopeFormat.MAX_CHUNK_LENGTH);
+        output.write(("HTTP/1.0 200 OK\r\nContent-Type: application/octet-stream\r\n"
+                + "Connection: close\r\n\r\n").getBytes("US-ASCII"));
+        writeEnvelope(request, output);
+        output.flush();
+    }
+
+    /**
+     * Writes the envelope answering a sync request
+     */
+    public void writeEnvelope(String request, OutputStream output) throws IOException {
+        SyncEnvelopeWriter envelope = new SyncEnvelopeWriter(output);
+
+        StringBuilder acks = new StringBuilder();
+        int ackCount = 0;
+        Matcher matcher = USAGE_LOG_ID.matcher(request);
+        while (matcher.find()) {
+            acks.append(matcher.group(1).trim()).append('\n');
+            ackCount++;
+        }
+        envelope.writeSection(SyncEnvelopeFormat.SECTION_ACKS, "", acks.toString().getBytes("UTF-8"));
+
+        OutputStream keywords = envelope.beginSection(SyncEnvelopeFormat.SECTION_KEYWORDS, "");
+        this.generator.write(keywords);
+        keywords.close();
+
+        int imageCount = Math.min(INLINE_IMAGE_COUNT, this.generator.getImageCount());
+        for (int i = 0; i < imageCount; i++) {
+            String imageId = KeywordPayloadGenerator.getImageId(i);
+            envelope.writeSection(SyncEnvelopeFormat.SECTION_IMAGE, imageId, getPlaceholderImage(imageId));
+        }
+        envelope.finish();
+        System.out.println("Acknowledged " + ackCount + " usage logs, sent " + this.generator.getRecordCount()
+                + " keyword records and " + imageCount + " images");
+    }
+
+    private static byte[] getPlaceholderImage(String imageId) throws IOException {
+        return ("placeholder for " + imageId).getBytes("UTF-8");
+    }
+
+    /**
+     * Skips the request line and headers and returns the body, which is as long as Content-Length says
+     */
+    private static String readRequestBody(InputStream input) throws IOException {
+        int contentLength = 0;
+        String line;
+        while ((line = readLine(input)) != null && line.length() > 0) {
+            int colon = line.indexOf(':');
+            if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Content-Length")) {
+                contentLength = Integer.parseInt(line.substring(colon + 1).trim());
+            }
+        }
+        if (contentLength < 0 || contentLength > MAX_REQUEST_LENGTH) {
+            throw new IOException("Request body is " + contentLength + " bytes long");
+        }
+
+        byte[] body = new byte[contentLength];
+        int count = 0;
+        while (count < contentLength) {
+            int read = input.read(body, count, contentLength - count);
+            if (read < 0) {
+                break;
+            }
+            count += read;
+        }
+        return new String(body, 0, count, "UTF-8");
+    }
+
+    private static String readLine(InputStream input) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int value;
+        while ((value = input.read()) >= 0 && value != '\n') {
+            if (value != '\r') {
+                line.write(value);
+            }
+        }
+        if (value < 0 && line.size() == 0) {
+            return null;
+        }
+        return line.toString("US-ASCII");
+    }
+}